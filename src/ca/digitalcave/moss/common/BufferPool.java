@@ -0,0 +1,275 @@
+package ca.digitalcave.moss.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author wyatt
+ * A pool of byte[] and direct ByteBuffer buffers, so that code which needs a temporary
+ * buffer for every call (such as StreamUtil's copy methods) does not allocate one each
+ * time.
+ *
+ * Buffers come in a fixed set of size classes; a request is served from the smallest
+ * class which is at least as big, so the buffer returned may be larger than asked for.
+ * Requests larger than the largest class are allocated and never pooled.  Each thread
+ * keeps one buffer of each class to itself; beyond that, released buffers go to a
+ * shared pool split into stripes (chosen by thread), each holding a few buffers per
+ * class in slots which are taken and filled with compare and set, without locking.
+ * When the pool is full, released buffers are left to the garbage collector.
+ *
+ * Buffers must not be used after they are released, nor released twice.  The hit,
+ * miss and outstanding counts are kept for monitoring.  Instances are thread safe.
+ */
+public final class BufferPool {
+	private static final int[] DEFAULT_SIZES = {8 * 1024, 64 * 1024};
+	private static final int DEFAULT_SLOTS = 4;
+
+	private static BufferPool defaultPool;
+
+	private final int[] sizes;
+	private final int slots;
+	private final int stripeMask;
+
+	//Slot (stripe * sizes.length + sizeClass) * slots + n of the shared pools
+	private final AtomicReferenceArray<byte[]> arrays;
+	private final AtomicReferenceArray<ByteBuffer> directs;
+
+	private final ThreadLocal<Local> local = new ThreadLocal<Local>() {
+		@Override
+		protected Local initialValue() {
+			return new Local(sizes.length);
+		}
+	};
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder outstanding = new LongAdder();
+
+	/**
+	 * Returns the shared pool, with 8K and 64K size classes.
+	 * @return
+	 */
+	public static synchronized BufferPool getDefault(){
+		if (defaultPool == null)
+			defaultPool = new BufferPool(DEFAULT_SIZES, DEFAULT_SLOTS);
+		return defaultPool;
+	}
+
+	/**
+	 * Creates a pool with the given size classes, keeping up to slotsPerStripe buffers of
+	 * each size class and kind (heap / direct) in each stripe of the shared pool.  There
+	 * is a stripe for each processor (rounded up to a power of two).
+	 * @param sizes
+	 * @param slotsPerStripe
+	 */
+	public BufferPool(int[] sizes, int slotsPerStripe){
+		if (sizes.length == 0)
+			throw new IllegalArgumentException("At least one size is required");
+		for (int i = 0; i < sizes.length; i++){
+			if (sizes[i] <= 0 || (i > 0 && sizes[i] <= sizes[i - 1]))
+				throw new IllegalArgumentException("Sizes must be positive and increasing");
+		}
+		if (slotsPerStripe < 0)
+			throw new IllegalArgumentException("Slots must not be negative: " + slotsPerStripe);
+		this.sizes = sizes.clone();
+		this.slots = slotsPerStripe;
+		int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1));
+		this.stripeMask = stripes - 1;
+		this.arrays = new AtomicReferenceArray<byte[]>(stripes * sizes.length * slots);
+		this.directs = new AtomicReferenceArray<ByteBuffer>(stripes * sizes.length * slots);
+	}
+
+	/**
+	 * Returns the size classes.
+	 * @return
+	 */
+	public int[] getSizes(){
+		return sizes.clone();
+	}
+
+	/**
+	 * Returns a byte[] of at least the given length.
+	 * @param minLength
+	 * @return
+	 */
+	public byte[] borrowArray(int minLength){
+		outstanding.increment();
+		int sizeClass = sizeClassFor(minLength);
+		if (sizeClass < 0){
+			misses.increment();
+			return new byte[minLength];
+		}
+		Local current = local.get();
+		byte[] array = current.arrays[sizeClass];
+		if (array != null){
+			current.arrays[sizeClass] = null;
+			hits.increment();
+			return array;
+		}
+		int first = firstSlot(sizeClass);
+		for (int i = first; i < first + slots; i++){
+			array = arrays.get(i);
+			if (array != null && arrays.compareAndSet(i, array, null)){
+				hits.increment();
+				return array;
+			}
+		}
+		misses.increment();
+		return new byte[sizes[sizeClass]];
+	}
+
+	/**
+	 * Returns a byte[] to the pool.
+	 * @param array
+	 */
+	public void releaseArray(byte[] array){
+		outstanding.decrement();
+		int sizeClass = sizeClassOf(array.length);
+		if (sizeClass < 0)
+			return;
+		Local current = local.get();
+		if (current.arrays[sizeClass] == null){
+			current.arrays[sizeClass] = array;
+			return;
+		}
+		int first = firstSlot(sizeClass);
+		for (int i = first; i < first + slots; i++){
+			if (arrays.get(i) == null && arrays.compareAndSet(i, null, array))
+				return;
+		}
+	}
+
+	/**
+	 * Returns a cleared buffer with a capacity of at least the given size; a heap buffer
+	 * wraps a pooled byte[], and a direct buffer comes from a separate pool.
+	 * @param minCapacity
+	 * @param direct
+	 * @return
+	 */
+	public ByteBuffer borrowBuffer(int minCapacity, boolean direct){
+		if (!direct)
+			return ByteBuffer.wrap(borrowArray(minCapacity));
+
+		outstanding.increment();
+		int sizeClass = sizeClassFor(minCapacity);
+		if (sizeClass < 0){
+			misses.increment();
+			return ByteBuffer.allocateDirect(minCapacity);
+		}
+		Local current = local.get();
+		ByteBuffer buffer = current.directs[sizeClass];
+		if (buffer != null){
+			current.directs[sizeClass] = null;
+			hits.increment();
+			buffer.clear();
+			return buffer;
+		}
+		int first = firstSlot(sizeClass);
+		for (int i = first; i < first + slots; i++){
+			buffer = directs.get(i);
+			if (buffer != null && directs.compareAndSet(i, buffer, null)){
+				hits.increment();
+				buffer.clear();
+				return buffer;
+			}
+		}
+		misses.increment();
+		return ByteBuffer.allocateDirect(sizes[sizeClass]);
+	}
+
+	/**
+	 * Returns a buffer obtained from borrowBuffer() to the pool.
+	 * @param buffer
+	 */
+	public void releaseBuffer(ByteBuffer buffer){
+		if (!buffer.isDirect()){
+			releaseArray(buffer.array());
+			return;
+		}
+
+		outstanding.decrement();
+		int sizeClass = sizeClassOf(buffer.capacity());
+		if (sizeClass < 0)
+			return;
+		Local current = local.get();
+		if (current.directs[sizeClass] == null){
+			current.directs[sizeClass] = buffer;
+			return;
+		}
+		int first = firstSlot(sizeClass);
+		for (int i = first; i < first + slots; i++){
+			if (directs.get(i) == null && directs.compareAndSet(i, null, buffer))
+				return;
+		}
+	}
+
+	/**
+	 * Returns the number of requests which were served by a pooled buffer.
+	 * @return
+	 */
+	public long getHits(){
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of requests which had to allocate a new buffer.
+	 * @return
+	 */
+	public long getMisses(){
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of buffers which have been borrowed and not yet released.
+	 * @return
+	 */
+	public long getOutstanding(){
+		return outstanding.sum();
+	}
+
+	@Override
+	public String toString(){
+		return "BufferPool[hits=" + getHits() + ", misses=" + getMisses() + ", outstanding=" + getOutstanding() + "]";
+	}
+
+	/**
+	 * Returns the smallest size class of at least the given size, or -1 if there is none.
+	 */
+	private int sizeClassFor(int size){
+		for (int i = 0; i < sizes.length; i++){
+			if (sizes[i] >= size)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the size class of exactly the given size, or -1 if there is none.
+	 */
+	private int sizeClassOf(int size){
+		for (int i = 0; i < sizes.length; i++){
+			if (sizes[i] == size)
+				return i;
+		}
+		return -1;
+	}
+
+	private int firstSlot(int sizeClass){
+		int stripe = (int) Thread.currentThread().getId() & stripeMask;
+		return (stripe * sizes.length + sizeClass) * slots;
+	}
+
+	/**
+	 * The buffers kept by a single thread; one per size class.
+	 */
+	private static class Local {
+		final byte[][] arrays;
+		final ByteBuffer[] directs;
+
+		Local(int sizeClasses){
+			arrays = new byte[sizeClasses][];
+			directs = new ByteBuffer[sizeClasses];
+		}
+	}
+}
@@ -0,0 +1,412 @@
+package ca.digitalcave.moss.common;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * @author wyatt
+ * A calendar of business days (days which are neither a weekend day nor a holiday),
+ * covering a fixed range of days.  Each day in the range is one bit in a long[],
+ * and we keep a running count of business days at the start of each long, so
+ * counting business days between two dates takes constant time, and finding the
+ * nth business day from a date takes a binary search over the counts.
+ *
+ * Days are local days in the time zone of a DateContext (or the JVM default, as it was
+ * when the calendar was created).  addBusinessDays() keeps the time of day, as
+ * DateUtil.addDays() does; nextBusinessDay() and previousBusinessDay() return the
+ * start of the day, as from DateUtil.getStartOfDay().  Asking about a day outside of
+ * the calendar's range throws an IllegalArgumentException.
+ *
+ * Calendars can be loaded from a text file with load(); see there for the format.
+ * Instances are immutable and thread safe.
+ */
+public final class BusinessCalendar {
+	private final DateEngine engine;
+	private final ZoneOffsetTable zone;
+	private final long firstDay;
+	private final long lastDay;
+
+	//Bit i of days[w] is set if (firstDay + w * 64 + i) is a business day.
+	private final long[] days;
+	//counts[w] is the number of business days before days[w]; counts[days.length] is the total.
+	private final int[] counts;
+
+	/**
+	 * Creates a calendar from first to last (inclusive) with Saturday and Sunday as the
+	 * weekend, using the default time zone.
+	 * @param first
+	 * @param last
+	 * @param holidays
+	 */
+	public BusinessCalendar(Date first, Date last, Collection<Date> holidays){
+		this(DateEngine.getDefault(), first, last, holidays, Calendar.SATURDAY, Calendar.SUNDAY);
+	}
+
+	/**
+	 * Creates a calendar from first to last (inclusive) in the given context.
+	 * @param context
+	 * @param first
+	 * @param last
+	 * @param holidays
+	 * @param weekendDays The days of the week (Calendar.SATURDAY, etc) which are not business days
+	 */
+	public BusinessCalendar(DateContext context, Date first, Date last, Collection<Date> holidays, int... weekendDays){
+		this(context.getEngine(), first, last, holidays, weekendDays);
+	}
+
+	private BusinessCalendar(DateEngine engine, Date first, Date last, Collection<Date> holidays, int... weekendDays){
+		this(engine, engine.getZone().toLocal(first.getTime()), engine.getZone().toLocal(last.getTime()), toEpochDays(engine, holidays), weekendDays);
+	}
+
+	/**
+	 * Creates a calendar from the first to the last epoch day (inclusive), in the given context.
+	 * @param context
+	 * @param firstEpochDay
+	 * @param lastEpochDay
+	 * @param holidays The epoch days which are holidays
+	 * @param weekendDays The days of the week (Calendar.SATURDAY, etc) which are not business days
+	 */
+	public BusinessCalendar(DateContext context, long firstEpochDay, long lastEpochDay, long[] holidays, int... weekendDays){
+		this(context.getEngine(), firstEpochDay * DateEngine.MILLIS_PER_DAY, lastEpochDay * DateEngine.MILLIS_PER_DAY, holidays, weekendDays);
+	}
+
+	private BusinessCalendar(DateEngine engine, long firstLocal, long lastLocal, long[] holidays, int[] weekendDays){
+		this.engine = engine;
+		this.zone = engine.getZone();
+		this.firstDay = Math.floorDiv(firstLocal, DateEngine.MILLIS_PER_DAY);
+		this.lastDay = Math.floorDiv(lastLocal, DateEngine.MILLIS_PER_DAY);
+		if (lastDay < firstDay)
+			throw new IllegalArgumentException("Last day is before first day");
+		if (lastDay - firstDay >= (long) Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Range is too large");
+
+		boolean[] weekend = new boolean[8];
+		for (int dayOfWeek : weekendDays){
+			if (dayOfWeek < Calendar.SUNDAY || dayOfWeek > Calendar.SATURDAY)
+				throw new IllegalArgumentException("Invalid day of week: " + dayOfWeek);
+			weekend[dayOfWeek] = true;
+		}
+
+		int length = (int) (lastDay - firstDay + 1);
+		this.days = new long[(length + 63) >>> 6];
+		for (int i = 0; i < length; i++){
+			if (!weekend[DateEngine.dayOfWeek(firstDay + i)])
+				days[i >>> 6] |= 1l << i;
+		}
+		for (long holiday : holidays){
+			if (holiday >= firstDay && holiday <= lastDay){
+				int i = (int) (holiday - firstDay);
+				days[i >>> 6] &= ~(1l << i);
+			}
+		}
+
+		this.counts = new int[days.length + 1];
+		for (int w = 0; w < days.length; w++){
+			counts[w + 1] = counts[w] + Long.bitCount(days[w]);
+		}
+	}
+
+	private static long[] toEpochDays(DateEngine engine, Collection<Date> dates){
+		long[] result = new long[dates.size()];
+		int i = 0;
+		for (Date date : dates){
+			result[i++] = Math.floorDiv(engine.getZone().toLocal(date.getTime()), DateEngine.MILLIS_PER_DAY);
+		}
+		return result;
+	}
+
+	/**
+	 * Loads a calendar from a text file, in the default time zone.  See load(Reader, DateContext).
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static BusinessCalendar load(File file) throws IOException {
+		return load(file, DateContext.getDefault());
+	}
+
+	/**
+	 * Loads a calendar from a text file (UTF-8), in the given context.  See load(Reader, DateContext).
+	 * @param file
+	 * @param context
+	 * @return
+	 * @throws IOException
+	 */
+	public static BusinessCalendar load(File file, DateContext context) throws IOException {
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			return load(reader, context);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Loads a calendar from the given reader.  The format is one entry per line, with
+	 * blank lines and anything after a '#' ignored:
+	 *
+	 *	range 2000-01-01 2030-12-31		The first and last days covered
+	 *	weekend SATURDAY SUNDAY			The weekend days (default Saturday and Sunday)
+	 *	2009-12-25						A holiday
+	 *
+	 * If there is no range line, the range is from the start of the year of the earliest
+	 * holiday to the end of the year of the latest.
+	 * @param reader
+	 * @param context
+	 * @return
+	 * @throws IOException
+	 */
+	public static BusinessCalendar load(Reader reader, DateContext context) throws IOException {
+		BufferedReader br = new BufferedReader(reader);
+		List<Long> holidays = new ArrayList<Long>();
+		int[] weekendDays = new int[]{Calendar.SATURDAY, Calendar.SUNDAY};
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+		boolean range = false;
+
+		String line;
+		int lineNumber = 0;
+		while ((line = br.readLine()) != null){
+			lineNumber++;
+			int comment = line.indexOf('#');
+			if (comment >= 0)
+				line = line.substring(0, comment);
+			String[] tokens = line.trim().split("\\s+");
+			if (tokens[0].length() == 0)
+				continue;
+
+			try {
+				if ("range".equalsIgnoreCase(tokens[0]) && tokens.length == 3){
+					first = IsoDateFormat.parseEpochDay(tokens[1], 0);
+					last = IsoDateFormat.parseEpochDay(tokens[2], 0);
+					range = true;
+				}
+				else if ("weekend".equalsIgnoreCase(tokens[0])){
+					weekendDays = new int[tokens.length - 1];
+					for (int i = 1; i < tokens.length; i++){
+						weekendDays[i - 1] = parseDayOfWeek(tokens[i]);
+					}
+				}
+				else if (tokens.length == 1 && tokens[0].length() == IsoDateFormat.DATE_LENGTH){
+					long holiday = IsoDateFormat.parseEpochDay(tokens[0], 0);
+					holidays.add(holiday);
+					if (!range){
+						first = Math.min(first, holiday);
+						last = Math.max(last, holiday);
+					}
+				}
+				else {
+					throw new IllegalArgumentException("Unknown entry '" + line.trim() + "'");
+				}
+			}
+			catch (IllegalArgumentException iae){
+				throw new IOException("Line " + lineNumber + ": " + iae.getMessage());
+			}
+		}
+
+		if (first == Long.MAX_VALUE)
+			throw new IOException("Business calendar has no range or holidays");
+		if (!range){
+			int firstCivil = DateEngine.toCivil(first);
+			int lastCivil = DateEngine.toCivil(last);
+			first = DateEngine.toEpochDay(DateEngine.civilYear(firstCivil), 0, 1);
+			last = DateEngine.toEpochDay(DateEngine.civilYear(lastCivil), 11, 31);
+		}
+
+		long[] result = new long[holidays.size()];
+		for (int i = 0; i < result.length; i++){
+			result[i] = holidays.get(i);
+		}
+		return new BusinessCalendar(context, first, last, result, weekendDays);
+	}
+
+	private static int parseDayOfWeek(String name){
+		String[] names = {"SUNDAY", "MONDAY", "TUESDAY", "WEDNESDAY", "THURSDAY", "FRIDAY", "SATURDAY"};
+		for (int i = 0; i < names.length; i++){
+			if (names[i].equalsIgnoreCase(name) || names[i].substring(0, 3).equalsIgnoreCase(name))
+				return Calendar.SUNDAY + i;
+		}
+		throw new IllegalArgumentException("Unknown day of week '" + name + "'");
+	}
+
+	/*
+	 * Dates
+	 */
+
+	/**
+	 * Returns true if the given date is a business day.
+	 * @param date
+	 * @return
+	 */
+	public boolean isBusinessDay(Date date){
+		return isBusinessDay(date.getTime());
+	}
+
+	public boolean isBusinessDay(long date){
+		return isBusinessEpochDay(epochDay(date));
+	}
+
+	/**
+	 * Returns the date which is offset business days from the given date, at the same
+	 * time of day.  The given date itself is not counted, so adding 1 to a Friday gives
+	 * the following Monday (if that is not a holiday), as does adding 1 to a Saturday.
+	 * An offset of 0 returns the date unchanged.
+	 * @param date
+	 * @param offset
+	 * @return
+	 */
+	public Date addBusinessDays(Date date, int offset){
+		return new Date(addBusinessDays(date.getTime(), offset));
+	}
+
+	public long addBusinessDays(long date, int offset){
+		long day = epochDay(date);
+		return engine.addDays(date, (int) (addBusinessDaysToEpochDay(day, offset) - day));
+	}
+
+	/**
+	 * Returns the number of business days after first, up to and including last.  If
+	 * inclusive is set, first is also counted (if it is a business day).  If last is
+	 * before first, the result is negative: getBusinessDaysBetween(a, b) is always
+	 * -getBusinessDaysBetween(b, a).
+	 * @param first
+	 * @param last
+	 * @param inclusive
+	 * @return
+	 */
+	public int getBusinessDaysBetween(Date first, Date last, boolean inclusive){
+		return getBusinessDaysBetween(first.getTime(), last.getTime(), inclusive);
+	}
+
+	public int getBusinessDaysBetween(long first, long last, boolean inclusive){
+		return getBusinessDaysBetweenEpochDays(epochDay(first), epochDay(last), inclusive);
+	}
+
+	/**
+	 * Returns the start of the first business day after the given date.
+	 * @param date
+	 * @return
+	 */
+	public Date nextBusinessDay(Date date){
+		return new Date(nextBusinessDay(date.getTime()));
+	}
+
+	public long nextBusinessDay(long date){
+		return engine.periodStart(PeriodType.DAY, addBusinessDaysToEpochDay(epochDay(date), 1));
+	}
+
+	/**
+	 * Returns the start of the last business day before the given date.
+	 * @param date
+	 * @return
+	 */
+	public Date previousBusinessDay(Date date){
+		return new Date(previousBusinessDay(date.getTime()));
+	}
+
+	public long previousBusinessDay(long date){
+		return engine.periodStart(PeriodType.DAY, addBusinessDaysToEpochDay(epochDay(date), -1));
+	}
+
+	/*
+	 * Epoch days
+	 */
+
+	public long getFirstEpochDay(){
+		return firstDay;
+	}
+
+	public long getLastEpochDay(){
+		return lastDay;
+	}
+
+	public boolean isBusinessEpochDay(long epochDay){
+		int i = index(epochDay);
+		return (days[i >>> 6] & (1l << i)) != 0;
+	}
+
+	/**
+	 * Returns the epoch day which is offset business days from the given epoch day; see
+	 * addBusinessDays().
+	 * @param epochDay
+	 * @param offset
+	 * @return
+	 */
+	public long addBusinessDaysToEpochDay(long epochDay, int offset){
+		if (offset == 0)
+			return epochDay;
+		int i = index(epochDay);
+		//The rank of the business day we want, where rank 0 is the first in the calendar
+		long target = offset > 0 ? rank(i + 1) + (long) offset - 1 : rank(i) + (long) offset;
+		if (target < 0 || target >= counts[days.length])
+			throw new IllegalArgumentException("Result is outside of the business calendar");
+		return firstDay + select((int) target);
+	}
+
+	/**
+	 * Returns the number of business days between the two epoch days; see getBusinessDaysBetween().
+	 * @param first
+	 * @param last
+	 * @param inclusive
+	 * @return
+	 */
+	public int getBusinessDaysBetweenEpochDays(long first, long last, boolean inclusive){
+		int f = index(first);
+		int l = index(last);
+		if (f <= l)
+			return rank(l + 1) - rank(inclusive ? f : f + 1);
+		return -(rank(f + 1) - rank(inclusive ? l : l + 1));
+	}
+
+	/**
+	 * Returns the number of business days before the day at index i.
+	 */
+	private int rank(int i){
+		int word = i >>> 6;
+		int bit = i & 63;
+		if (bit == 0)
+			return counts[word];
+		return counts[word] + Long.bitCount(days[word] & (-1l >>> (64 - bit)));
+	}
+
+	/**
+	 * Returns the index of the business day with the given rank.
+	 */
+	private int select(int rank){
+		//Find the last word which starts with at most rank business days before it
+		int lo = 0;
+		int hi = days.length - 1;
+		while (lo < hi){
+			int mid = (lo + hi + 1) >>> 1;
+			if (counts[mid] <= rank)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		long word = days[lo];
+		for (int skip = rank - counts[lo]; skip > 0; skip--){
+			word &= word - 1;
+		}
+		return (lo << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	private int index(long epochDay){
+		if (epochDay < firstDay || epochDay > lastDay)
+			throw new IllegalArgumentException("Day is outside of the business calendar");
+		return (int) (epochDay - firstDay);
+	}
+
+	private long epochDay(long time){
+		return Math.floorDiv(zone.toLocal(time), DateEngine.MILLIS_PER_DAY);
+	}
+}
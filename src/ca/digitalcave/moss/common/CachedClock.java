@@ -0,0 +1,252 @@
+package ca.digitalcave.moss.common;
+
+import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * @author wyatt
+ * Keeps the boundaries of the current day, week, month, quarter and year, so that
+ * code which calls DateUtil.getStartOfDay(new Date()) (and friends) on every request
+ * can read a field instead.  The boundaries are kept in an immutable Today object,
+ * published through a volatile field; a timer replaces it at the start of each new
+ * day (every other boundary is also the start of a day).  The boundaries come from
+ * the same calculations as DateUtil, so days which start or end at a DST change are
+ * handled the same way.
+ *
+ * The timer may run a few miliseconds after midnight, so for a moment after the start
+ * of the day getToday() can still return yesterday.  Code which cannot tolerate that
+ * should check Today.contains(System.currentTimeMillis()) and call refresh() if not.
+ *
+ * All clocks share a single daemon timer thread.  Call stop() on clocks which are no
+ * longer needed (the default clock runs for the life of the JVM).  If a refresh by the
+ * timer fails, the error is logged and the refresh is tried again a minute later.
+ */
+public final class CachedClock {
+	private static final long RETRY_DELAY = 60 * 1000;
+
+	private static Timer timer;
+	private static CachedClock defaultClock;
+
+	private final DateEngine engine;
+	private volatile Today today;
+	private TimerTask task;
+	private boolean stopped;
+
+	/**
+	 * Returns the shared clock for the JVM default time zone and locale (as they were
+	 * when it was first used).
+	 * @return
+	 */
+	public static synchronized CachedClock getDefault(){
+		if (defaultClock == null)
+			defaultClock = new CachedClock(DateContext.getDefault());
+		return defaultClock;
+	}
+
+	/**
+	 * Creates a clock for the given context, and starts its timer.
+	 * @param context
+	 */
+	public CachedClock(DateContext context){
+		this.engine = context.getEngine();
+		refresh();
+	}
+
+	/**
+	 * Returns the boundaries of the current day, week, etc.
+	 * @return
+	 */
+	public Today getToday(){
+		return today;
+	}
+
+	public long getStartOfDay(){
+		return today.startOfDay;
+	}
+
+	public long getEndOfDay(){
+		return today.endOfDay;
+	}
+
+	public long getStartOfWeek(){
+		return today.startOfWeek;
+	}
+
+	public long getEndOfWeek(){
+		return today.endOfWeek;
+	}
+
+	public long getStartOfMonth(){
+		return today.startOfMonth;
+	}
+
+	public long getEndOfMonth(){
+		return today.endOfMonth;
+	}
+
+	public long getStartOfQuarter(){
+		return today.startOfQuarter;
+	}
+
+	public long getEndOfQuarter(){
+		return today.endOfQuarter;
+	}
+
+	public long getStartOfYear(){
+		return today.startOfYear;
+	}
+
+	public long getEndOfYear(){
+		return today.endOfYear;
+	}
+
+	/**
+	 * Recalculates the boundaries from the current time, and schedules the next refresh
+	 * for the start of the following day.  This is normally only called by the timer.
+	 */
+	public synchronized void refresh(){
+		if (stopped)
+			return;
+		Today current = new Today(engine, System.currentTimeMillis());
+		today = current;
+		schedule(new Date(current.endOfDay + 1));
+	}
+
+	/**
+	 * Stops refreshing this clock.  getToday() will keep returning the last value.
+	 */
+	public synchronized void stop(){
+		stopped = true;
+		if (task != null)
+			task.cancel();
+		task = null;
+	}
+
+	private synchronized void schedule(Date time){
+		if (stopped)
+			return;
+		if (task != null)
+			task.cancel();
+		task = new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					refresh();
+				}
+				catch (Throwable t){
+					//Don't let it out; that would kill the timer thread, which every clock shares
+					Logger.getLogger(CachedClock.class.getName()).log(Level.WARNING, "Error refreshing clock; trying again in a minute", t);
+					schedule(new Date(System.currentTimeMillis() + RETRY_DELAY));
+				}
+			}
+		};
+		getTimer().schedule(task, time);
+	}
+
+	private static synchronized Timer getTimer(){
+		if (timer == null)
+			timer = new Timer("CachedClock", true);
+		return timer;
+	}
+
+	/**
+	 * The boundaries of the periods containing a given instant.
+	 */
+	public static final class Today {
+		private final long time;
+		private final int dayKey;
+		private final long startOfDay;
+		private final long endOfDay;
+		private final long startOfWeek;
+		private final long endOfWeek;
+		private final long startOfMonth;
+		private final long endOfMonth;
+		private final long startOfQuarter;
+		private final long endOfQuarter;
+		private final long startOfYear;
+		private final long endOfYear;
+
+		Today(DateEngine engine, long time){
+			this.time = time;
+			this.dayKey = engine.dayKey(time);
+			this.startOfDay = engine.startOfDay(time);
+			this.endOfDay = engine.endOfDay(time);
+			this.startOfWeek = engine.startOfWeek(time);
+			this.endOfWeek = engine.endOfWeek(time);
+			this.startOfMonth = engine.startOfMonth(time);
+			this.endOfMonth = engine.endOfMonth(time);
+			this.startOfQuarter = engine.startOfQuarter(time);
+			this.endOfQuarter = engine.endOfQuarter(time);
+			this.startOfYear = engine.startOfYear(time);
+			this.endOfYear = engine.endOfYear(time);
+		}
+
+		/**
+		 * Returns true if the given time is within this day.
+		 * @param time
+		 * @return
+		 */
+		public boolean contains(long time){
+			return time >= startOfDay && time <= endOfDay;
+		}
+
+		/**
+		 * Returns the time at which these boundaries were calculated.
+		 * @return
+		 */
+		public long getTime(){
+			return time;
+		}
+
+		/**
+		 * Returns the day key (yyyymmdd, see DateMath.getDayKey()).
+		 * @return
+		 */
+		public int getDayKey(){
+			return dayKey;
+		}
+
+		public long getStartOfDay(){
+			return startOfDay;
+		}
+
+		public long getEndOfDay(){
+			return endOfDay;
+		}
+
+		public long getStartOfWeek(){
+			return startOfWeek;
+		}
+
+		public long getEndOfWeek(){
+			return endOfWeek;
+		}
+
+		public long getStartOfMonth(){
+			return startOfMonth;
+		}
+
+		public long getEndOfMonth(){
+			return endOfMonth;
+		}
+
+		public long getStartOfQuarter(){
+			return startOfQuarter;
+		}
+
+		public long getEndOfQuarter(){
+			return endOfQuarter;
+		}
+
+		public long getStartOfYear(){
+			return startOfYear;
+		}
+
+		public long getEndOfYear(){
+			return endOfYear;
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package ca.digitalcave.moss.common;
+
+/**
+ * @author wyatt
+ * Receives progress reports from StreamUtil's measured copy methods.  Reports are
+ * made on the copying thread, at most once per reporting interval, and once more when
+ * the copy ends; listeners should return quickly.
+ */
+public interface CopyListener {
+	/**
+	 * @param bytes The number of bytes written so far
+	 * @param elapsedNanos The time since the copy started
+	 */
+	public void progress(long bytes, long elapsedNanos);
+}
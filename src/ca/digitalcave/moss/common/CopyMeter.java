@@ -0,0 +1,61 @@
+package ca.digitalcave.moss.common;
+
+/**
+ * @author wyatt
+ * Measures a single copy for StreamUtil: the copy loop calls read() and wrote() after
+ * each call to the underlying streams, passing the System.nanoTime() from before the
+ * call, and finish() at the end.  The read and write counters may be updated by two
+ * different threads (as in CopyPipeline), as long as the reads happen before the
+ * writes which follow them.
+ */
+final class CopyMeter {
+	private final CopyMetrics metrics = CopyMetrics.getInstance();
+	private final CopyListener listener;
+	private final long intervalNanos;
+	private final long start = System.nanoTime();
+	private long nextReport;
+
+	private long bytes;
+	private long reads;
+	private long writes;
+	private long readNanos;
+	private long writeNanos;
+
+	CopyMeter(CopyListener listener, long intervalMillis){
+		this.listener = listener;
+		this.intervalNanos = intervalMillis * 1000000;
+		this.nextReport = start + intervalNanos;
+	}
+
+	void read(long started){
+		long nanos = System.nanoTime() - started;
+		reads++;
+		readNanos += nanos;
+		metrics.recordRead(nanos);
+	}
+
+	void wrote(long started, long length){
+		long now = System.nanoTime();
+		long nanos = now - started;
+		writes++;
+		writeNanos += nanos;
+		bytes += length;
+		metrics.recordWrite(nanos);
+		if (listener != null && now - nextReport >= 0){
+			nextReport = now + intervalNanos;
+			listener.progress(bytes, now - start);
+		}
+	}
+
+	/**
+	 * Returns the result, and adds it to the CopyMetrics.
+	 */
+	CopyResult finish(boolean succeeded){
+		long elapsed = System.nanoTime() - start;
+		CopyResult result = new CopyResult(bytes, elapsed, readNanos, writeNanos, reads, writes);
+		metrics.record(result, succeeded);
+		if (listener != null)
+			listener.progress(bytes, elapsed);
+		return result;
+	}
+}
@@ -0,0 +1,166 @@
+package ca.digitalcave.moss.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * @author wyatt
+ * Totals over every copy made by StreamUtil in this JVM (copyStream(), copyChannel(),
+ * copyStreamAsync() and the measured variants): the number of copies, bytes, time, and
+ * time blocked reading and writing.  The single instance is registered with the
+ * platform MBean server as ca.digitalcave.moss.common:type=CopyMetrics, so it can be
+ * read with JConsole or any local JMX scraper.
+ *
+ * The latency histograms count individual read and write calls by duration: bucket i
+ * counts calls which took from 2^i up to 2^(i + 1) nanoseconds (bucket 0 includes
+ * calls which took no measurable time).
+ *
+ * Counters are LongAdders, so recording does not contend between threads.
+ */
+public final class CopyMetrics implements CopyMetricsMBean {
+	public static final String OBJECT_NAME = "ca.digitalcave.moss.common:type=CopyMetrics";
+
+	private static final CopyMetrics instance = new CopyMetrics();
+	private static boolean registered;
+
+	private final LongAdder copies = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder elapsedNanos = new LongAdder();
+	private final LongAdder readNanos = new LongAdder();
+	private final LongAdder writeNanos = new LongAdder();
+	private final LongAdder[] readLatencies = newHistogram();
+	private final LongAdder[] writeLatencies = newHistogram();
+
+	/**
+	 * Returns the metrics for this JVM, registering them with JMX on first use (if that
+	 * fails, the metrics are still kept).
+	 * @return
+	 */
+	public static synchronized CopyMetrics getInstance(){
+		if (!registered){
+			registered = true;
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+			}
+			catch (Exception e){
+				//Already registered by another class loader, or JMX is not available
+			}
+		}
+		return instance;
+	}
+
+	private CopyMetrics(){
+	}
+
+	void record(CopyResult result, boolean succeeded){
+		copies.increment();
+		if (!succeeded)
+			failures.increment();
+		bytes.add(result.getBytes());
+		elapsedNanos.add(result.getElapsedNanos());
+		readNanos.add(result.getReadNanos());
+		writeNanos.add(result.getWriteNanos());
+	}
+
+	void recordRead(long nanos){
+		readLatencies[bucket(nanos)].increment();
+	}
+
+	void recordWrite(long nanos){
+		writeLatencies[bucket(nanos)].increment();
+	}
+
+	/**
+	 * Returns the number of copies which have finished (successfully or not).
+	 */
+	public long getCopies(){
+		return copies.sum();
+	}
+
+	/**
+	 * Returns the number of copies which failed or were cancelled.
+	 */
+	public long getFailures(){
+		return failures.sum();
+	}
+
+	public long getBytes(){
+		return bytes.sum();
+	}
+
+	/**
+	 * Returns the total time taken by all copies.
+	 */
+	public long getElapsedMillis(){
+		return elapsedNanos.sum() / 1000000;
+	}
+
+	public long getReadMillis(){
+		return readNanos.sum() / 1000000;
+	}
+
+	public long getWriteMillis(){
+		return writeNanos.sum() / 1000000;
+	}
+
+	/**
+	 * Returns the average throughput of a copy: total bytes over total copy time.
+	 */
+	public double getBytesPerSecond(){
+		long nanos = elapsedNanos.sum();
+		return nanos == 0 ? 0 : bytes.sum() * 1e9 / nanos;
+	}
+
+	public long[] getReadLatencyHistogram(){
+		return sum(readLatencies);
+	}
+
+	public long[] getWriteLatencyHistogram(){
+		return sum(writeLatencies);
+	}
+
+	/**
+	 * Sets all of the counters back to zero.
+	 */
+	public void reset(){
+		copies.reset();
+		failures.reset();
+		bytes.reset();
+		elapsedNanos.reset();
+		readNanos.reset();
+		writeNanos.reset();
+		for (int i = 0; i < readLatencies.length; i++){
+			readLatencies[i].reset();
+			writeLatencies[i].reset();
+		}
+	}
+
+	@Override
+	public String toString(){
+		return "CopyMetrics[copies=" + getCopies() + ", failures=" + getFailures() + ", bytes=" + getBytes()
+				+ ", elapsed=" + getElapsedMillis() + "ms, read=" + getReadMillis() + "ms, write=" + getWriteMillis() + "ms]";
+	}
+
+	private static int bucket(long nanos){
+		return nanos <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+	}
+
+	private static LongAdder[] newHistogram(){
+		LongAdder[] histogram = new LongAdder[64];
+		for (int i = 0; i < histogram.length; i++){
+			histogram[i] = new LongAdder();
+		}
+		return histogram;
+	}
+
+	private static long[] sum(LongAdder[] histogram){
+		long[] result = new long[histogram.length];
+		for (int i = 0; i < histogram.length; i++){
+			result[i] = histogram[i].sum();
+		}
+		return result;
+	}
+}
@@ -0,0 +1,18 @@
+package ca.digitalcave.moss.common;
+
+/**
+ * @author wyatt
+ * The JMX view of CopyMetrics.
+ */
+public interface CopyMetricsMBean {
+	public long getCopies();
+	public long getFailures();
+	public long getBytes();
+	public long getElapsedMillis();
+	public long getReadMillis();
+	public long getWriteMillis();
+	public double getBytesPerSecond();
+	public long[] getReadLatencyHistogram();
+	public long[] getWriteLatencyHistogram();
+	public void reset();
+}
@@ -0,0 +1,249 @@
+package ca.digitalcave.moss.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author wyatt
+ * A copy from an input stream to an output stream, split into a reader and a writer
+ * task so that reading the next block overlaps writing the last one.  This is the
+ * future returned by StreamUtil.copyStreamAsync(); it completes with the number of
+ * bytes copied.
+ *
+ * The tasks pass blocks through a ring of buffers (borrowed from the default
+ * BufferPool).  The reader only advances the tail and the writer only advances the
+ * head, so the ring needs no locks; a task which finds the ring full (or empty) parks
+ * until the other one moves.
+ *
+ * Cancelling the future stops both tasks; with mayInterruptIfRunning, the threads
+ * running them are also interrupted, which breaks out of interruptible reads and
+ * writes.  If either side fails, the other is stopped and the future completes with
+ * the exception.  As with copyStream(), the output stream is flushed and closed when
+ * the copy succeeds, and the input stream is not closed.  The copy is recorded in
+ * CopyMetrics.
+ */
+final class CopyPipeline extends CompletableFuture<Long> {
+	private final InputStream is;
+	private final OutputStream os;
+	private final byte[][] buffers;
+	private final int[] lengths;
+
+	//Blocks are read into slot tail % depth and written from slot head % depth
+	private volatile long head;
+	private volatile long tail;
+	private volatile boolean stopped;
+	private volatile Thread readerWaiting;
+	private volatile Thread writerWaiting;
+
+	//Set by the reader before publishing the slot which ends the input
+	private IOException readError;
+
+	//The threads running each task, for cancel(true); guarded by this
+	private Thread readerThread;
+	private Thread writerThread;
+
+	private final AtomicInteger running = new AtomicInteger(2);
+	private final CopyMeter meter = new CopyMeter(null, 0);
+
+	CopyPipeline(InputStream is, OutputStream os, int bufferSize, int depth){
+		if (is == null)
+			throw new NullPointerException("is");
+		if (os == null)
+			throw new NullPointerException("os");
+		if (depth < 2)
+			throw new IllegalArgumentException("Depth must be at least 2: " + depth);
+		this.is = is;
+		this.os = os;
+		this.buffers = new byte[depth][];
+		this.lengths = new int[depth];
+		for (int i = 0; i < depth; i++){
+			buffers[i] = BufferPool.getDefault().borrowArray(bufferSize);
+		}
+	}
+
+	/**
+	 * Submits the reader and writer tasks to the executor.
+	 */
+	void start(Executor executor){
+		Runnable reader = new Runnable() {
+			public void run() {
+				runReader();
+			}
+		};
+		Runnable writer = new Runnable() {
+			public void run() {
+				runWriter();
+			}
+		};
+		int started = 0;
+		try {
+			executor.execute(reader);
+			started++;
+			executor.execute(writer);
+			started++;
+		}
+		catch (RuntimeException re){
+			fail(re);
+			//The tasks which did not start will never release the buffers
+			for (int i = started; i < 2; i++){
+				finished();
+			}
+		}
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning){
+		boolean cancelled = super.cancel(mayInterruptIfRunning);
+		stop(mayInterruptIfRunning);
+		return cancelled;
+	}
+
+	private void runReader(){
+		synchronized (this){
+			readerThread = Thread.currentThread();
+		}
+		try {
+			int depth = buffers.length;
+			while (!stopped){
+				long t = tail;
+				readerWaiting = Thread.currentThread();
+				try {
+					while (t - head >= depth && !stopped){
+						LockSupport.park(this);
+						if (Thread.interrupted())
+							throw new InterruptedIOException("Copy interrupted");
+					}
+				}
+				finally {
+					readerWaiting = null;
+				}
+				if (stopped)
+					return;
+
+				int slot = (int) (t % depth);
+				int bytesRead;
+				long started = System.nanoTime();
+				try {
+					bytesRead = is.read(buffers[slot]);
+					meter.read(started);
+				}
+				catch (IOException ioe){
+					readError = ioe;
+					bytesRead = -1;
+				}
+				lengths[slot] = bytesRead;
+				tail = t + 1;
+				LockSupport.unpark(writerWaiting);
+				if (bytesRead < 0)
+					return;
+			}
+		}
+		catch (Throwable t){
+			fail(t);
+		}
+		finally {
+			synchronized (this){
+				readerThread = null;
+			}
+			//Don't leave our interrupt on an executor thread
+			if (stopped)
+				Thread.interrupted();
+			finished();
+		}
+	}
+
+	private void runWriter(){
+		synchronized (this){
+			writerThread = Thread.currentThread();
+		}
+		try {
+			int depth = buffers.length;
+			long total = 0;
+			while (!stopped){
+				long h = head;
+				writerWaiting = Thread.currentThread();
+				try {
+					while (tail == h && !stopped){
+						LockSupport.park(this);
+						if (Thread.interrupted())
+							throw new InterruptedIOException("Copy interrupted");
+					}
+				}
+				finally {
+					writerWaiting = null;
+				}
+				if (stopped)
+					return;
+
+				int slot = (int) (h % depth);
+				int length = lengths[slot];
+				if (length < 0){
+					if (readError != null)
+						throw readError;
+					long started = System.nanoTime();
+					os.flush();
+					os.close();
+					meter.wrote(started, 0);
+					complete(total);
+					return;
+				}
+				long started = System.nanoTime();
+				os.write(buffers[slot], 0, length);
+				meter.wrote(started, length);
+				total += length;
+				head = h + 1;
+				LockSupport.unpark(readerWaiting);
+			}
+		}
+		catch (Throwable t){
+			fail(t);
+		}
+		finally {
+			synchronized (this){
+				writerThread = null;
+			}
+			//Don't leave our interrupt on an executor thread
+			if (stopped)
+				Thread.interrupted();
+			finished();
+		}
+	}
+
+	private void fail(Throwable t){
+		completeExceptionally(t);
+		stop(false);
+	}
+
+	private void stop(boolean interrupt){
+		stopped = true;
+		LockSupport.unpark(readerWaiting);
+		LockSupport.unpark(writerWaiting);
+		if (interrupt){
+			synchronized (this){
+				if (readerThread != null)
+					readerThread.interrupt();
+				if (writerThread != null)
+					writerThread.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Called as each task ends; the last one records the copy in CopyMetrics and returns
+	 * the buffers to the pool.
+	 */
+	private void finished(){
+		if (running.decrementAndGet() == 0){
+			meter.finish(isDone() && !isCompletedExceptionally());
+			for (byte[] buffer : buffers){
+				BufferPool.getDefault().releaseArray(buffer);
+			}
+		}
+	}
+}
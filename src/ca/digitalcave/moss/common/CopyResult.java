@@ -0,0 +1,93 @@
+package ca.digitalcave.moss.common;
+
+/**
+ * @author wyatt
+ * What happened during a copy made by one of StreamUtil's measured copy methods: how
+ * many bytes were copied, how long it took, and how much of that time was spent
+ * waiting to read and waiting to write.  If read time dominates, the source is the
+ * bottleneck; if write time does, the destination is.
+ *
+ * Reads and writes are counted per call to the underlying stream or channel.  When
+ * the copy is done by the kernel (file to file), there are no separate reads; each
+ * transfer is counted as a write.
+ */
+public final class CopyResult {
+	private final long bytes;
+	private final long elapsedNanos;
+	private final long readNanos;
+	private final long writeNanos;
+	private final long reads;
+	private final long writes;
+
+	CopyResult(long bytes, long elapsedNanos, long readNanos, long writeNanos, long reads, long writes){
+		this.bytes = bytes;
+		this.elapsedNanos = elapsedNanos;
+		this.readNanos = readNanos;
+		this.writeNanos = writeNanos;
+		this.reads = reads;
+		this.writes = writes;
+	}
+
+	/**
+	 * Returns the number of bytes copied.
+	 * @return
+	 */
+	public long getBytes(){
+		return bytes;
+	}
+
+	/**
+	 * Returns the time from the start of the copy to the end (including closing the
+	 * output), in nanoseconds.
+	 * @return
+	 */
+	public long getElapsedNanos(){
+		return elapsedNanos;
+	}
+
+	/**
+	 * Returns the time spent in read calls, in nanoseconds.
+	 * @return
+	 */
+	public long getReadNanos(){
+		return readNanos;
+	}
+
+	/**
+	 * Returns the time spent in write (and flush / close) calls, in nanoseconds.
+	 * @return
+	 */
+	public long getWriteNanos(){
+		return writeNanos;
+	}
+
+	/**
+	 * Returns the number of read calls.
+	 * @return
+	 */
+	public long getReads(){
+		return reads;
+	}
+
+	/**
+	 * Returns the number of write calls.
+	 * @return
+	 */
+	public long getWrites(){
+		return writes;
+	}
+
+	/**
+	 * Returns the average number of bytes copied per second.
+	 * @return
+	 */
+	public double getBytesPerSecond(){
+		return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos;
+	}
+
+	@Override
+	public String toString(){
+		return "CopyResult[bytes=" + bytes + ", elapsed=" + elapsedNanos / 1000000 + "ms, read=" + readNanos / 1000000
+				+ "ms (" + reads + " calls), write=" + writeNanos / 1000000 + "ms (" + writes + " calls)]";
+	}
+}
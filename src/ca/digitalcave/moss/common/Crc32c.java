@@ -0,0 +1,82 @@
+package ca.digitalcave.moss.common;
+
+import java.util.zip.Checksum;
+
+/**
+ * @author wyatt
+ * CRC-32C (Castagnoli), as used by iSCSI, ext4 and cloud storage integrity checks.
+ * Java 9 added java.util.zip.CRC32C, which the JVM implements with the CPU's CRC32
+ * instructions; create() returns that when it is available, and otherwise this
+ * implementation, which processes eight bytes per step using lookup tables
+ * ("slicing by 8").
+ */
+final class Crc32c implements Checksum {
+	//Reflected form of the Castagnoli polynomial 0x1EDC6F41
+	private static final int POLYNOMIAL = 0x82F63B78;
+
+	//TABLES[k][b] is the CRC of byte b followed by k zero bytes
+	private static final int[][] TABLES = new int[8][256];
+	static {
+		for (int b = 0; b < 256; b++){
+			int crc = b;
+			for (int i = 0; i < 8; i++){
+				crc = (crc >>> 1) ^ (POLYNOMIAL & -(crc & 1));
+			}
+			TABLES[0][b] = crc;
+		}
+		for (int b = 0; b < 256; b++){
+			for (int k = 1; k < 8; k++){
+				int previous = TABLES[k - 1][b];
+				TABLES[k][b] = (previous >>> 8) ^ TABLES[0][previous & 0xFF];
+			}
+		}
+	}
+
+	private int crc = 0xFFFFFFFF;
+
+	/**
+	 * Returns a new CRC-32C checksum, using the JVM's own (intrinsic) implementation if
+	 * there is one.
+	 */
+	static Checksum create(){
+		try {
+			return (Checksum) Class.forName("java.util.zip.CRC32C").getDeclaredConstructor().newInstance();
+		}
+		catch (Exception e){
+			return new Crc32c();
+		}
+	}
+
+	@Override
+	public void update(int b){
+		crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len){
+		int c = crc;
+		int end = off + len;
+		int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+		int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+		while (end - off >= 8){
+			int low = c ^ ((b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24);
+			c = t7[low & 0xFF] ^ t6[(low >>> 8) & 0xFF] ^ t5[(low >>> 16) & 0xFF] ^ t4[low >>> 24]
+					^ t3[b[off + 4] & 0xFF] ^ t2[b[off + 5] & 0xFF] ^ t1[b[off + 6] & 0xFF] ^ t0[b[off + 7] & 0xFF];
+			off += 8;
+		}
+		while (off < end){
+			c = (c >>> 8) ^ t0[(c ^ b[off++]) & 0xFF];
+		}
+		crc = c;
+	}
+
+	@Override
+	public long getValue(){
+		return ~crc & 0xFFFFFFFFl;
+	}
+
+	@Override
+	public void reset(){
+		crc = 0xFFFFFFFF;
+	}
+}
@@ -0,0 +1,259 @@
+package ca.digitalcave.moss.common;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * @author wyatt
+ * Bulk versions of the DateUtil period methods, for arrays of timestamps (epoch
+ * miliseconds): getStartOf(PeriodType.WEEK, times) gives the same results as calling
+ * DateUtil.getStartOfWeek() on each, getEndOf(PeriodType.MONTH, ...) as getEndOfMonth(),
+ * and add(PeriodType.MONTH, times, n) as addMonths().
+ *
+ * Large arrays are split into chunks over the common ForkJoinPool.  Within a chunk,
+ * consecutive timestamps in the same period (which is the usual case for sorted or
+ * grouped data) reuse the boundaries calculated for the first one; for add(), those in
+ * the same day reuse its offset as long as neither that day nor the target day has a
+ * DST change.  (Only for locales which use the Gregorian calendar; others are calculated
+ * one at a time.)  The result array may be the input array, as long as each result
+ * goes in the same position as its input (offset == from) or the ranges do not overlap.
+ *
+ * Periods are in the given DateContext, or the default time zone and locale.  Instances
+ * are immutable and thread safe.
+ */
+public final class DateArrays {
+	//Arrays smaller than this are not split
+	private static final int MIN_CHUNK = 8192;
+
+	private static final int START = 0;
+	private static final int END = 1;
+	private static final int ADD = 2;
+
+	private final DateEngine engine;
+
+	/**
+	 * Creates an instance for the default time zone and locale.
+	 */
+	public DateArrays(){
+		this(DateEngine.getDefault());
+	}
+
+	/**
+	 * Creates an instance for the given context.
+	 * @param context
+	 */
+	public DateArrays(DateContext context){
+		this(context.getEngine());
+	}
+
+	private DateArrays(DateEngine engine){
+		this.engine = engine;
+	}
+
+	/**
+	 * Returns the first milisecond of the period of the given type containing each time.
+	 * @param type
+	 * @param times
+	 * @return
+	 */
+	public long[] getStartOf(PeriodType type, long[] times){
+		long[] result = new long[times.length];
+		getStartOf(type, times, 0, times.length, result, 0);
+		return result;
+	}
+
+	/**
+	 * Stores the first milisecond of the period of the given type containing each of
+	 * times[from] .. times[to - 1] into result, starting at result[offset].
+	 * @param type
+	 * @param times
+	 * @param from
+	 * @param to
+	 * @param result
+	 * @param offset
+	 */
+	public void getStartOf(PeriodType type, long[] times, int from, int to, long[] result, int offset){
+		run(START, type, 0, times, from, to, result, offset);
+	}
+
+	/**
+	 * Returns the last milisecond of the period of the given type containing each time.
+	 * @param type
+	 * @param times
+	 * @return
+	 */
+	public long[] getEndOf(PeriodType type, long[] times){
+		long[] result = new long[times.length];
+		getEndOf(type, times, 0, times.length, result, 0);
+		return result;
+	}
+
+	/**
+	 * Stores the last milisecond of the period of the given type containing each of
+	 * times[from] .. times[to - 1] into result, starting at result[offset].
+	 * @param type
+	 * @param times
+	 * @param from
+	 * @param to
+	 * @param result
+	 * @param offset
+	 */
+	public void getEndOf(PeriodType type, long[] times, int from, int to, long[] result, int offset){
+		run(END, type, 0, times, from, to, result, offset);
+	}
+
+	/**
+	 * Returns each time moved by the given number of periods, as with DateUtil.addDays(),
+	 * addMonths(), etc.
+	 * @param type
+	 * @param times
+	 * @param amount
+	 * @return
+	 */
+	public long[] add(PeriodType type, long[] times, int amount){
+		long[] result = new long[times.length];
+		add(type, times, 0, times.length, amount, result, 0);
+		return result;
+	}
+
+	/**
+	 * Stores each of times[from] .. times[to - 1], moved by the given number of periods,
+	 * into result, starting at result[offset].
+	 * @param type
+	 * @param times
+	 * @param from
+	 * @param to
+	 * @param amount
+	 * @param result
+	 * @param offset
+	 */
+	public void add(PeriodType type, long[] times, int from, int to, int amount, long[] result, int offset){
+		run(ADD, type, amount, times, from, to, result, offset);
+	}
+
+	private void run(int operation, PeriodType type, int amount, long[] times, int from, int to, long[] result, int offset){
+		if (type == null)
+			throw new NullPointerException("type");
+		if (from < 0 || to > times.length || from > to)
+			throw new IndexOutOfBoundsException("Range " + from + " - " + to + " is not within the input (length " + times.length + ")");
+		if (offset < 0 || offset + (to - from) > result.length)
+			throw new IndexOutOfBoundsException("Result (length " + result.length + ") is too short for " + (to - from) + " values at " + offset);
+		//Chunks run in any order, so a shifted overlap would overwrite times before they are read
+		if (result == times && offset != from && offset < to && from < offset + (to - from))
+			throw new IllegalArgumentException("The result range (at " + offset + ") overlaps the input range (at " + from + ")");
+
+		int chunkSize = Math.max(MIN_CHUNK, (to - from) / (ForkJoinPool.getCommonPoolParallelism() * 4));
+		if (to - from <= chunkSize)
+			apply(operation, type, amount, times, from, to, result, offset);
+		else
+			ForkJoinPool.commonPool().invoke(new ChunkTask(operation, type, amount, times, from, to, result, offset, chunkSize));
+	}
+
+	private void apply(int operation, PeriodType type, int amount, long[] times, int from, int to, long[] result, int offset){
+		if (operation == ADD)
+			applyAdd(type, amount, times, from, to, result, offset);
+		else
+			applyBoundary(operation == START, type, times, from, to, result, offset);
+	}
+
+	private void applyBoundary(boolean start, PeriodType type, long[] times, int from, int to, long[] result, int offset){
+		//Other calendars can split a period at an era change, so we only reuse Gregorian ones
+		boolean reuse = engine.isGregorian();
+		//The period of the last time which we calculated
+		long periodStart = 1;
+		long periodEnd = 0;
+		for (int i = from; i < to; i++){
+			long time = times[i];
+			if (time < periodStart || time > periodEnd){
+				periodStart = engine.startOf(type, time);
+				periodEnd = engine.endOf(type, time);
+				if (!reuse || time < periodStart || time > periodEnd || engine.startOf(type, periodEnd) != periodStart){
+					//Don't reuse these (the time is outside of its own period around skipped days,
+					// or the end falls in the next period, when DST skips the hour before midnight)
+					result[offset + i - from] = start ? periodStart : periodEnd;
+					periodStart = 1;
+					periodEnd = 0;
+					continue;
+				}
+			}
+			result[offset + i - from] = start ? periodStart : periodEnd;
+		}
+	}
+
+	private void applyAdd(PeriodType type, int amount, long[] times, int from, int to, long[] result, int offset){
+		ZoneOffsetTable zone = engine.getZone();
+		boolean reuse = engine.isGregorian();
+		//The day of the last time which we calculated, and how far it moved
+		long dayStart = 1;
+		long dayEnd = 0;
+		long shift = 0;
+		for (int i = from; i < to; i++){
+			long time = times[i];
+			if (time >= dayStart && time <= dayEnd){
+				result[offset + i - from] = time + shift;
+				continue;
+			}
+			long moved = engine.add(type, time, amount);
+			result[offset + i - from] = moved;
+
+			//Every time in the same day lands on the same target day, at the same time
+			// of day; if neither day has an offset change, they all move by the same amount.
+			// We also avoid the days either side, since a change at midnight can repeat
+			// part of a day or move it into the next.
+			dayStart = 1;
+			dayEnd = 0;
+			if (reuse){
+				long start = dayStart(zone, time);
+				long target = dayStart(zone, moved);
+				if (!zone.mayChangeBetween(start - DateEngine.MILLIS_PER_DAY, start + 2 * DateEngine.MILLIS_PER_DAY)
+						&& !zone.mayChangeBetween(target - DateEngine.MILLIS_PER_DAY, target + 2 * DateEngine.MILLIS_PER_DAY)){
+					dayStart = start;
+					dayEnd = start + DateEngine.MILLIS_PER_DAY - 1;
+					shift = moved - time;
+				}
+			}
+		}
+	}
+
+	private static long dayStart(ZoneOffsetTable zone, long time){
+		int offset = zone.getOffset(time);
+		return Math.floorDiv(time + offset, DateEngine.MILLIS_PER_DAY) * DateEngine.MILLIS_PER_DAY - offset;
+	}
+
+	private class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int operation;
+		private final PeriodType type;
+		private final int amount;
+		private final long[] times;
+		private final int from;
+		private final int to;
+		private final long[] result;
+		private final int offset;
+		private final int chunkSize;
+
+		ChunkTask(int operation, PeriodType type, int amount, long[] times, int from, int to, long[] result, int offset, int chunkSize){
+			this.operation = operation;
+			this.type = type;
+			this.amount = amount;
+			this.times = times;
+			this.from = from;
+			this.to = to;
+			this.result = result;
+			this.offset = offset;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		protected void compute(){
+			if (to - from <= chunkSize){
+				apply(operation, type, amount, times, from, to, result, offset);
+				return;
+			}
+			int mid = from + (to - from) / 2;
+			invokeAll(new ChunkTask(operation, type, amount, times, from, mid, result, offset, chunkSize),
+					new ChunkTask(operation, type, amount, times, mid, to, result, offset + (mid - from), chunkSize));
+		}
+	}
+}
@@ -0,0 +1,777 @@
+package ca.digitalcave.moss.common;
+
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * @author wyatt
+ * The DateUtil functions for an explicit time zone and locale, instead of the JVM
+ * defaults.  A context reads the zone, first day of week and minimal days in the
+ * first week once, when it is created, and keeps the zone's offset table; nothing
+ * is looked up again per call.  This is the class to use on a server which handles
+ * users in many time zones.
+ *
+ * Each function is available both for Dates (with the same null handling as DateUtil)
+ * and for long timestamps (as with DateMath).
+ *
+ * Instances are immutable and thread safe; forZone() returns a shared instance.
+ */
+public final class DateContext {
+	private static final ConcurrentMap<String, DateContext> cache = new ConcurrentHashMap<String, DateContext>();
+
+	private final DateEngine engine;
+
+	/**
+	 * Returns a (shared) context for the given zone and locale.
+	 * @param zone
+	 * @param locale
+	 * @return
+	 */
+	public static DateContext forZone(TimeZone zone, Locale locale){
+		if (zone == null)
+			throw new NullPointerException("zone");
+		if (locale == null)
+			throw new NullPointerException("locale");
+		String key = zone.getID() + "/" + locale;
+		DateContext context = cache.get(key);
+		//The offset table is replaced if the zone's rules are not the same
+		if (context == null || context.engine.getZone() != ZoneOffsetTable.forZone(zone)){
+			context = new DateContext(zone, locale);
+			cache.put(key, context);
+		}
+		return context;
+	}
+
+	/**
+	 * Returns a context for the current JVM default time zone and locale; this is what
+	 * DateUtil and DateMath use.
+	 * @return
+	 */
+	public static DateContext getDefault(){
+		return new DateContext(DateEngine.getDefault());
+	}
+
+	/**
+	 * Creates a context for the given zone, using the week definition of the given locale.
+	 * @param zone
+	 * @param locale
+	 */
+	public DateContext(TimeZone zone, Locale locale){
+		this(zone, locale, 0, 0);
+	}
+
+	/**
+	 * Creates a context for the given zone and locale, with the given week definition.
+	 * @param zone
+	 * @param locale
+	 * @param firstDayOfWeek The first day of the week (Calendar.SUNDAY, Calendar.MONDAY, etc), or 0 to use the locale's
+	 * @param minimalDaysInFirstWeek The minimal days in the first week of the year, or 0 to use the locale's
+	 */
+	public DateContext(TimeZone zone, Locale locale, int firstDayOfWeek, int minimalDaysInFirstWeek){
+		if (zone == null)
+			throw new NullPointerException("zone");
+		if (locale == null)
+			throw new NullPointerException("locale");
+		if (firstDayOfWeek < 0 || firstDayOfWeek > 7)
+			throw new IllegalArgumentException("Invalid first day of week: " + firstDayOfWeek);
+		if (minimalDaysInFirstWeek < 0 || minimalDaysInFirstWeek > 7)
+			throw new IllegalArgumentException("Invalid minimal days in first week: " + minimalDaysInFirstWeek);
+		this.engine = new DateEngine(zone, locale, firstDayOfWeek, minimalDaysInFirstWeek);
+	}
+
+	private DateContext(DateEngine engine){
+		this.engine = engine;
+	}
+
+	DateEngine getEngine(){
+		return engine;
+	}
+
+	/**
+	 * Returns a copy of the time zone.
+	 * @return
+	 */
+	public TimeZone getTimeZone(){
+		return engine.getZone().getTimeZone();
+	}
+
+	public Locale getLocale(){
+		return engine.getLocale();
+	}
+
+	public int getFirstDayOfWeek(){
+		return engine.getFirstDayOfWeek();
+	}
+
+	public int getMinimalDaysInFirstWeek(){
+		return engine.getMinimalDaysInFirstWeek();
+	}
+
+	/*
+	 * Boundaries
+	 */
+
+	/**
+	 * Returns the first milisecond in the given date.  If date is null, returns null.
+	 * @param date
+	 * @return
+	 */
+	public Date getStartOfDay(Date date){
+		if (date == null)
+			return null;
+		return new Date(engine.startOfDay(date.getTime()));
+	}
+
+	public long getStartOfDay(long date){
+		return engine.startOfDay(date);
+	}
+
+	/**
+	 * Returns the last milisecond in the given date.  If date is null, returns null.
+	 * @param date
+	 * @return
+	 */
+	public Date getEndOfDay(Date date){
+		if (date == null)
+			return null;
+		return new Date(engine.endOfDay(date.getTime()));
+	}
+
+	public long getEndOfDay(long date){
+		return engine.endOfDay(date);
+	}
+
+	/**
+	 * Returns the start of the week for the given date.  If date is null, returns null.
+	 * @param date
+	 * @return
+	 */
+	public Date getStartOfWeek(Date date){
+		if (date == null)
+			return null;
+		return new Date(engine.startOfWeek(date.getTime()));
+	}
+
+	public long getStartOfWeek(long date){
+		return engine.startOfWeek(date);
+	}
+
+	/**
+	 * Returns the last milisecond in the week of the given date.  If date is null, returns null.
+	 * @param date
+	 * @return
+	 */
+	public Date getEndOfWeek(Date date){
+		if (date == null)
+			return null;
+		return new Date(engine.endOfWeek(date.getTime()));
+	}
+
+	public long getEndOfWeek(long date){
+		return engine.endOfWeek(date);
+	}
+
+	/**
+	 * Returns the start of the month of the given date.  If date is null, returns null.
+	 * @param date
+	 * @return
+	 */
+	public Date getStartOfMonth(Date date){
+		if (date == null)
+			return null;
+		return new Date(engine.startOfMonth(date.getTime()));
+	}
+
+	public long getStartOfMonth(long date){
+		return engine.startOfMonth(date);
+	}
+
+	/**
+	 * Returns the end of the month of the given date.  If date is null, returns null.
+	 * @param date
+	 * @return
+	 */
+	public Date getEndOfMonth(Date date){
+		if (date == null)
+			return null;
+		return new Date(engine.endOfMonth(date.getTime()));
+	}
+
+	public long getEndOfMonth(long date){
+		return engine.endOfMonth(date);
+	}
+
+	/**
+	 * Returns the beginning of the quarter.  If date is null, returns null.
+	 * @param date
+	 * @return
+	 */
+	public Date getStartOfQuarter(Date date){
+		if (date == null)
+			return null;
+		return new Date(engine.startOfQuarter(date.getTime()));
+	}
+
+	public long getStartOfQuarter(long date){
+		return engine.startOfQuarter(date);
+	}
+
+	/**
+	 * Returns the last milisecond of the quarter.  If date is null, returns null.
+	 * @param date
+	 * @return
+	 */
+	public Date getEndOfQuarter(Date date){
+		if (date == null)
+			return null;
+		return new Date(engine.endOfQuarter(date.getTime()));
+	}
+
+	public long getEndOfQuarter(long date){
+		return engine.endOfQuarter(date);
+	}
+
+	/**
+	 * Returns the start of the year of the given date.  If date is null, returns null.
+	 * @param date
+	 * @return
+	 */
+	public Date getStartOfYear(Date date){
+		if (date == null)
+			return null;
+		return new Date(engine.startOfYear(date.getTime()));
+	}
+
+	public long getStartOfYear(long date){
+		return engine.startOfYear(date);
+	}
+
+	/**
+	 * Returns the end of the year of the given date.  If date is null, returns null.
+	 * @param date
+	 * @return
+	 */
+	public Date getEndOfYear(Date date){
+		if (date == null)
+			return null;
+		return new Date(engine.endOfYear(date.getTime()));
+	}
+
+	public long getEndOfYear(long date){
+		return engine.endOfYear(date);
+	}
+
+	/*
+	 * Addition
+	 */
+
+	/**
+	 * Returns the date which is offset amount from the given date.  If date is null, returns null.
+	 * @param date
+	 * @param offset
+	 * @return
+	 */
+	public Date addSeconds(Date date, int offset){
+		if (date == null)
+			return null;
+		return new Date(engine.addSeconds(date.getTime(), offset));
+	}
+
+	public long addSeconds(long date, int offset){
+		return engine.addSeconds(date, offset);
+	}
+
+	/**
+	 * Returns the date which is offset amount from the given date.  If date is null, returns null.
+	 * @param date
+	 * @param offset
+	 * @return
+	 */
+	public Date addMinutes(Date date, int offset){
+		if (date == null)
+			return null;
+		return new Date(engine.addMinutes(date.getTime(), offset));
+	}
+
+	public long addMinutes(long date, int offset){
+		return engine.addMinutes(date, offset);
+	}
+
+	/**
+	 * Returns the date which is offset amount from the given date.  If date is null, returns null.
+	 * @param date
+	 * @param offset
+	 * @return
+	 */
+	public Date addHours(Date date, int offset){
+		if (date == null)
+			return null;
+		return new Date(engine.addHours(date.getTime(), offset));
+	}
+
+	public long addHours(long date, int offset){
+		return engine.addHours(date, offset);
+	}
+
+	/**
+	 * Returns the date which is offset amount from the given date, at the same time.  If date is null, returns null.
+	 * @param date
+	 * @param offset
+	 * @return
+	 */
+	public Date addDays(Date date, int offset){
+		if (date == null)
+			return null;
+		return new Date(engine.addDays(date.getTime(), offset));
+	}
+
+	public long addDays(long date, int offset){
+		return engine.addDays(date, offset);
+	}
+
+	/**
+	 * Returns the date which is offset amount from the given date, at the same time.  If date is null, returns null.
+	 * @param date
+	 * @param offset
+	 * @return
+	 */
+	public Date addMonths(Date date, int offset){
+		if (date == null)
+			return null;
+		return new Date(engine.addMonths(date.getTime(), offset));
+	}
+
+	public long addMonths(long date, int offset){
+		return engine.addMonths(date, offset);
+	}
+
+	/**
+	 * Returns the date which is offset quarters (3 months each) from the given date.  If date is null, returns null.
+	 * @param date
+	 * @param quarterOffset
+	 * @return
+	 */
+	public Date addQuarters(Date date, int quarterOffset){
+		if (date == null)
+			return null;
+		return new Date(engine.addQuarters(date.getTime(), quarterOffset));
+	}
+
+	public long addQuarters(long date, int quarterOffset){
+		return engine.addQuarters(date, quarterOffset);
+	}
+
+	/**
+	 * Returns the date which is offset amount from the given date, at the same time.  If date is null, returns null.
+	 * @param date
+	 * @param offset
+	 * @return
+	 */
+	public Date addYears(Date date, int offset){
+		if (date == null)
+			return null;
+		return new Date(engine.addYears(date.getTime(), offset));
+	}
+
+	public long addYears(long date, int offset){
+		return engine.addYears(date, offset);
+	}
+
+	/*
+	 * Differences; see DateUtil for how each is defined.
+	 */
+
+	/**
+	 * Returns the number of days between the two given dates.  If either date is null, returns 0.
+	 * @param first
+	 * @param last
+	 * @param inclusive
+	 * @return
+	 */
+	public int getDaysBetween(Date first, Date last, boolean inclusive){
+		if (first == null || last == null)
+			return 0;
+		return engine.daysBetween(first.getTime(), last.getTime(), inclusive);
+	}
+
+	public int getDaysBetween(long first, long last, boolean inclusive){
+		return engine.daysBetween(first, last, inclusive);
+	}
+
+	/**
+	 * Returns the number of weeks between the two given dates.  If either date is null, returns 0.
+	 * @param first
+	 * @param last
+	 * @param inclusive
+	 * @return
+	 */
+	public int getWeeksBetween(Date first, Date last, boolean inclusive){
+		if (first == null || last == null)
+			return 0;
+		return engine.weeksBetween(first.getTime(), last.getTime(), inclusive);
+	}
+
+	public int getWeeksBetween(long first, long last, boolean inclusive){
+		return engine.weeksBetween(first, last, inclusive);
+	}
+
+	/**
+	 * Returns the number of months between the two given dates.  If either date is null, returns 0.
+	 * @param first
+	 * @param last
+	 * @param inclusive
+	 * @return
+	 */
+	public int getMonthsBetween(Date first, Date last, boolean inclusive){
+		if (first == null || last == null)
+			return 0;
+		return engine.monthsBetween(first.getTime(), last.getTime(), inclusive);
+	}
+
+	public int getMonthsBetween(long first, long last, boolean inclusive){
+		return engine.monthsBetween(first, last, inclusive);
+	}
+
+	/**
+	 * Returns the number of quarters between the two given dates.  If either date is null, returns 0.
+	 * @param first
+	 * @param last
+	 * @param inclusive
+	 * @return
+	 */
+	public int getQuartersBetween(Date first, Date last, boolean inclusive){
+		if (first == null || last == null)
+			return 0;
+		return engine.quartersBetween(first.getTime(), last.getTime(), inclusive);
+	}
+
+	public int getQuartersBetween(long first, long last, boolean inclusive){
+		return engine.quartersBetween(first, last, inclusive);
+	}
+
+	/**
+	 * Returns the number of years between the two given dates.  If either date is null, returns 0.
+	 * @param first
+	 * @param last
+	 * @param inclusive
+	 * @return
+	 */
+	public int getYearsBetween(Date first, Date last, boolean inclusive){
+		if (first == null || last == null)
+			return 0;
+		return engine.yearsBetween(first.getTime(), last.getTime(), inclusive);
+	}
+
+	public int getYearsBetween(long first, long last, boolean inclusive){
+		return engine.yearsBetween(first, last, inclusive);
+	}
+
+	/*
+	 * Fields
+	 */
+
+	/**
+	 * Return the year for the given date.  If date is null, return 0.
+	 * @param date
+	 * @return
+	 */
+	public int getYear(Date date){
+		if (date == null)
+			return 0;
+		return engine.year(date.getTime());
+	}
+
+	public int getYear(long date){
+		return engine.year(date);
+	}
+
+	/**
+	 * Return the month for the given date.  January is 0, etc.  If date is null, return -1.
+	 * @param date
+	 * @return
+	 */
+	public int getMonth(Date date){
+		if (date == null)
+			return -1;
+		return engine.month(date.getTime());
+	}
+
+	public int getMonth(long date){
+		return engine.month(date);
+	}
+
+	/**
+	 * Return the day of the month for the given date.  If date is null, return 0.
+	 * @param date
+	 * @return
+	 */
+	public int getDay(Date date){
+		if (date == null)
+			return 0;
+		return engine.day(date.getTime());
+	}
+
+	public int getDay(long date){
+		return engine.day(date);
+	}
+
+	/**
+	 * Return the hour (in 24 hour format).  If date is null, return -1.
+	 * @param date
+	 * @return
+	 */
+	public int getHour(Date date){
+		if (date == null)
+			return -1;
+		return engine.hour(date.getTime());
+	}
+
+	public int getHour(long date){
+		return engine.hour(date);
+	}
+
+	/**
+	 * Return the minute for the given date.  If date is null, return -1.
+	 * @param date
+	 * @return
+	 */
+	public int getMinute(Date date){
+		if (date == null)
+			return -1;
+		return engine.minute(date.getTime());
+	}
+
+	public int getMinute(long date){
+		return engine.minute(date);
+	}
+
+	/**
+	 * Return the second for the given date.  If date is null, return -1.
+	 * @param date
+	 * @return
+	 */
+	public int getSecond(Date date){
+		if (date == null)
+			return -1;
+		return engine.second(date.getTime());
+	}
+
+	public int getSecond(long date){
+		return engine.second(date);
+	}
+
+	/**
+	 * Returns the number of days in the month, for the date given.  If date is null, return -1.
+	 * @param date
+	 * @return
+	 */
+	public int getDaysInMonth(Date date){
+		if (date == null)
+			return -1;
+		return engine.daysInMonth(date.getTime());
+	}
+
+	public int getDaysInMonth(long date){
+		return engine.daysInMonth(date);
+	}
+
+	/**
+	 * Returns the number of days in the year, for the date given.  If date is null, return -1.
+	 * @param date
+	 * @return
+	 */
+	public int getDaysInYear(Date date){
+		if (date == null)
+			return -1;
+		return engine.daysInYear(date.getTime());
+	}
+
+	public int getDaysInYear(long date){
+		return engine.daysInYear(date);
+	}
+
+	/**
+	 * Return a date object at the beginning of the given day.  As with Calendar, month
+	 * and day are lenient.
+	 * @param year
+	 * @param month
+	 * @param day
+	 * @return
+	 */
+	public Date getDate(int year, int month, int day){
+		return new Date(getTime(year, month, day));
+	}
+
+	/**
+	 * Return a date object at the beginning of the given month.
+	 * @param year
+	 * @param month
+	 * @return
+	 */
+	public Date getDate(int year, int month){
+		return new Date(getTime(year, month));
+	}
+
+	/**
+	 * Return a date object at the beginning of the given year.
+	 * @param year
+	 * @return
+	 */
+	public Date getDate(int year){
+		return new Date(getTime(year));
+	}
+
+	/**
+	 * Return the start of the given day, in miliseconds.
+	 * @param year
+	 * @param month
+	 * @param day
+	 * @return
+	 */
+	public long getTime(int year, int month, int day){
+		return engine.date(year, month, day, System.currentTimeMillis());
+	}
+
+	/**
+	 * Return the start of the given month, in miliseconds.
+	 * @param year
+	 * @param month
+	 * @return
+	 */
+	public long getTime(int year, int month){
+		return engine.startOfMonth(getTime(year, month, 1));
+	}
+
+	/**
+	 * Return the start of the given year, in miliseconds.
+	 * @param year
+	 * @return
+	 */
+	public long getTime(int year){
+		return engine.startOfYear(getTime(year, 0, 1));
+	}
+
+	/**
+	 * Changes the internal time of the given Date to be set to the value obtained
+	 * from getDate(year, month, day).
+	 * @param date
+	 * @param year
+	 * @param month
+	 * @param day
+	 */
+	public void setDate(Date date, int year, int month, int day){
+		date.setTime(getTime(year, month, day));
+	}
+
+	/*
+	 * Keys and comparisons; see DateMath for the format of the keys.
+	 */
+
+	public int getDayKey(long date){
+		return engine.dayKey(date);
+	}
+
+	public int getWeekKey(long date){
+		return engine.weekKey(date);
+	}
+
+	public int getMonthKey(long date){
+		return engine.monthKey(date);
+	}
+
+	public int getQuarterKey(long date){
+		return engine.quarterKey(date);
+	}
+
+	public int getYearKey(long date){
+		return engine.yearKey(date);
+	}
+
+	/**
+	 * Checks if the two given dates are the same day.  If either date is null, returns false.
+	 * @param d1
+	 * @param d2
+	 * @return
+	 */
+	public boolean isSameDay(Date d1, Date d2){
+		if (d1 == null || d2 == null)
+			return false;
+		return isSameDay(d1.getTime(), d2.getTime());
+	}
+
+	public boolean isSameDay(long d1, long d2){
+		return engine.dayKey(d1) == engine.dayKey(d2);
+	}
+
+	/**
+	 * Checks if two dates exist in the same calendar week.  If either date is null, returns false.
+	 * @param d1
+	 * @param d2
+	 * @return
+	 */
+	public boolean isSameWeek(Date d1, Date d2){
+		if (d1 == null || d2 == null)
+			return false;
+		return isSameWeek(d1.getTime(), d2.getTime());
+	}
+
+	public boolean isSameWeek(long d1, long d2){
+		return engine.isSameWeek(d1, d2);
+	}
+
+	/**
+	 * Checks if the two given dates are the same month.  If either date is null, returns false.
+	 * @param d1
+	 * @param d2
+	 * @return
+	 */
+	public boolean isSameMonth(Date d1, Date d2){
+		if (d1 == null || d2 == null)
+			return false;
+		return isSameMonth(d1.getTime(), d2.getTime());
+	}
+
+	public boolean isSameMonth(long d1, long d2){
+		return engine.isSameMonth(d1, d2);
+	}
+
+	/**
+	 * Checks if the two given dates are the same quarter.  If either date is null, returns false.
+	 * @param d1
+	 * @param d2
+	 * @return
+	 */
+	public boolean isSameQuarter(Date d1, Date d2){
+		if (d1 == null || d2 == null)
+			return false;
+		return isSameQuarter(d1.getTime(), d2.getTime());
+	}
+
+	public boolean isSameQuarter(long d1, long d2){
+		return engine.quarterKey(d1) == engine.quarterKey(d2);
+	}
+
+	/**
+	 * Checks if the two given dates are the same year.  If either date is null, returns false.
+	 * @param d1
+	 * @param d2
+	 * @return
+	 */
+	public boolean isSameYear(Date d1, Date d2){
+		if (d1 == null || d2 == null)
+			return false;
+		return isSameYear(d1.getTime(), d2.getTime());
+	}
+
+	public boolean isSameYear(long d1, long d2){
+		return engine.isSameYear(d1, d2);
+	}
+
+	@Override
+	public String toString(){
+		return "DateContext[" + engine.getZone().getTimeZone().getID() + ", " + engine.getLocale() + "]";
+	}
+}
@@ -0,0 +1,808 @@
+package ca.digitalcave.moss.common;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * @author wyatt
+ * The arithmetic behind DateUtil.  All methods take and return instants as miliseconds
+ * since the epoch; internally we convert to local miliseconds using a cached
+ * ZoneOffsetTable, split that into an epoch day and a milisecond of the day, and do
+ * the calendar math on plain numbers.  No Calendar objects are created on the fast path.
+ *
+ * Each method is written to give exactly the same result as the Calendar code which
+ * DateUtil used to contain, including the way Calendar resolves local times which
+ * fall into a DST gap or overlap.  For dates before 1600 (where GregorianCalendar
+ * switches to the Julian calendar) and for locales which do not use the Gregorian
+ * calendar (e.g. th_TH, ja_JP_JP), we fall back to the original Calendar code.
+ *
+ * Instances are immutable and thread safe.
+ */
+final class DateEngine {
+	static final long MILLIS_PER_DAY = 86400000l;
+	static final int MILLIS_PER_HOUR = 3600000;
+	static final int MILLIS_PER_MINUTE = 60000;
+	static final int MILLIS_PER_SECOND = 1000;
+
+	//Days from 0000-03-01 based year zero to 1970-01-01, and days in a 400 year cycle.
+	private static final long DAYS_0000_TO_1970 = 719528l;
+	private static final long DAYS_PER_CYCLE = 146097l;
+
+	//Range of years which we handle arithmetically; outside of this we use a Calendar.
+	static final int MIN_YEAR = 1600;
+	static final int MAX_YEAR = 1000000;
+	private static final long MIN_DAY = toEpochDay(MIN_YEAR, 0, 1);
+	private static final long MAX_DAY = toEpochDay(MAX_YEAR, 0, 1);
+
+	private static volatile DateEngine defaultEngine;
+
+	private final ZoneOffsetTable zone;
+	private final Locale locale;
+	private final int firstDayOfWeek;
+	private final int minimalDaysInFirstWeek;
+	private final boolean gregorian;
+
+	/**
+	 * Returns the engine for the JVM default time zone and locale.  The default is
+	 * created on first use; if the default locale changes it is recreated automatically.
+	 * Since reading the default time zone requires cloning it, we do not check that
+	 * on each call; applications which change the default time zone at runtime must
+	 * call resetDefault() afterwards.
+	 * @return
+	 */
+	static DateEngine getDefault(){
+		DateEngine engine = defaultEngine;
+		Locale locale = Locale.getDefault(Locale.Category.FORMAT);
+		if (engine == null || engine.locale != locale){
+			engine = new DateEngine(TimeZone.getDefault(), locale);
+			defaultEngine = engine;
+		}
+		return engine;
+	}
+
+	/**
+	 * Forget the cached default engine, so that it will be recreated from the current
+	 * JVM default time zone and locale.
+	 */
+	static void resetDefault(){
+		defaultEngine = null;
+	}
+
+	DateEngine(TimeZone timeZone, Locale locale){
+		this(timeZone, locale, 0, 0);
+	}
+
+	/**
+	 * Creates an engine with the given week definition; zero for either week
+	 * parameter means to use the locale's value.
+	 */
+	DateEngine(TimeZone timeZone, Locale locale, int firstDayOfWeek, int minimalDaysInFirstWeek){
+		Calendar calendar = Calendar.getInstance(timeZone, locale);
+		this.zone = ZoneOffsetTable.forZone(timeZone);
+		this.locale = locale;
+		this.firstDayOfWeek = firstDayOfWeek == 0 ? calendar.getFirstDayOfWeek() : firstDayOfWeek;
+		this.minimalDaysInFirstWeek = minimalDaysInFirstWeek == 0 ? calendar.getMinimalDaysInFirstWeek() : minimalDaysInFirstWeek;
+		this.gregorian = calendar.getClass() == GregorianCalendar.class;
+	}
+
+	ZoneOffsetTable getZone(){
+		return zone;
+	}
+
+	/**
+	 * Returns false if the locale uses a calendar other than GregorianCalendar (where
+	 * we defer to the Calendar for most calculations).
+	 */
+	boolean isGregorian(){
+		return gregorian;
+	}
+
+	Locale getLocale(){
+		return locale;
+	}
+
+	int getFirstDayOfWeek(){
+		return firstDayOfWeek;
+	}
+
+	int getMinimalDaysInFirstWeek(){
+		return minimalDaysInFirstWeek;
+	}
+
+	/*
+	 * Boundaries
+	 */
+
+	long startOfDay(long time){
+		long local = zone.toLocal(time);
+		long day = Math.floorDiv(local, MILLIS_PER_DAY);
+		if (!isFast(day))
+			return legacyStartOfDay(time);
+		return zone.toUtc(day * MILLIS_PER_DAY);
+	}
+
+	long endOfDay(long time){
+		long local = zone.toLocal(time);
+		long day = Math.floorDiv(local, MILLIS_PER_DAY);
+		if (!isFast(day))
+			return legacyEndOfDay(time);
+		return zone.toUtc(day * MILLIS_PER_DAY + MILLIS_PER_DAY - 1);
+	}
+
+	long startOfWeek(long time){
+		long day = Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY);
+		if (!isFast(day - 7))
+			return legacyStartOfWeek(time);
+		return zone.toUtc(startOfWeekDay(day) * MILLIS_PER_DAY);
+	}
+
+	long endOfWeek(long time){
+		long day = Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY);
+		if (!isFast(day - 7) || !isFast(day + 7))
+			return legacyEndOfWeek(time);
+		//Calendar went to the end of the first day of the week, then added 6 days; we
+		// do the same so that we resolve DST edge cases identically.
+		long endOfFirstDay = zone.toUtc(startOfWeekDay(day) * MILLIS_PER_DAY + MILLIS_PER_DAY - 1);
+		return endOfDay(addDays(endOfFirstDay, 6));
+	}
+
+	long startOfMonth(long time){
+		long day = Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY);
+		if (!isFast(day))
+			return legacyStartOfMonth(time);
+		int civil = toCivil(day);
+		return zone.toUtc((day - civilDay(civil) + 1) * MILLIS_PER_DAY);
+	}
+
+	long endOfMonth(long time){
+		long day = Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY);
+		if (!isFast(day))
+			return legacyEndOfMonth(time);
+		int civil = toCivil(day);
+		long last = day - civilDay(civil) + lengthOfMonth(civilYear(civil), civilMonth(civil));
+		return zone.toUtc(last * MILLIS_PER_DAY + MILLIS_PER_DAY - 1);
+	}
+
+	long startOfQuarter(long time){
+		long local = zone.toLocal(time);
+		long day = Math.floorDiv(local, MILLIS_PER_DAY);
+		if (!isFast(day))
+			return legacyStartOfQuarter(time);
+		int civil = toCivil(day);
+		long first = toEpochDay(civilYear(civil), civilMonth(civil) / 3 * 3, 1);
+		//Calendar kept the time of day when moving to the first of the quarter, then called startOfDay.
+		return startOfDay(zone.toUtc(first * MILLIS_PER_DAY + Math.floorMod(local, MILLIS_PER_DAY)));
+	}
+
+	long endOfQuarter(long time){
+		return endOfDay(addDays(addQuarters(startOfQuarter(time), 1), -1));
+	}
+
+	long startOfYear(long time){
+		long day = Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY);
+		if (!isFast(day))
+			return legacyStartOfYear(time);
+		return zone.toUtc(toEpochDay(civilYear(toCivil(day)), 0, 1) * MILLIS_PER_DAY);
+	}
+
+	long endOfYear(long time){
+		long day = Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY);
+		if (!isFast(day))
+			return legacyEndOfYear(time);
+		long last = toEpochDay(civilYear(toCivil(day)), 11, 31);
+		return zone.toUtc(last * MILLIS_PER_DAY + MILLIS_PER_DAY - 1);
+	}
+
+	/*
+	 * Addition
+	 */
+
+	long addSeconds(long time, int offset){
+		return time + (long) offset * MILLIS_PER_SECOND;
+	}
+
+	long addMinutes(long time, int offset){
+		return time + (long) offset * MILLIS_PER_MINUTE;
+	}
+
+	long addHours(long time, int offset){
+		return time + (long) offset * MILLIS_PER_HOUR;
+	}
+
+	long addDays(long time, int offset){
+		if (offset == 0)
+			return time;
+		int oldOffset = zone.getOffset(time);
+		long local = time + oldOffset;
+		long day = Math.floorDiv(local, MILLIS_PER_DAY);
+		long target = day + offset;
+		if (!isFast(day) || !isFast(target))
+			return legacyAdd(time, Calendar.DAY_OF_MONTH, offset);
+
+		//This mirrors GregorianCalendar.add(): keep the old offset, and then adjust
+		// for the new offset as long as doing so does not change the date.
+		long result = target * MILLIS_PER_DAY + Math.floorMod(local, MILLIS_PER_DAY) - oldOffset;
+		int delta = oldOffset - zone.getOffset(result);
+		if (delta != 0){
+			long adjusted = result + delta;
+			if (Math.floorDiv(zone.toLocal(adjusted), MILLIS_PER_DAY) == target)
+				result = adjusted;
+		}
+		return result;
+	}
+
+	long addMonths(long time, int offset){
+		if (offset == 0)
+			return time;
+		long local = zone.toLocal(time);
+		long day = Math.floorDiv(local, MILLIS_PER_DAY);
+		if (!isFast(day))
+			return legacyAdd(time, Calendar.MONTH, offset);
+		int civil = toCivil(day);
+		long months = (long) civilYear(civil) * 12 + civilMonth(civil) + offset;
+		long year = Math.floorDiv(months, 12);
+		int month = (int) Math.floorMod(months, 12);
+		if (year < MIN_YEAR || year >= MAX_YEAR)
+			return legacyAdd(time, Calendar.MONTH, offset);
+		return atDate((int) year, month, civilDay(civil), local);
+	}
+
+	long addQuarters(long time, int offset){
+		return addMonths(time, offset * 3);	//3 months in a quarter
+	}
+
+	long addYears(long time, int offset){
+		if (offset == 0)
+			return time;
+		long local = zone.toLocal(time);
+		long day = Math.floorDiv(local, MILLIS_PER_DAY);
+		if (!isFast(day))
+			return legacyAdd(time, Calendar.YEAR, offset);
+		int civil = toCivil(day);
+		long year = (long) civilYear(civil) + offset;
+		if (year < MIN_YEAR || year >= MAX_YEAR)
+			return legacyAdd(time, Calendar.YEAR, offset);
+		return atDate((int) year, civilMonth(civil), civilDay(civil), local);
+	}
+
+	/**
+	 * Returns the instant at the given date (pinning the day to the end of the month)
+	 * with the same time of day as the given local time.
+	 */
+	private long atDate(int year, int month, int day, long local){
+		int length = lengthOfMonth(year, month);
+		long epochDay = toEpochDay(year, month, day > length ? length : day);
+		return zone.toUtc(epochDay * MILLIS_PER_DAY + Math.floorMod(local, MILLIS_PER_DAY));
+	}
+
+	/*
+	 * Differences
+	 */
+
+	int daysBetween(long first, long last, boolean inclusive){
+		//A day is a day across the Julian cutover as well, so we only need the Calendar
+		// for non Gregorian calendars, where the original code compared era years.
+		if (!gregorian)
+			return legacyDaysBetween(first, last, inclusive);
+		long firstDay = Math.floorDiv(zone.toLocal(first), MILLIS_PER_DAY);
+		long lastDay = Math.floorDiv(zone.toLocal(last), MILLIS_PER_DAY);
+		return (int) (lastDay - firstDay) + inclusiveAdjustment(first, last, inclusive);
+	}
+
+	int weeksBetween(long first, long last, boolean inclusive){
+		long firstWeek = startOfWeekDay(Math.floorDiv(zone.toLocal(first), MILLIS_PER_DAY));
+		long lastWeek = startOfWeekDay(Math.floorDiv(zone.toLocal(last), MILLIS_PER_DAY));
+		return (int) ((lastWeek - firstWeek) / 7) + inclusiveAdjustment(first, last, inclusive);
+	}
+
+	int monthsBetween(long first, long last, boolean inclusive){
+		//Note that the inclusive adjustment here is the opposite of the other *Between
+		// methods; this is how DateUtil.getMonthsBetween() has always behaved.
+		return (int) (monthIndex(last) - monthIndex(first)) + (inclusive ? (first > last ? 1 : -1) : 0);
+	}
+
+	int quartersBetween(long first, long last, boolean inclusive){
+		long firstQuarter = Math.floorDiv(monthIndex(first), 3);
+		long lastQuarter = Math.floorDiv(monthIndex(last), 3);
+		return (int) (lastQuarter - firstQuarter) + inclusiveAdjustment(first, last, inclusive);
+	}
+
+	int yearsBetween(long first, long last, boolean inclusive){
+		return year(last) - year(first) + inclusiveAdjustment(first, last, inclusive);
+	}
+
+	private static int inclusiveAdjustment(long first, long last, boolean inclusive){
+		if (!inclusive)
+			return 0;
+		return first <= last ? 1 : -1;
+	}
+
+	/**
+	 * Returns year * 12 + month for the given instant; i.e. a month number which
+	 * increases by one for each calendar month.
+	 */
+	long monthIndex(long time){
+		long day = Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY);
+		if (!isFast(day)){
+			Calendar calendar = legacyCalendar(time);
+			return (long) calendar.get(Calendar.YEAR) * 12 + calendar.get(Calendar.MONTH);
+		}
+		int civil = toCivil(day);
+		return (long) civilYear(civil) * 12 + civilMonth(civil);
+	}
+
+	/*
+	 * Fields
+	 */
+
+	int year(long time){
+		long day = Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY);
+		if (!isFast(day))
+			return legacyGet(time, Calendar.YEAR);
+		return civilYear(toCivil(day));
+	}
+
+	int month(long time){
+		long day = Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY);
+		if (!isFast(day))
+			return legacyGet(time, Calendar.MONTH);
+		return civilMonth(toCivil(day));
+	}
+
+	int day(long time){
+		long day = Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY);
+		if (!isFast(day))
+			return legacyGet(time, Calendar.DAY_OF_MONTH);
+		return civilDay(toCivil(day));
+	}
+
+	int hour(long time){
+		return (int) (Math.floorMod(zone.toLocal(time), MILLIS_PER_DAY) / MILLIS_PER_HOUR);
+	}
+
+	int minute(long time){
+		return (int) (Math.floorMod(zone.toLocal(time), (long) MILLIS_PER_HOUR) / MILLIS_PER_MINUTE);
+	}
+
+	int second(long time){
+		return (int) (Math.floorMod(zone.toLocal(time), (long) MILLIS_PER_MINUTE) / MILLIS_PER_SECOND);
+	}
+
+	int daysInMonth(long time){
+		long day = Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY);
+		if (!isFast(day))
+			return legacyCalendar(time).getActualMaximum(Calendar.DATE);
+		int civil = toCivil(day);
+		return lengthOfMonth(civilYear(civil), civilMonth(civil));
+	}
+
+	int daysInYear(long time){
+		long day = Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY);
+		if (!isFast(day))
+			return legacyCalendar(time).getActualMaximum(Calendar.DAY_OF_YEAR);
+		return isLeapYear(civilYear(toCivil(day))) ? 366 : 365;
+	}
+
+	/**
+	 * Returns the start of the given day.  Month and day are lenient, as with Calendar.set().
+	 * @param year
+	 * @param month
+	 * @param day
+	 * @param now The current time; Calendar started from the current time of day, which
+	 * matters if the start of the day falls within a DST gap.
+	 * @return
+	 */
+	long date(int year, int month, int day, long now){
+		long y = year + Math.floorDiv(month, 12);
+		if (!gregorian || y < MIN_YEAR || y >= MAX_YEAR)
+			return legacyDate(year, month, day, now);
+		long epochDay = toEpochDay(y, Math.floorMod(month, 12), 1) + day - 1;
+		if (!isFast(epochDay))
+			return legacyDate(year, month, day, now);
+		return startOfDay(zone.toUtc(epochDay * MILLIS_PER_DAY + Math.floorMod(zone.toLocal(now), MILLIS_PER_DAY)));
+	}
+
+	/*
+	 * Keys.  Each period is identified by an int made from its (Gregorian) date fields:
+	 * yyyymmdd for days, yyyymmdd of the first day for weeks, yyyymm for months, yyyyq
+	 * (q = 1 - 4) for quarters and yyyy for years.  Keys sort in date order, and two
+	 * times are in the same period exactly when their keys are equal (for years up to
+	 * 200,000).  Before 1582 the fields are Julian, as with GregorianCalendar.
+	 */
+
+	int dayKey(long time){
+		int civil = keyCivil(Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY));
+		return civilYear(civil) * 10000 + (civilMonth(civil) + 1) * 100 + civilDay(civil);
+	}
+
+	int weekKey(long time){
+		int civil = keyCivil(startOfWeekDay(Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY)));
+		return civilYear(civil) * 10000 + (civilMonth(civil) + 1) * 100 + civilDay(civil);
+	}
+
+	int monthKey(long time){
+		int civil = keyCivil(Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY));
+		return civilYear(civil) * 100 + civilMonth(civil) + 1;
+	}
+
+	int quarterKey(long time){
+		int civil = keyCivil(Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY));
+		return civilYear(civil) * 10 + civilMonth(civil) / 3 + 1;
+	}
+
+	int yearKey(long time){
+		return civilYear(keyCivil(Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY)));
+	}
+
+	/*
+	 * For locales which do not use the Gregorian calendar, the same period checks compare
+	 * the fields as Calendar reports them (e.g. the era year for ja_JP_JP), as DateUtil
+	 * always has; otherwise they just compare keys.
+	 */
+
+	boolean isSameWeek(long time1, long time2){
+		if (!gregorian)
+			return startOfWeek(time1) == startOfWeek(time2);
+		return weekKey(time1) == weekKey(time2);
+	}
+
+	boolean isSameMonth(long time1, long time2){
+		if (!gregorian)
+			return Math.abs(time1 - time2) <= 2764800000l && month(time1) == month(time2);
+		return monthKey(time1) == monthKey(time2);
+	}
+
+	boolean isSameYear(long time1, long time2){
+		if (!gregorian)
+			return year(time1) == year(time2);
+		return yearKey(time1) == yearKey(time2);
+	}
+
+	private static int keyCivil(long epochDay){
+		if (epochDay >= MIN_DAY && epochDay < MAX_DAY)
+			return toCivil(epochDay);
+		GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+		calendar.setTimeInMillis(epochDay * MILLIS_PER_DAY);
+		int year = calendar.get(Calendar.YEAR);
+		if (calendar.get(Calendar.ERA) == GregorianCalendar.BC)
+			year = 1 - year;
+		return (year << 9) | (calendar.get(Calendar.MONTH) << 5) | calendar.get(Calendar.DAY_OF_MONTH);
+	}
+
+	/*
+	 * Periods.  Each period of a given type has an index, which increases by one from one
+	 * period to the next (the local epoch day for DAY, year * 12 + month for MONTH, etc).
+	 * Indexes always follow the Gregorian calendar, even for locales which use another.
+	 */
+
+	long startOf(PeriodType type, long time){
+		switch (type){
+		case DAY: return startOfDay(time);
+		case WEEK: return startOfWeek(time);
+		case MONTH: return startOfMonth(time);
+		case QUARTER: return startOfQuarter(time);
+		default: return startOfYear(time);
+		}
+	}
+
+	long endOf(PeriodType type, long time){
+		switch (type){
+		case DAY: return endOfDay(time);
+		case WEEK: return endOfWeek(time);
+		case MONTH: return endOfMonth(time);
+		case QUARTER: return endOfQuarter(time);
+		default: return endOfYear(time);
+		}
+	}
+
+	long add(PeriodType type, long time, int amount){
+		switch (type){
+		case DAY: return addDays(time, amount);
+		case WEEK: return addDays(time, amount * 7);
+		case MONTH: return addMonths(time, amount);
+		case QUARTER: return addQuarters(time, amount);
+		default: return addYears(time, amount);
+		}
+	}
+
+	long periodIndex(PeriodType type, long time){
+		return periodIndexOfDay(type, Math.floorDiv(zone.toLocal(time), MILLIS_PER_DAY));
+	}
+
+	long periodIndexOfDay(PeriodType type, long epochDay){
+		if (type == PeriodType.DAY)
+			return epochDay;
+		if (type == PeriodType.WEEK)
+			return Math.floorDiv(startOfWeekDay(epochDay), 7);
+		int civil = toCivil(epochDay);
+		switch (type){
+		case MONTH: return (long) civilYear(civil) * 12 + civilMonth(civil);
+		case QUARTER: return (long) civilYear(civil) * 4 + civilMonth(civil) / 3;
+		default: return civilYear(civil);
+		}
+	}
+
+	/**
+	 * Returns the epoch day on which the period with the given index starts.
+	 */
+	long periodFirstDay(PeriodType type, long index){
+		switch (type){
+		case DAY: return index;
+		case WEEK: return index * 7 + Math.floorMod(firstDayOfWeek - 5, 7);	//Epoch day 0 is a Thursday (5)
+		case MONTH: return toEpochDay(Math.floorDiv(index, 12), (int) Math.floorMod(index, 12), 1);
+		case QUARTER: return toEpochDay(Math.floorDiv(index, 4), (int) Math.floorMod(index, 4) * 3, 1);
+		default: return toEpochDay(index, 0, 1);
+		}
+	}
+
+	/**
+	 * Returns the first milisecond of the period with the given index.  We go through
+	 * startOf() (from midday on the first day), so that the result is always identical
+	 * to the DateUtil getStartOf* methods.
+	 */
+	long periodStart(PeriodType type, long index){
+		return startOf(type, zone.toUtc(periodFirstDay(type, index) * MILLIS_PER_DAY + MILLIS_PER_DAY / 2));
+	}
+
+	/**
+	 * Returns the last milisecond of the period with the given index.
+	 */
+	long periodEnd(PeriodType type, long index){
+		return endOf(type, zone.toUtc(periodFirstDay(type, index) * MILLIS_PER_DAY + MILLIS_PER_DAY / 2));
+	}
+
+	/*
+	 * Epoch day arithmetic.  Months are zero based, as with Calendar; days of the
+	 * week use the Calendar constants (SUNDAY = 1).
+	 */
+
+	private boolean isFast(long epochDay){
+		return gregorian && epochDay >= MIN_DAY && epochDay < MAX_DAY;
+	}
+
+	/**
+	 * Returns the epoch day at which the (locale specific) week containing the given epoch day starts.
+	 */
+	long startOfWeekDay(long epochDay){
+		return epochDay - Math.floorMod(dayOfWeek(epochDay) - firstDayOfWeek, 7);
+	}
+
+	static int dayOfWeek(long epochDay){
+		//1970-01-01 was a Thursday
+		return (int) Math.floorMod(epochDay + 4, 7) + 1;
+	}
+
+	static boolean isLeapYear(long year){
+		return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+	}
+
+	static int lengthOfMonth(long year, int month){
+		switch (month){
+		case 1: return isLeapYear(year) ? 29 : 28;
+		case 3: case 5: case 8: case 10: return 30;
+		default: return 31;
+		}
+	}
+
+	static long toEpochDay(long year, int month, int day){
+		long m = month + 1;
+		long total = 365 * year;
+		if (year >= 0)
+			total += (year + 3) / 4 - (year + 99) / 100 + (year + 399) / 400;
+		else
+			total -= year / -4 - year / -100 + year / -400;
+		total += (367 * m - 362) / 12;
+		total += day - 1;
+		if (m > 2){
+			total--;
+			if (!isLeapYear(year))
+				total--;
+		}
+		return total - DAYS_0000_TO_1970;
+	}
+
+	/**
+	 * Converts an epoch day to a packed year / month / day, which can be unpacked with
+	 * civilYear(), civilMonth() and civilDay().  Only valid for years 0 - 4,000,000.
+	 */
+	static int toCivil(long epochDay){
+		//Based on a year starting on March 1st, so that the leap day is at the end.
+		long zeroDay = epochDay + DAYS_0000_TO_1970 - 60;
+		long adjust = 0;
+		if (zeroDay < 0){
+			long adjustCycles = (zeroDay + 1) / DAYS_PER_CYCLE - 1;
+			adjust = adjustCycles * 400;
+			zeroDay += -adjustCycles * DAYS_PER_CYCLE;
+		}
+		long year = (400 * zeroDay + 591) / DAYS_PER_CYCLE;
+		long dayOfYear = zeroDay - (365 * year + year / 4 - year / 100 + year / 400);
+		if (dayOfYear < 0){
+			year--;
+			dayOfYear = zeroDay - (365 * year + year / 4 - year / 100 + year / 400);
+		}
+		year += adjust;
+		int marchDayOfYear = (int) dayOfYear;
+		int marchMonth = (marchDayOfYear * 5 + 2) / 153;
+		int month = (marchMonth + 2) % 12;
+		int day = marchDayOfYear - (marchMonth * 306 + 5) / 10 + 1;
+		year += marchMonth / 10;
+		return ((int) year << 9) | (month << 5) | day;
+	}
+
+	static int civilYear(int civil){
+		return civil >> 9;
+	}
+
+	static int civilMonth(int civil){
+		return (civil >> 5) & 0xF;
+	}
+
+	static int civilDay(int civil){
+		return civil & 0x1F;
+	}
+
+	/*
+	 * Calendar fallbacks, for dates outside of the range we handle and non Gregorian locales.
+	 * These are the original DateUtil implementations.
+	 */
+
+	private Calendar legacyCalendar(long time){
+		Calendar calendar = Calendar.getInstance(zone.getTimeZone(), locale);
+		calendar.setFirstDayOfWeek(firstDayOfWeek);
+		calendar.setMinimalDaysInFirstWeek(minimalDaysInFirstWeek);
+		calendar.setTimeInMillis(time);
+		return calendar;
+	}
+
+	private long legacyStartOfDay(long time){
+		Calendar calendar = legacyCalendar(time);
+		calendar.set(Calendar.HOUR_OF_DAY, calendar.getActualMinimum(Calendar.HOUR_OF_DAY));
+		calendar.set(Calendar.MINUTE, calendar.getActualMinimum(Calendar.MINUTE));
+		calendar.set(Calendar.SECOND, calendar.getActualMinimum(Calendar.SECOND));
+		calendar.set(Calendar.MILLISECOND, calendar.getActualMinimum(Calendar.MILLISECOND));
+		return calendar.getTimeInMillis();
+	}
+
+	private long legacyEndOfDay(long time){
+		Calendar calendar = legacyCalendar(time);
+		calendar.set(Calendar.HOUR_OF_DAY, calendar.getActualMaximum(Calendar.HOUR_OF_DAY));
+		calendar.set(Calendar.MINUTE, calendar.getActualMaximum(Calendar.MINUTE));
+		calendar.set(Calendar.SECOND, calendar.getActualMaximum(Calendar.SECOND));
+		calendar.set(Calendar.MILLISECOND, calendar.getActualMaximum(Calendar.MILLISECOND));
+		return calendar.getTimeInMillis();
+	}
+
+	private long legacyStartOfWeek(long time){
+		Calendar calendar = legacyCalendar(time);
+		calendar.set(Calendar.DAY_OF_WEEK, firstDayOfWeek);
+		calendar.set(Calendar.HOUR_OF_DAY, calendar.getActualMinimum(Calendar.HOUR_OF_DAY));
+		calendar.set(Calendar.MINUTE, calendar.getActualMinimum(Calendar.MINUTE));
+		calendar.set(Calendar.SECOND, calendar.getActualMinimum(Calendar.SECOND));
+		calendar.set(Calendar.MILLISECOND, calendar.getActualMinimum(Calendar.MILLISECOND));
+		return calendar.getTimeInMillis();
+	}
+
+	private long legacyEndOfWeek(long time){
+		Calendar calendar = legacyCalendar(time);
+		calendar.set(Calendar.DAY_OF_WEEK, firstDayOfWeek);
+		calendar.set(Calendar.HOUR_OF_DAY, calendar.getActualMaximum(Calendar.HOUR_OF_DAY));
+		calendar.set(Calendar.MINUTE, calendar.getActualMaximum(Calendar.MINUTE));
+		calendar.set(Calendar.SECOND, calendar.getActualMaximum(Calendar.SECOND));
+		calendar.set(Calendar.MILLISECOND, calendar.getActualMaximum(Calendar.MILLISECOND));
+		return legacyEndOfDay(legacyAdd(calendar.getTimeInMillis(), Calendar.DAY_OF_MONTH, 6));
+	}
+
+	private long legacyStartOfMonth(long time){
+		Calendar calendar = legacyCalendar(time);
+		calendar.set(Calendar.DAY_OF_MONTH, calendar.getActualMinimum(Calendar.DAY_OF_MONTH));
+		calendar.set(Calendar.HOUR_OF_DAY, calendar.getActualMinimum(Calendar.HOUR_OF_DAY));
+		calendar.set(Calendar.MINUTE, calendar.getActualMinimum(Calendar.MINUTE));
+		calendar.set(Calendar.SECOND, calendar.getActualMinimum(Calendar.SECOND));
+		calendar.set(Calendar.MILLISECOND, calendar.getActualMinimum(Calendar.MILLISECOND));
+		return calendar.getTimeInMillis();
+	}
+
+	private long legacyEndOfMonth(long time){
+		Calendar calendar = legacyCalendar(time);
+		calendar.set(Calendar.DAY_OF_MONTH, calendar.getActualMaximum(Calendar.DAY_OF_MONTH));
+		calendar.set(Calendar.HOUR_OF_DAY, calendar.getActualMaximum(Calendar.HOUR_OF_DAY));
+		calendar.set(Calendar.MINUTE, calendar.getActualMaximum(Calendar.MINUTE));
+		calendar.set(Calendar.SECOND, calendar.getActualMaximum(Calendar.SECOND));
+		calendar.set(Calendar.MILLISECOND, calendar.getActualMaximum(Calendar.MILLISECOND));
+		return calendar.getTimeInMillis();
+	}
+
+	private long legacyStartOfQuarter(long time){
+		Calendar calendar = legacyCalendar(time);
+		int quarterNumber = calendar.get(GregorianCalendar.MONTH) / 3;
+		calendar.set(GregorianCalendar.MONTH, quarterNumber * 3);
+		calendar.set(GregorianCalendar.DAY_OF_MONTH, calendar.getActualMinimum(GregorianCalendar.DAY_OF_MONTH));
+		return legacyStartOfDay(calendar.getTimeInMillis());
+	}
+
+	private long legacyStartOfYear(long time){
+		Calendar calendar = legacyCalendar(time);
+		calendar.set(Calendar.MONTH, 0);
+		calendar.set(Calendar.DAY_OF_MONTH, 1);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTimeInMillis();
+	}
+
+	private long legacyEndOfYear(long time){
+		Calendar calendar = legacyCalendar(time);
+		calendar.set(Calendar.MONTH, calendar.getActualMaximum(Calendar.MONTH));
+		calendar.set(Calendar.DAY_OF_MONTH, calendar.getActualMaximum(Calendar.DAY_OF_MONTH));
+		calendar.set(Calendar.HOUR_OF_DAY, calendar.getActualMaximum(Calendar.HOUR_OF_DAY));
+		calendar.set(Calendar.MINUTE, calendar.getActualMaximum(Calendar.MINUTE));
+		calendar.set(Calendar.SECOND, calendar.getActualMaximum(Calendar.SECOND));
+		calendar.set(Calendar.MILLISECOND, calendar.getActualMaximum(Calendar.MILLISECOND));
+		return calendar.getTimeInMillis();
+	}
+
+	private long legacyAdd(long time, int field, int offset){
+		Calendar calendar = legacyCalendar(time);
+		calendar.add(field, offset);
+		return calendar.getTimeInMillis();
+	}
+
+	private int legacyGet(long time, int field){
+		return legacyCalendar(time).get(field);
+	}
+
+	private long legacyDate(int year, int month, int day, long now){
+		Calendar calendar = legacyCalendar(now);
+		calendar.set(Calendar.YEAR, year);
+		calendar.set(Calendar.MONTH, month);
+		calendar.set(Calendar.DAY_OF_MONTH, day);
+		return startOfDay(calendar.getTimeInMillis());
+	}
+
+	private int legacyDaysBetween(long first, long last, boolean inclusive){
+		Calendar cFirst = legacyCalendar(first);
+		Calendar cLast = legacyCalendar(last);
+
+		int daysBetween;
+		if (cFirst.get(Calendar.YEAR) == cLast.get(Calendar.YEAR)){
+			daysBetween = cLast.get(Calendar.DAY_OF_YEAR) - cFirst.get(Calendar.DAY_OF_YEAR);
+		}
+		else {
+			Calendar cTemp;
+			boolean swap = false;
+			if (cFirst.get(Calendar.YEAR) > cLast.get(Calendar.YEAR)){
+				//We are now guaranteed that cFirst is before cLast.
+				swap = true;
+				cTemp = cFirst;
+				cFirst = cLast;
+				cLast = cTemp;
+			}
+
+			cTemp = legacyCalendar(cFirst.getTimeInMillis());
+			cTemp.set(Calendar.DAY_OF_YEAR, cTemp.getActualMaximum(Calendar.DAY_OF_YEAR));
+			int daysAfterFirstDateInYear = legacyDaysBetween(cFirst.getTimeInMillis(), cTemp.getTimeInMillis(), true);
+
+			cTemp = legacyCalendar(cLast.getTimeInMillis());
+			cTemp.set(Calendar.DAY_OF_YEAR, cTemp.getActualMinimum(Calendar.DAY_OF_YEAR));
+			int daysBeforeLastDateInYear = legacyDaysBetween(cTemp.getTimeInMillis(), cLast.getTimeInMillis(), false);
+
+			int daysInCompleteYearsBetweenDates = 0;
+			for (int i = cFirst.get(Calendar.YEAR) + 1; i < cLast.get(Calendar.YEAR); i++){
+				cTemp.set(Calendar.YEAR, i);
+				daysInCompleteYearsBetweenDates += cTemp.getActualMaximum(Calendar.DAY_OF_YEAR);
+			}
+
+			daysBetween = daysAfterFirstDateInYear + daysInCompleteYearsBetweenDates + daysBeforeLastDateInYear;
+			if (swap)
+				daysBetween *= -1;
+		}
+
+		int adjustment = 0;
+		if (inclusive)
+			adjustment = first <= last ? 1 : -1;
+		return daysBetween + adjustment;
+	}
+}
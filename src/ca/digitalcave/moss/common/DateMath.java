@@ -0,0 +1,434 @@
+package ca.digitalcave.moss.common;
+
+/**
+ * @author wyatt
+ * The same functions as DateUtil, but taking and returning timestamps as miliseconds
+ * since the epoch (as from Date.getTime() or System.currentTimeMillis()) instead of
+ * Date objects.  Use this when you keep timestamps in your own long arrays; none of
+ * these methods allocate any objects (except when falling back to a Calendar for
+ * dates before 1600 or non Gregorian locales, see DateEngine), so they can be used in
+ * tight loops.
+ *
+ * As with DateUtil, all calculations use the JVM default time zone and locale.
+ */
+public class DateMath {
+
+	/**
+	 * Returns the first milisecond in the given date.
+	 * @param date
+	 * @return
+	 */
+	public static long getStartOfDay(long date){
+		return DateEngine.getDefault().startOfDay(date);
+	}
+
+	/**
+	 * Returns the last milisecond in the given date.
+	 * @param date
+	 * @return
+	 */
+	public static long getEndOfDay(long date){
+		return DateEngine.getDefault().endOfDay(date);
+	}
+
+	/**
+	 * Returns the start of the week for the given date.  Whether this is
+	 * Sunday or Monday will depend on the current locale.
+	 * @param date
+	 * @return
+	 */
+	public static long getStartOfWeek(long date){
+		return DateEngine.getDefault().startOfWeek(date);
+	}
+
+	/**
+	 * Returns the last milisecond in the week of the given date.
+	 * @param date
+	 * @return
+	 */
+	public static long getEndOfWeek(long date){
+		return DateEngine.getDefault().endOfWeek(date);
+	}
+
+	/**
+	 * Returns the start of the month of the given date
+	 * @param date
+	 * @return
+	 */
+	public static long getStartOfMonth(long date){
+		return DateEngine.getDefault().startOfMonth(date);
+	}
+
+	/**
+	 * Returns the end of the month of the given date
+	 * @param date
+	 * @return
+	 */
+	public static long getEndOfMonth(long date){
+		return DateEngine.getDefault().endOfMonth(date);
+	}
+
+	/**
+	 * Returns the beginning of the quarter.  A quarter is defined as occuring every 3
+	 * months, starting on January 1st, then April 1st, etc.
+	 * @param date
+	 * @return
+	 */
+	public static long getStartOfQuarter(long date){
+		return DateEngine.getDefault().startOfQuarter(date);
+	}
+
+	/**
+	 * Returns the last milisecond of the quarter.
+	 * @param date
+	 * @return
+	 */
+	public static long getEndOfQuarter(long date){
+		return DateEngine.getDefault().endOfQuarter(date);
+	}
+
+	/**
+	 * Returns the start of the year of the given date
+	 * @param date
+	 * @return
+	 */
+	public static long getStartOfYear(long date){
+		return DateEngine.getDefault().startOfYear(date);
+	}
+
+	/**
+	 * Returns the end of the year of the given date
+	 * @param date
+	 * @return
+	 */
+	public static long getEndOfYear(long date){
+		return DateEngine.getDefault().endOfYear(date);
+	}
+
+	/**
+	 * Returns the date which is offset amount from the given date.
+	 * @param date
+	 * @param offset
+	 * @return
+	 */
+	public static long addSeconds(long date, int offset){
+		return DateEngine.getDefault().addSeconds(date, offset);
+	}
+
+	/**
+	 * Returns the date which is offset amount from the given date.
+	 * @param date
+	 * @param offset
+	 * @return
+	 */
+	public static long addMinutes(long date, int offset){
+		return DateEngine.getDefault().addMinutes(date, offset);
+	}
+
+	/**
+	 * Returns the date which is offset amount from the given date.
+	 * @param date
+	 * @param offset
+	 * @return
+	 */
+	public static long addHours(long date, int offset){
+		return DateEngine.getDefault().addHours(date, offset);
+	}
+
+	/**
+	 * Returns the date which is offset amount from the given date, at the same time.
+	 * @param date
+	 * @param offset
+	 * @return
+	 */
+	public static long addDays(long date, int offset){
+		return DateEngine.getDefault().addDays(date, offset);
+	}
+
+	/**
+	 * Returns the date which is offset amount from the given date, at the same time.  If the day
+	 * in the given month is not in the target month, we will adjust the date down, as
+	 * with DateUtil.addMonths().
+	 * @param date
+	 * @param offset
+	 * @return
+	 */
+	public static long addMonths(long date, int offset){
+		return DateEngine.getDefault().addMonths(date, offset);
+	}
+
+	/**
+	 * Returns the date which is offset quarters (3 months each) from the given date.
+	 * @param date
+	 * @param quarterOffset
+	 * @return
+	 */
+	public static long addQuarters(long date, int quarterOffset){
+		return DateEngine.getDefault().addQuarters(date, quarterOffset);
+	}
+
+	/**
+	 * Returns the date which is offset amount from the given date, at the same time.
+	 * @param date
+	 * @param offset
+	 * @return
+	 */
+	public static long addYears(long date, int offset){
+		return DateEngine.getDefault().addYears(date, offset);
+	}
+
+	/**
+	 * Returns the number of months between the two given dates; see DateUtil.getMonthsBetween().
+	 * @param first
+	 * @param last
+	 * @param inclusive
+	 * @return
+	 */
+	public static int getMonthsBetween(long first, long last, boolean inclusive){
+		return DateEngine.getDefault().monthsBetween(first, last, inclusive);
+	}
+
+	/**
+	 * Returns the number of days between the two given dates; see DateUtil.getDaysBetween().
+	 * @param first
+	 * @param last
+	 * @param inclusive
+	 * @return
+	 */
+	public static int getDaysBetween(long first, long last, boolean inclusive){
+		return DateEngine.getDefault().daysBetween(first, last, inclusive);
+	}
+
+	/**
+	 * Returns the number of weeks between the two given dates; see DateUtil.getWeeksBetween().
+	 * @param first
+	 * @param last
+	 * @param inclusive
+	 * @return
+	 */
+	public static int getWeeksBetween(long first, long last, boolean inclusive){
+		return DateEngine.getDefault().weeksBetween(first, last, inclusive);
+	}
+
+	/**
+	 * Returns the number of quarters between the two given dates; see DateUtil.getQuartersBetween().
+	 * @param first
+	 * @param last
+	 * @param inclusive
+	 * @return
+	 */
+	public static int getQuartersBetween(long first, long last, boolean inclusive){
+		return DateEngine.getDefault().quartersBetween(first, last, inclusive);
+	}
+
+	/**
+	 * Returns the number of years between the two given dates; see DateUtil.getYearsBetween().
+	 * @param first
+	 * @param last
+	 * @param inclusive
+	 * @return
+	 */
+	public static int getYearsBetween(long first, long last, boolean inclusive){
+		return DateEngine.getDefault().yearsBetween(first, last, inclusive);
+	}
+
+	/**
+	 * Return the year for the given date.
+	 * @param date
+	 * @return
+	 */
+	public static int getYear(long date){
+		return DateEngine.getDefault().year(date);
+	}
+
+	/**
+	 * Return the month for the given date.  January is 0, etc.
+	 * @param date
+	 * @return
+	 */
+	public static int getMonth(long date){
+		return DateEngine.getDefault().month(date);
+	}
+
+	/**
+	 * Return the day of the month for the given date.
+	 * @param date
+	 * @return
+	 */
+	public static int getDay(long date){
+		return DateEngine.getDefault().day(date);
+	}
+
+	/**
+	 * Return the hour (in 24 hour format).
+	 * @param date
+	 * @return
+	 */
+	public static int getHour(long date){
+		return DateEngine.getDefault().hour(date);
+	}
+
+	/**
+	 * Return the minute for the given date.
+	 * @param date
+	 * @return
+	 */
+	public static int getMinute(long date){
+		return DateEngine.getDefault().minute(date);
+	}
+
+	/**
+	 * Return the second for the given date.
+	 * @param date
+	 * @return
+	 */
+	public static int getSecond(long date){
+		return DateEngine.getDefault().second(date);
+	}
+
+	/**
+	 * Return the start of the given day.  As with Calendar, month and day are lenient.
+	 * @param year
+	 * @param month
+	 * @param day
+	 * @return
+	 */
+	public static long getDate(int year, int month, int day){
+		return DateEngine.getDefault().date(year, month, day, System.currentTimeMillis());
+	}
+
+	/**
+	 * Return the start of the given month.
+	 * @param year
+	 * @param month
+	 * @return
+	 */
+	public static long getDate(int year, int month){
+		return getStartOfMonth(getDate(year, month, 1));
+	}
+
+	/**
+	 * Return the start of the given year.
+	 * @param year
+	 * @return
+	 */
+	public static long getDate(int year){
+		return getStartOfYear(getDate(year, 0, 1));
+	}
+
+	/**
+	 * Returns the day as an int of the form yyyymmdd, e.g. 20090522.  Keys sort in date
+	 * order, so they can be used as sort keys, or as keys in primitive maps.
+	 * @param date
+	 * @return
+	 */
+	public static int getDayKey(long date){
+		return DateEngine.getDefault().dayKey(date);
+	}
+
+	/**
+	 * Returns the week as the day key (yyyymmdd) of the first day of the week.  Whether
+	 * this is Sunday or Monday will depend on the current locale.
+	 * @param date
+	 * @return
+	 */
+	public static int getWeekKey(long date){
+		return DateEngine.getDefault().weekKey(date);
+	}
+
+	/**
+	 * Returns the month as an int of the form yyyymm, e.g. 200905.
+	 * @param date
+	 * @return
+	 */
+	public static int getMonthKey(long date){
+		return DateEngine.getDefault().monthKey(date);
+	}
+
+	/**
+	 * Returns the quarter as an int of the form yyyyq, e.g. 20092 for April - June 2009.
+	 * @param date
+	 * @return
+	 */
+	public static int getQuarterKey(long date){
+		return DateEngine.getDefault().quarterKey(date);
+	}
+
+	/**
+	 * Returns the (Gregorian) year as an int.
+	 * @param date
+	 * @return
+	 */
+	public static int getYearKey(long date){
+		return DateEngine.getDefault().yearKey(date);
+	}
+
+	/**
+	 * Checks if the two given dates are the same day.
+	 * @param d1
+	 * @param d2
+	 * @return
+	 */
+	public static boolean isSameDay(long d1, long d2){
+		return getDayKey(d1) == getDayKey(d2);
+	}
+
+	/**
+	 * Checks if two dates exist in the same calendar week.  Whether Sunday or Monday
+	 * is defined as the start of the week depends on the locale.
+	 * @param d1
+	 * @param d2
+	 * @return
+	 */
+	public static boolean isSameWeek(long d1, long d2){
+		return DateEngine.getDefault().isSameWeek(d1, d2);
+	}
+
+	/**
+	 * Checks if the two given dates are the same month.
+	 * @param d1
+	 * @param d2
+	 * @return
+	 */
+	public static boolean isSameMonth(long d1, long d2){
+		return DateEngine.getDefault().isSameMonth(d1, d2);
+	}
+
+	/**
+	 * Checks if the two given dates are the same quarter.
+	 * @param d1
+	 * @param d2
+	 * @return
+	 */
+	public static boolean isSameQuarter(long d1, long d2){
+		return getQuarterKey(d1) == getQuarterKey(d2);
+	}
+
+	/**
+	 * Checks if the two given dates are the same year.
+	 * @param d1
+	 * @param d2
+	 * @return
+	 */
+	public static boolean isSameYear(long d1, long d2){
+		return DateEngine.getDefault().isSameYear(d1, d2);
+	}
+
+	/**
+	 * Returns the number of days in the month, for the date given.
+	 * @param date
+	 * @return
+	 */
+	public static int getDaysInMonth(long date){
+		return DateEngine.getDefault().daysInMonth(date);
+	}
+
+	/**
+	 * Returns the number of days in the year, for the date given.
+	 * @param date
+	 * @return
+	 */
+	public static int getDaysInYear(long date){
+		return DateEngine.getDefault().daysInYear(date);
+	}
+}
@@ -2,17 +2,28 @@ package ca.digitalcave.moss.common;
 
 import java.util.Calendar;
 import java.util.Date;
-import java.util.GregorianCalendar;
 
 /**
  * @author wyatt
  * A collection of date related functions.  Created from scratch, as a replacement for 
  * DateUtil (from Koders.net) when I changed Moss to include only code which I personally 
  * wrote (and thus have copyright to).
+ * 
+ * The calculations are done by DateEngine, using epoch day arithmetic rather than
+ * Calendar objects.  The JVM default time zone and locale are read when first needed;
+ * if your program changes the default time zone afterwards, call resetDefaults().
  */
 public class DateUtil {
 //	private static Calendar calendar = Calendar.getInstance();
 	
+	/**
+	 * Discards the cached default time zone and locale, so that they are read again
+	 * from the JVM on the next call.
+	 */
+	public static void resetDefaults(){
+		DateEngine.resetDefault();
+	}
+	
 	/**
 	 * Returns the first milisecond in the given date.
 	 * @param date
@@ -21,14 +32,7 @@ public class DateUtil {
 	public static Date getStartOfDay(Date date){
 		if (date == null)
 			return null;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		calendar.set(Calendar.HOUR_OF_DAY, calendar.getActualMinimum(Calendar.HOUR_OF_DAY));
-		calendar.set(Calendar.MINUTE, calendar.getActualMinimum(Calendar.MINUTE));
-		calendar.set(Calendar.SECOND, calendar.getActualMinimum(Calendar.SECOND));
-		calendar.set(Calendar.MILLISECOND, calendar.getActualMinimum(Calendar.MILLISECOND));
-		
-		return ((Date) calendar.getTime().clone());
+		return new Date(DateEngine.getDefault().startOfDay(date.getTime()));
 	}
 	
 	/**
@@ -40,15 +44,7 @@ public class DateUtil {
 	public static Date getStartOfWeek(Date date){
 		if (date == null)
 			return null;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		calendar.set(Calendar.DAY_OF_WEEK, Calendar.getInstance().getFirstDayOfWeek());
-		calendar.set(Calendar.HOUR_OF_DAY, calendar.getActualMinimum(Calendar.HOUR_OF_DAY));
-		calendar.set(Calendar.MINUTE, calendar.getActualMinimum(Calendar.MINUTE));
-		calendar.set(Calendar.SECOND, calendar.getActualMinimum(Calendar.SECOND));
-		calendar.set(Calendar.MILLISECOND, calendar.getActualMinimum(Calendar.MILLISECOND));
-		
-		return ((Date) calendar.getTime().clone());
+		return new Date(DateEngine.getDefault().startOfWeek(date.getTime()));
 	}
 	
 	/**
@@ -59,14 +55,7 @@ public class DateUtil {
 	public static Date getEndOfDay(Date date){
 		if (date == null)
 			return null;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		calendar.set(Calendar.HOUR_OF_DAY, calendar.getActualMaximum(Calendar.HOUR_OF_DAY));
-		calendar.set(Calendar.MINUTE, calendar.getActualMaximum(Calendar.MINUTE));
-		calendar.set(Calendar.SECOND, calendar.getActualMaximum(Calendar.SECOND));
-		calendar.set(Calendar.MILLISECOND, calendar.getActualMaximum(Calendar.MILLISECOND));
-		
-		return ((Date) calendar.getTime().clone());
+		return new Date(DateEngine.getDefault().endOfDay(date.getTime()));
 	}
 	
 	/**
@@ -77,15 +66,7 @@ public class DateUtil {
 	public static Date getEndOfWeek(Date date){
 		if (date == null)
 			return null;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		calendar.set(Calendar.DAY_OF_WEEK, Calendar.getInstance().getFirstDayOfWeek());
-		calendar.set(Calendar.HOUR_OF_DAY, calendar.getActualMaximum(Calendar.HOUR_OF_DAY));
-		calendar.set(Calendar.MINUTE, calendar.getActualMaximum(Calendar.MINUTE));
-		calendar.set(Calendar.SECOND, calendar.getActualMaximum(Calendar.SECOND));
-		calendar.set(Calendar.MILLISECOND, calendar.getActualMaximum(Calendar.MILLISECOND));
-		
-		return ((Date) getEndOfDay(addDays(calendar.getTime(), 6)).clone());
+		return new Date(DateEngine.getDefault().endOfWeek(date.getTime()));
 	}
 	
 	/**
@@ -97,12 +78,7 @@ public class DateUtil {
 	public static Date addSeconds(Date date, int offset){
 		if (date == null)
 			return null;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		calendar.add(Calendar.SECOND, offset);
-		
-		return ((Date) calendar.getTime().clone());
-		
+		return new Date(DateEngine.getDefault().addSeconds(date.getTime(), offset));
 	}
 	
 	/**
@@ -114,12 +90,7 @@ public class DateUtil {
 	public static Date addMinutes(Date date, int offset){
 		if (date == null)
 			return null;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		calendar.add(Calendar.MINUTE, offset);
-		
-		return ((Date) calendar.getTime().clone());
-		
+		return new Date(DateEngine.getDefault().addMinutes(date.getTime(), offset));
 	}
 	
 	/**
@@ -131,12 +102,7 @@ public class DateUtil {
 	public static Date addHours(Date date, int offset){
 		if (date == null)
 			return null;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		calendar.add(Calendar.HOUR_OF_DAY, offset);
-		
-		return ((Date) calendar.getTime().clone());
-		
+		return new Date(DateEngine.getDefault().addHours(date.getTime(), offset));
 	}
 	
 	/**
@@ -148,12 +114,7 @@ public class DateUtil {
 	public static Date addDays(Date date, int offset){
 		if (date == null)
 			return null;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		calendar.add(Calendar.DAY_OF_MONTH, offset);
-		
-		return ((Date) calendar.getTime().clone());
-		
+		return new Date(DateEngine.getDefault().addDays(date.getTime(), offset));
 	}
 	
 	/**
@@ -168,24 +129,13 @@ public class DateUtil {
 	public static Date addMonths(Date date, int offset){
 		if (date == null)
 			return null;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		calendar.add(Calendar.MONTH, offset);
-		
-		if (calendar.getActualMaximum(Calendar.DAY_OF_MONTH) < calendar.get(Calendar.DAY_OF_MONTH))
-			calendar.set(Calendar.DAY_OF_MONTH, calendar.getActualMaximum(Calendar.DAY_OF_MONTH));
-		
-		return ((Date) calendar.getTime().clone());
+		return new Date(DateEngine.getDefault().addMonths(date.getTime(), offset));
 	}
 	
 	public static Date addQuarters(Date date, int quarterOffset){
 		if (date == null)
 			return null;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		calendar.add(GregorianCalendar.MONTH, quarterOffset * 3); //3 months in a quarter
-
-		return ((Date) calendar.getTime().clone());
+		return new Date(DateEngine.getDefault().addQuarters(date.getTime(), quarterOffset));
 	}
 	
 	/**
@@ -198,12 +148,7 @@ public class DateUtil {
 	public static Date addYears(Date date, int offset){
 		if (date == null)
 			return null;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		calendar.add(Calendar.YEAR, offset);
-		
-		return ((Date) calendar.getTime().clone());
-		
+		return new Date(DateEngine.getDefault().addYears(date.getTime(), offset));
 	}
 
 	
@@ -215,15 +160,7 @@ public class DateUtil {
 	public static Date getStartOfMonth(Date date){
 		if (date == null)
 			return null;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		calendar.set(Calendar.DAY_OF_MONTH, calendar.getActualMinimum(Calendar.DAY_OF_MONTH));
-		calendar.set(Calendar.HOUR_OF_DAY, calendar.getActualMinimum(Calendar.HOUR_OF_DAY));
-		calendar.set(Calendar.MINUTE, calendar.getActualMinimum(Calendar.MINUTE));
-		calendar.set(Calendar.SECOND, calendar.getActualMinimum(Calendar.SECOND));
-		calendar.set(Calendar.MILLISECOND, calendar.getActualMinimum(Calendar.MILLISECOND));
-		
-		return ((Date) calendar.getTime().clone());
+		return new Date(DateEngine.getDefault().startOfMonth(date.getTime()));
 	}
 	
 	/**
@@ -234,15 +171,7 @@ public class DateUtil {
 	public static Date getEndOfMonth(Date date){
 		if (date == null)
 			return null;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		calendar.set(Calendar.DAY_OF_MONTH, calendar.getActualMaximum(Calendar.DAY_OF_MONTH));
-		calendar.set(Calendar.HOUR_OF_DAY, calendar.getActualMaximum(Calendar.HOUR_OF_DAY));
-		calendar.set(Calendar.MINUTE, calendar.getActualMaximum(Calendar.MINUTE));
-		calendar.set(Calendar.SECOND, calendar.getActualMaximum(Calendar.SECOND));
-		calendar.set(Calendar.MILLISECOND, calendar.getActualMaximum(Calendar.MILLISECOND));
-		
-		return ((Date) calendar.getTime().clone());
+		return new Date(DateEngine.getDefault().endOfMonth(date.getTime()));
 	}
 	
 	/**
@@ -257,16 +186,7 @@ public class DateUtil {
 	public static Date getStartOfQuarter(Date date){
 		if (date == null)
 			return null;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		int quarterNumber = calendar.get(GregorianCalendar.MONTH) / 3;
-		
-		if (quarterNumber < 0 || quarterNumber > 3)
-			throw new RuntimeException("Error when calculating quarter: date = " + date + " results in quarter = " + quarterNumber);
-		
-		calendar.set(GregorianCalendar.MONTH, quarterNumber * 3);
-		calendar.set(GregorianCalendar.DAY_OF_MONTH, calendar.getActualMinimum(GregorianCalendar.DAY_OF_MONTH));
-		return getStartOfDay((Date) calendar.getTime().clone());
+		return new Date(DateEngine.getDefault().startOfQuarter(date.getTime()));
 	}
 	
 	/**
@@ -276,7 +196,9 @@ public class DateUtil {
 	 * @return
 	 */
 	public static Date getEndOfQuarter(Date date){
-		return getEndOfDay(addDays(addQuarters(getStartOfQuarter(date), 1), -1));
+		if (date == null)
+			return null;
+		return new Date(DateEngine.getDefault().endOfQuarter(date.getTime()));
 	}
 	
 	/**
@@ -287,16 +209,7 @@ public class DateUtil {
 	public static Date getStartOfYear(Date date){
 		if (date == null)
 			return null;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		calendar.set(Calendar.MONTH, 0);
-		calendar.set(Calendar.DAY_OF_MONTH, 1);
-		calendar.set(Calendar.HOUR_OF_DAY, 0);
-		calendar.set(Calendar.MINUTE, 0);
-		calendar.set(Calendar.SECOND, 0);
-		calendar.set(Calendar.MILLISECOND, 0);
-		
-		return ((Date) calendar.getTime().clone());
+		return new Date(DateEngine.getDefault().startOfYear(date.getTime()));
 	}
 	
 	/**
@@ -307,16 +220,7 @@ public class DateUtil {
 	public static Date getEndOfYear(Date date) {
 		if (date == null)
 			return null;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		calendar.set(Calendar.MONTH, calendar.getActualMaximum(Calendar.MONTH));
-		calendar.set(Calendar.DAY_OF_MONTH, calendar.getActualMaximum(Calendar.DAY_OF_MONTH));
-		calendar.set(Calendar.HOUR_OF_DAY, calendar.getActualMaximum(Calendar.HOUR_OF_DAY));
-		calendar.set(Calendar.MINUTE, calendar.getActualMaximum(Calendar.MINUTE));
-		calendar.set(Calendar.SECOND, calendar.getActualMaximum(Calendar.SECOND));
-		calendar.set(Calendar.MILLISECOND, calendar.getActualMaximum(Calendar.MILLISECOND));
-		
-		return ((Date) calendar.getTime().clone());
+		return new Date(DateEngine.getDefault().endOfYear(date.getTime()));
 	}
 	
 	
@@ -336,13 +240,65 @@ public class DateUtil {
 	public static int getMonthsBetween(Date first, Date last, boolean inclusive) {
 		if (first == null || last == null)
 			return 0;
-
-		int firstYear = getYear(first);
-		int firstMonth = getMonth(first);
-		int lastYear = getYear(last);
-		int lastMonth = getMonth(last);
-		
-		return lastMonth - firstMonth + (12 * (lastYear - firstYear)) + (inclusive ? (first.compareTo(last) > 0 ? 1 : -1) : 0);
+		return DateEngine.getDefault().monthsBetween(first.getTime(), last.getTime(), inclusive);
+	}
+	
+	/**
+	 * Returns the number of weeks between the two given dates.  This is the number of
+	 * week boundaries (as defined by the locale's first day of the week) between them, so
+	 * a Saturday and the following Sunday are one week apart in a Sunday-first locale.  For
+	 * inclusive bit set, return the result + 1 (or result - 1 if first is after last).
+	 * 
+	 * If either date is null, returns 0.
+	 * 
+	 * If first is after last, it will return a negative number.
+	 * @param first
+	 * @param last
+	 * @param inclusive
+	 * @return
+	 */
+	public static int getWeeksBetween(Date first, Date last, boolean inclusive) {
+		if (first == null || last == null)
+			return 0;
+		return DateEngine.getDefault().weeksBetween(first.getTime(), last.getTime(), inclusive);
+	}
+	
+	/**
+	 * Returns the number of quarters between the two given dates.  This is defined as 
+	 * endDate.quarter - startDate.quarter for quarters in the same year.  For inclusive bit set,
+	 * return the result + 1 (or result - 1 if first is after last).
+	 * 
+	 * If either date is null, returns 0.
+	 * 
+	 * If first is after last, it will return a negative number.
+	 * @param first
+	 * @param last
+	 * @param inclusive
+	 * @return
+	 */
+	public static int getQuartersBetween(Date first, Date last, boolean inclusive) {
+		if (first == null || last == null)
+			return 0;
+		return DateEngine.getDefault().quartersBetween(first.getTime(), last.getTime(), inclusive);
+	}
+	
+	/**
+	 * Returns the number of years between the two given dates.  This is defined as 
+	 * endDate.year - startDate.year.  For inclusive bit set, return the result + 1 
+	 * (or result - 1 if first is after last).
+	 * 
+	 * If either date is null, returns 0.
+	 * 
+	 * If first is after last, it will return a negative number.
+	 * @param first
+	 * @param last
+	 * @param inclusive
+	 * @return
+	 */
+	public static int getYearsBetween(Date first, Date last, boolean inclusive) {
+		if (first == null || last == null)
+			return 0;
+		return DateEngine.getDefault().yearsBetween(first.getTime(), last.getTime(), inclusive);
 	}
 	
 	/**
@@ -361,61 +317,7 @@ public class DateUtil {
 	public static int getDaysBetween(Date first, Date last, boolean inclusive) {
 		if (first == null || last == null)
 			return 0;
-		
-		Calendar cFirst = Calendar.getInstance();
-		Calendar cLast = Calendar.getInstance();
-		
-		cFirst.setTime(first);
-		cLast.setTime(last);
-
-		int daysBetween;
-		if (cFirst.get(Calendar.YEAR) == cLast.get(Calendar.YEAR)){
-			daysBetween = cLast.get(Calendar.DAY_OF_YEAR) - cFirst.get(Calendar.DAY_OF_YEAR);
-		}
-		else {
-			Calendar cTemp;
-			boolean swap = false;
-			if (cFirst.get(Calendar.YEAR) > cLast.get(Calendar.YEAR)){
-				//We are now guaranteed that cFirst is befire cLast.
-				swap = true;
-				cTemp = cFirst;
-				cFirst = cLast;
-				cLast = cTemp;
-			}
-
-			cTemp = Calendar.getInstance();
-			cTemp.setTime(cFirst.getTime());
-			cTemp.set(Calendar.DAY_OF_YEAR, cTemp.getActualMaximum(Calendar.DAY_OF_YEAR));
-			int daysAfterFirstDateInYear = getDaysBetween(cFirst.getTime(), cTemp.getTime(), true);
-
-			cTemp = Calendar.getInstance();
-			cTemp.setTime(cLast.getTime());
-			cTemp.set(Calendar.DAY_OF_YEAR, cTemp.getActualMinimum(Calendar.DAY_OF_YEAR));
-			int daysBeforeLastDateInYear = getDaysBetween(cTemp.getTime(), cLast.getTime(), false);
-			
-			int daysInCompleteYearsBetweenDates = 0;
-			for (int i = cFirst.get(Calendar.YEAR) + 1; i < cLast.get(Calendar.YEAR); i++){
-				cTemp.set(Calendar.YEAR, i);
-				daysInCompleteYearsBetweenDates += cTemp.getActualMaximum(Calendar.DAY_OF_YEAR);
-			}
-
-			daysBetween = daysAfterFirstDateInYear + daysInCompleteYearsBetweenDates + daysBeforeLastDateInYear;
-			if (swap)
-				daysBetween *= -1;
-		}
-
-		int adjustment = 0;
-		if (inclusive){
-			if (first.equals(last))
-				adjustment = 1;
-			else if (first.before(last))
-				adjustment = 1;
-			else
-				adjustment = -1;
-		}
-	
-	return (int) daysBetween + adjustment;
-		
+		return DateEngine.getDefault().daysBetween(first.getTime(), last.getTime(), inclusive);
 	}
 //	public static int getDaysBetween(Date first, Date last, boolean inclusive) {
 //		if (first == null || last == null)
@@ -447,10 +349,7 @@ public class DateUtil {
 	public static int getYear(Date date){
 		if (date == null)
 			return 0;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		
-		return calendar.get(Calendar.YEAR);
+		return DateEngine.getDefault().year(date.getTime());
 	}
 
 	/**
@@ -461,10 +360,7 @@ public class DateUtil {
 	public static int getMonth(Date date){
 		if (date == null)
 			return -1;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		
-		return calendar.get(Calendar.MONTH);
+		return DateEngine.getDefault().month(date.getTime());
 	}
 
 	
@@ -476,10 +372,7 @@ public class DateUtil {
 	public static int getDay(Date date){
 		if (date == null)
 			return 0;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		
-		return calendar.get(Calendar.DAY_OF_MONTH);
+		return DateEngine.getDefault().day(date.getTime());
 	}
 	
 	/**
@@ -490,10 +383,7 @@ public class DateUtil {
 	public static int getHour(Date date){
 		if (date == null)
 			return -1;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		
-		return calendar.get(Calendar.HOUR_OF_DAY);
+		return DateEngine.getDefault().hour(date.getTime());
 	}
 
 	/**
@@ -504,10 +394,7 @@ public class DateUtil {
 	public static int getMinute(Date date){
 		if (date == null)
 			return -1;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		
-		return calendar.get(Calendar.MINUTE);
+		return DateEngine.getDefault().minute(date.getTime());
 	}
 
 	/**
@@ -518,10 +405,7 @@ public class DateUtil {
 	public static int getSecond(Date date){
 		if (date == null)
 			return -1;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		
-		return calendar.get(Calendar.SECOND);
+		return DateEngine.getDefault().second(date.getTime());
 	}
 
 	/**
@@ -532,12 +416,7 @@ public class DateUtil {
 	 * @return
 	 */
 	public static Date getDate(int year, int month, int day){
-		Calendar calendar = Calendar.getInstance();
-		calendar.set(Calendar.YEAR, year);
-		calendar.set(Calendar.MONTH, month);
-		calendar.set(Calendar.DAY_OF_MONTH, day);
-		
-		return getStartOfDay(calendar.getTime());
+		return new Date(DateEngine.getDefault().date(year, month, day, System.currentTimeMillis()));
 	}
 	
 	/**
@@ -569,14 +448,7 @@ public class DateUtil {
 	public static boolean isSameDay(Date d1, Date d2){
 		if (d1 == null || d2 == null)
 			return false;
-		//Since the vast majority of dates compared will return false, we have a simple
-		// check which will eliminate most of the further checks.
-		if (d1.getTime() < d2.getTime() - 86400000 
-				|| d2.getTime() < d1.getTime() - 86400000)
-			return false;
-		if (getDay(d1) != getDay(d2))
-			return false;
-		return true;
+		return DateEngine.getDefault().dayKey(d1.getTime()) == DateEngine.getDefault().dayKey(d2.getTime());
 	}
 	
 	/**
@@ -587,7 +459,9 @@ public class DateUtil {
 	 * @return
 	 */
 	public static boolean isSameWeek(Date d1, Date d2){
-		return getStartOfWeek(d1).getTime() == getStartOfWeek(d2).getTime();
+		if (d1 == null || d2 == null)
+			return false;
+		return DateEngine.getDefault().isSameWeek(d1.getTime(), d2.getTime());
 	}
 	
 	/**
@@ -599,15 +473,19 @@ public class DateUtil {
 	public static boolean isSameMonth(Date d1, Date d2){
 		if (d1 == null || d2 == null)
 			return false;
-		if (d1.getTime() < d2.getTime() - 2764800000l 
-				|| d2.getTime() < d1.getTime() - 2764800000l)
-			return false;
-		
-//		if (getYear(d1) != getYear(d2))
-//			return false;
-		if (getMonth(d1) != getMonth(d2))
+		return DateEngine.getDefault().isSameMonth(d1.getTime(), d2.getTime());
+	}
+	
+	/**
+	 * Checks if the two given dates are the same quarter.  If either date is null, returns false.
+	 * @param d1
+	 * @param d2
+	 * @return
+	 */
+	public static boolean isSameQuarter(Date d1, Date d2){
+		if (d1 == null || d2 == null)
 			return false;
-		return true;
+		return DateEngine.getDefault().quarterKey(d1.getTime()) == DateEngine.getDefault().quarterKey(d2.getTime());
 	}
 	
 	/**
@@ -619,9 +497,7 @@ public class DateUtil {
 	public static boolean isSameYear(Date d1, Date d2){
 		if (d1 == null || d2 == null)
 			return false;
-		if (getYear(d1) != getYear(d2))
-			return false;
-		return true;
+		return DateEngine.getDefault().isSameYear(d1.getTime(), d2.getTime());
 	}
 	
 	/**
@@ -632,9 +508,7 @@ public class DateUtil {
 	public static int getDaysInMonth(Date date){
 		if (date == null)
 			return -1;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		return calendar.getActualMaximum(Calendar.DATE);
+		return DateEngine.getDefault().daysInMonth(date.getTime());
 	}
 	
 	/**
@@ -645,9 +519,7 @@ public class DateUtil {
 	public static int getDaysInYear(Date date){
 		if (date == null)
 			return -1;
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		return calendar.getActualMaximum(Calendar.DAY_OF_YEAR);
+		return DateEngine.getDefault().daysInYear(date.getTime());
 	}
 	
 	/**
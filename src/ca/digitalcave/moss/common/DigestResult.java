@@ -0,0 +1,97 @@
+package ca.digitalcave.moss.common;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author wyatt
+ * The result of StreamUtil.copyStreamDigested(): the CopyResult of the copy, and the
+ * value of each digest or checksum which was computed over the data as it passed
+ * through.  Values are looked up by the algorithm name given to the copy.  Checksums
+ * (CRC32, CRC32C, Adler32) are available both as a number and, like digests, as bytes
+ * (big endian, four bytes).
+ */
+public final class DigestResult {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final CopyResult result;
+	private final Map<String, byte[]> digests;
+	private final Map<String, Long> checksums;
+
+	DigestResult(CopyResult result, Map<String, byte[]> digests, Map<String, Long> checksums){
+		this.result = result;
+		this.digests = Collections.unmodifiableMap(new LinkedHashMap<String, byte[]>(digests));
+		this.checksums = Collections.unmodifiableMap(new LinkedHashMap<String, Long>(checksums));
+	}
+
+	public CopyResult getResult(){
+		return result;
+	}
+
+	/**
+	 * Returns the number of bytes copied (and digested).
+	 * @return
+	 */
+	public long getBytes(){
+		return result.getBytes();
+	}
+
+	/**
+	 * Returns the algorithm names, in the order given to the copy.
+	 * @return
+	 */
+	public Set<String> getAlgorithms(){
+		return digests.keySet();
+	}
+
+	/**
+	 * Returns the value of the given digest or checksum.
+	 * @param algorithm
+	 * @return
+	 */
+	public byte[] getDigest(String algorithm){
+		byte[] digest = digests.get(algorithm);
+		if (digest == null)
+			throw new IllegalArgumentException("Not computed: " + algorithm);
+		return Arrays.copyOf(digest, digest.length);
+	}
+
+	/**
+	 * Returns the value of the given digest or checksum as lower case hex.
+	 * @param algorithm
+	 * @return
+	 */
+	public String getHex(String algorithm){
+		byte[] digest = getDigest(algorithm);
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++){
+			hex[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+			hex[i * 2 + 1] = HEX[digest[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Returns the value of the given checksum (CRC32, CRC32C or Adler32).
+	 * @param algorithm
+	 * @return
+	 */
+	public long getChecksum(String algorithm){
+		Long checksum = checksums.get(algorithm);
+		if (checksum == null)
+			throw new IllegalArgumentException("Not a computed checksum: " + algorithm);
+		return checksum;
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder sb = new StringBuilder("DigestResult[bytes=").append(getBytes());
+		for (String algorithm : digests.keySet()){
+			sb.append(", ").append(algorithm).append('=').append(getHex(algorithm));
+		}
+		return sb.append(']').toString();
+	}
+}
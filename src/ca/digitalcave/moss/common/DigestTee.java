@@ -0,0 +1,76 @@
+package ca.digitalcave.moss.common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * @author wyatt
+ * A set of digests (any MessageDigest algorithm, e.g. SHA-256) and checksums (CRC32,
+ * CRC32C, Adler32) updated together from the buffers of a copy, for
+ * StreamUtil.copyStreamDigested().
+ */
+final class DigestTee {
+	private final String[] algorithms;
+	//For each algorithm, either the digest or the checksum is set
+	private final MessageDigest[] digests;
+	private final Checksum[] checksums;
+
+	DigestTee(String... algorithms){
+		this.algorithms = algorithms.clone();
+		this.digests = new MessageDigest[algorithms.length];
+		this.checksums = new Checksum[algorithms.length];
+		for (int i = 0; i < algorithms.length; i++){
+			String algorithm = algorithms[i];
+			if (algorithm == null)
+				throw new NullPointerException("algorithm");
+			for (int j = 0; j < i; j++){
+				if (algorithms[j].equalsIgnoreCase(algorithm))
+					throw new IllegalArgumentException("Algorithm given twice: " + algorithm);
+			}
+			if (algorithm.equalsIgnoreCase("CRC32"))
+				checksums[i] = new CRC32();
+			else if (algorithm.equalsIgnoreCase("CRC32C"))
+				checksums[i] = Crc32c.create();
+			else if (algorithm.equalsIgnoreCase("Adler32"))
+				checksums[i] = new Adler32();
+			else {
+				try {
+					digests[i] = MessageDigest.getInstance(algorithm);
+				}
+				catch (NoSuchAlgorithmException nsae){
+					throw new IllegalArgumentException("Unknown algorithm: " + algorithm, nsae);
+				}
+			}
+		}
+	}
+
+	void update(byte[] data, int offset, int length){
+		for (int i = 0; i < algorithms.length; i++){
+			if (digests[i] != null)
+				digests[i].update(data, offset, length);
+			else
+				checksums[i].update(data, offset, length);
+		}
+	}
+
+	DigestResult finish(CopyResult result){
+		Map<String, byte[]> values = new LinkedHashMap<String, byte[]>();
+		Map<String, Long> checksumValues = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < algorithms.length; i++){
+			if (digests[i] != null){
+				values.put(algorithms[i], digests[i].digest());
+			}
+			else {
+				long value = checksums[i].getValue();
+				checksumValues.put(algorithms[i], value);
+				values.put(algorithms[i], new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+			}
+		}
+		return new DigestResult(result, values, checksumValues);
+	}
+}
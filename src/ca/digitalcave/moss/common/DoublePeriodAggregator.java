@@ -0,0 +1,103 @@
+package ca.digitalcave.moss.common;
+
+import java.util.Arrays;
+
+/**
+ * @author wyatt
+ * A PeriodAggregator for double values.  For periods which have no values, the sum
+ * is 0 and the min and max are NaN.
+ *
+ *	DoublePeriodAggregator totals = new DoublePeriodAggregator(new PeriodRange(PeriodType.MONTH, start, end));
+ *	totals.addAll(timestamps, amounts);
+ *	for (int i = 0; i < totals.size(); i++)
+ *		print(totals.getPeriodStart(i), totals.getSum(i));
+ */
+public class DoublePeriodAggregator extends PeriodAggregator {
+	private final double[] sums;
+	private final double[] mins;
+	private final double[] maxes;
+
+	public DoublePeriodAggregator(PeriodRange range){
+		super(range);
+		this.sums = new double[size()];
+		this.mins = new double[size()];
+		this.maxes = new double[size()];
+		Arrays.fill(mins, Double.POSITIVE_INFINITY);
+		Arrays.fill(maxes, Double.NEGATIVE_INFINITY);
+	}
+
+	@Override
+	public DoublePeriodAggregator newPartial(){
+		return new DoublePeriodAggregator(getRange());
+	}
+
+	/**
+	 * Adds a single value, in the period containing the given time.
+	 * @param time
+	 * @param value
+	 */
+	public void add(long time, double value){
+		int i = indexOf(time);
+		if (i < 0)
+			return;
+		counts[i]++;
+		sums[i] += value;
+		if (value < mins[i])
+			mins[i] = value;
+		if (value > maxes[i])
+			maxes[i] = value;
+	}
+
+	/**
+	 * Adds values[i] in the period containing times[i], for each i.  Large arrays are
+	 * split between all available processors.
+	 * @param times
+	 * @param values
+	 */
+	public void addAll(final long[] times, final double[] values){
+		if (times.length != values.length)
+			throw new IllegalArgumentException("times and values must be the same length");
+		addAllParallel(0, times.length, new Chunk() {
+			public void add(PeriodAggregator target, int from, int to) {
+				DoublePeriodAggregator aggregator = (DoublePeriodAggregator) target;
+				for (int i = from; i < to; i++){
+					aggregator.add(times[i], values[i]);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void merge(PeriodAggregator other){
+		super.merge(other);
+		DoublePeriodAggregator o = (DoublePeriodAggregator) other;
+		for (int i = 0; i < sums.length; i++){
+			sums[i] += o.sums[i];
+			if (o.mins[i] < mins[i])
+				mins[i] = o.mins[i];
+			if (o.maxes[i] > maxes[i])
+				maxes[i] = o.maxes[i];
+		}
+	}
+
+	public double getSum(int period){
+		return sums[period];
+	}
+
+	public double getMin(int period){
+		return counts[period] == 0 ? Double.NaN : mins[period];
+	}
+
+	public double getMax(int period){
+		return counts[period] == 0 ? Double.NaN : maxes[period];
+	}
+
+	/**
+	 * Returns the mean of the values in the given period, or NaN if there are none.
+	 * @param period
+	 * @return
+	 */
+	public double getMean(int period){
+		return counts[period] == 0 ? Double.NaN : sums[period] / counts[period];
+	}
+}
@@ -0,0 +1,306 @@
+package ca.digitalcave.moss.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * @author wyatt
+ * A copy from one input stream to several sinks (output streams or channels), for
+ * StreamUtil.copyStreamFanOut().  Each block is read once, into a ring of buffers
+ * (borrowed from the default BufferPool), and every sink writes it from there on its
+ * own task, so the sinks write in parallel.
+ *
+ * Each sink keeps its own place in the ring.  A slot is only read into again once every
+ * sink still running has written it, so a slow sink may fall up to the depth of the
+ * ring behind the others before the reader waits for it; memory use is bounded by the
+ * ring, not by the difference in speed.  A sink which fails is dropped: its error is
+ * recorded in the result, and the other sinks carry on without it.  The copy stops early
+ * only if every sink has failed.  An error reading the input fails the whole copy.
+ *
+ * The reader runs on the calling thread; all state is guarded by this.
+ */
+final class FanOutCopy {
+	private final InputStream is;
+	private final Sink[] sinks;
+	private final int bufferSize;
+	private final byte[][] buffers;
+	private final int[] lengths;
+
+	//Blocks published by the reader, and written by each sink
+	private long tail;
+	private final long[] heads;
+	private final boolean[] live;
+	private final Throwable[] errors;
+	private final CopyResult[] results;
+	private int liveSinks;
+	private int active;
+	private boolean stopped;
+	private boolean readerDone;
+
+	private long bytes;
+	private long reads;
+	private long readNanos;
+
+	FanOutCopy(InputStream is, OutputStream[] streams, WritableByteChannel[] channels, int bufferSize, int depth){
+		if (is == null)
+			throw new NullPointerException("is");
+		int count = streams != null ? streams.length : channels.length;
+		if (count == 0)
+			throw new IllegalArgumentException("At least one sink is required");
+		this.is = is;
+		this.sinks = new Sink[count];
+		for (int i = 0; i < count; i++){
+			if (streams != null){
+				if (streams[i] == null)
+					throw new NullPointerException("sinks[" + i + "]");
+				sinks[i] = new StreamSink(streams[i]);
+			}
+			else {
+				if (channels[i] == null)
+					throw new NullPointerException("sinks[" + i + "]");
+				if (channels[i] instanceof SelectableChannel && !((SelectableChannel) channels[i]).isBlocking())
+					throw new IllegalArgumentException("Non blocking channels are not supported");
+				sinks[i] = new ChannelSink(channels[i]);
+			}
+		}
+		this.heads = new long[count];
+		this.live = new boolean[count];
+		this.errors = new Throwable[count];
+		this.results = new CopyResult[count];
+		this.bufferSize = bufferSize;
+		this.buffers = new byte[depth][];
+		this.lengths = new int[depth];
+	}
+
+	/**
+	 * Starts a task for each sink on the executor, and copies the input to them on the
+	 * calling thread, returning when every sink has finished or failed.
+	 */
+	FanOutResult run(Executor executor) throws IOException {
+		long start = System.nanoTime();
+		for (int i = 0; i < buffers.length; i++){
+			buffers[i] = BufferPool.getDefault().borrowArray(bufferSize);
+		}
+		boolean succeeded = false;
+		try {
+			for (int i = 0; i < sinks.length; i++){
+				final int sink = i;
+				synchronized (this){
+					live[i] = true;
+					liveSinks++;
+					active++;
+				}
+				try {
+					executor.execute(new Runnable() {
+						public void run() {
+							runSink(sink);
+						}
+					});
+				}
+				catch (RuntimeException re){
+					//A sink we cannot start has failed like any other
+					failed(i, re);
+					synchronized (this){
+						results[i] = new CopyMeter(null, 0).finish(false);
+						exited();
+					}
+				}
+			}
+
+			read();
+
+			synchronized (this){
+				while (active > 0){
+					waitForSinks();
+				}
+			}
+			succeeded = true;
+			synchronized (this){
+				return new FanOutResult(bytes, System.nanoTime() - start, readNanos, reads, results.clone(), errors.clone());
+			}
+		}
+		finally {
+			synchronized (this){
+				if (!succeeded){
+					stopped = true;
+					notifyAll();
+				}
+				readerDone = true;
+				releaseIfDone();
+			}
+		}
+	}
+
+	private void read() throws IOException {
+		int depth = buffers.length;
+		while (true){
+			int slot;
+			synchronized (this){
+				while (liveSinks > 0 && tail - slowestHead() >= depth){
+					waitForSinks();
+				}
+				if (liveSinks == 0)
+					return;
+				slot = (int) (tail % depth);
+			}
+
+			//Every sink still running is past this slot, so we can fill it outside the lock
+			long started = System.nanoTime();
+			int bytesRead = is.read(buffers[slot]);
+			long nanos = System.nanoTime() - started;
+			reads++;
+			readNanos += nanos;
+			CopyMetrics.getInstance().recordRead(nanos);
+
+			synchronized (this){
+				lengths[slot] = bytesRead;
+				tail++;
+				notifyAll();
+			}
+			if (bytesRead < 0)
+				return;
+			bytes += bytesRead;
+		}
+	}
+
+	private void runSink(int sink){
+		Sink out = sinks[sink];
+		CopyMeter meter = new CopyMeter(null, 0);
+		int depth = buffers.length;
+		try {
+			while (true){
+				int slot;
+				int length;
+				synchronized (this){
+					while (heads[sink] == tail && !stopped){
+						wait();
+					}
+					if (stopped)
+						return;
+					slot = (int) (heads[sink] % depth);
+					length = lengths[slot];
+				}
+				long started = System.nanoTime();
+				if (length < 0){
+					out.finish();
+					meter.wrote(started, 0);
+					return;
+				}
+				out.write(buffers[slot], length);
+				meter.wrote(started, length);
+				synchronized (this){
+					heads[sink]++;
+					notifyAll();
+				}
+			}
+		}
+		catch (Throwable t){
+			failed(sink, t);
+		}
+		finally {
+			synchronized (this){
+				results[sink] = meter.finish(errors[sink] == null && !stopped);
+				exited();
+			}
+		}
+	}
+
+	private synchronized void failed(int sink, Throwable t){
+		errors[sink] = t;
+		if (live[sink]){
+			live[sink] = false;
+			liveSinks--;
+		}
+		notifyAll();
+	}
+
+	private synchronized void exited(){
+		active--;
+		notifyAll();
+		releaseIfDone();
+	}
+
+	/**
+	 * Returns the buffers to the pool once the reader has stopped and no sink is running.
+	 */
+	private void releaseIfDone(){
+		if (!readerDone || active > 0)
+			return;
+		for (int i = 0; i < buffers.length; i++){
+			if (buffers[i] != null)
+				BufferPool.getDefault().releaseArray(buffers[i]);
+			buffers[i] = null;
+		}
+	}
+
+	private long slowestHead(){
+		long slowest = Long.MAX_VALUE;
+		for (int i = 0; i < heads.length; i++){
+			if (live[i])
+				slowest = Math.min(slowest, heads[i]);
+		}
+		return slowest;
+	}
+
+	private void waitForSinks() throws InterruptedIOException {
+		try {
+			wait();
+		}
+		catch (InterruptedException ie){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Copy interrupted");
+		}
+	}
+
+	private static abstract class Sink {
+		abstract void write(byte[] data, int length) throws IOException;
+		abstract void finish() throws IOException;
+	}
+
+	/**
+	 * As with copyStream(), a stream is flushed and closed at the end of the copy.
+	 */
+	private static class StreamSink extends Sink {
+		private final OutputStream os;
+
+		StreamSink(OutputStream os){
+			this.os = os;
+		}
+
+		void write(byte[] data, int length) throws IOException {
+			os.write(data, 0, length);
+		}
+
+		void finish() throws IOException {
+			os.flush();
+			os.close();
+		}
+	}
+
+	/**
+	 * As with copyChannel(), a channel is not closed.
+	 */
+	private static class ChannelSink extends Sink {
+		private final WritableByteChannel channel;
+
+		ChannelSink(WritableByteChannel channel){
+			this.channel = channel;
+		}
+
+		void write(byte[] data, int length) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+			while (buffer.hasRemaining()){
+				channel.write(buffer);
+			}
+		}
+
+		void finish(){
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package ca.digitalcave.moss.common;
+
+/**
+ * @author wyatt
+ * The result of StreamUtil.copyStreamFanOut(): how much was read from the input, and
+ * for each sink (in the order given to the copy) a CopyResult of what was written to
+ * it, and the error which stopped it, if any.  A sink which failed does not fail the
+ * copy; check isSucceeded() to see whether every sink received all of the input.
+ */
+public final class FanOutResult {
+	private final long bytes;
+	private final long elapsedNanos;
+	private final long readNanos;
+	private final long reads;
+	private final CopyResult[] results;
+	private final Throwable[] errors;
+
+	FanOutResult(long bytes, long elapsedNanos, long readNanos, long reads, CopyResult[] results, Throwable[] errors){
+		this.bytes = bytes;
+		this.elapsedNanos = elapsedNanos;
+		this.readNanos = readNanos;
+		this.reads = reads;
+		this.results = results;
+		this.errors = errors;
+	}
+
+	/**
+	 * Returns the number of bytes read from the input.  This is less than the length of
+	 * the input only if every sink failed.
+	 * @return
+	 */
+	public long getBytes(){
+		return bytes;
+	}
+
+	/**
+	 * Returns the time from the start of the copy until the last sink finished, in
+	 * nanoseconds.
+	 * @return
+	 */
+	public long getElapsedNanos(){
+		return elapsedNanos;
+	}
+
+	/**
+	 * Returns the time spent in read calls, in nanoseconds.
+	 * @return
+	 */
+	public long getReadNanos(){
+		return readNanos;
+	}
+
+	/**
+	 * Returns the number of read calls.
+	 * @return
+	 */
+	public long getReads(){
+		return reads;
+	}
+
+	/**
+	 * Returns the number of sinks.
+	 * @return
+	 */
+	public int getSinks(){
+		return results.length;
+	}
+
+	/**
+	 * Returns what was written to the given sink.  Reads are counted in this result
+	 * rather than in each sink's.
+	 * @param sink
+	 * @return
+	 */
+	public CopyResult getResult(int sink){
+		return results[sink];
+	}
+
+	/**
+	 * Returns the error which stopped the given sink, or null if it received all of the
+	 * input.
+	 * @param sink
+	 * @return
+	 */
+	public Throwable getError(int sink){
+		return errors[sink];
+	}
+
+	/**
+	 * Returns whether the given sink received all of the input.
+	 * @param sink
+	 * @return
+	 */
+	public boolean isSucceeded(int sink){
+		return errors[sink] == null;
+	}
+
+	/**
+	 * Returns whether every sink received all of the input.
+	 * @return
+	 */
+	public boolean isSucceeded(){
+		for (Throwable error : errors){
+			if (error != null)
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		sb.append("FanOutResult[bytes=").append(bytes).append(", elapsed=").append(elapsedNanos / 1000000)
+				.append("ms, read=").append(readNanos / 1000000).append("ms (").append(reads).append(" calls)");
+		for (int i = 0; i < results.length; i++){
+			sb.append(", sink ").append(i).append("=").append(errors[i] == null ? "ok" : "failed (" + errors[i] + ")");
+		}
+		return sb.append("]").toString();
+	}
+}
@@ -0,0 +1,364 @@
+package ca.digitalcave.moss.common;
+
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * @author wyatt
+ * Fiscal years, quarters and periods, for organizations whose year does not start on
+ * January 1st.  Two kinds of fiscal year are supported:
+ *
+ *  - forMonths(): the year starts on the 1st of a given month (e.g. Calendar.APRIL),
+ *    each quarter is three calendar months and each period is a calendar month.
+ *  - forWeeks(): a retail (52 / 53 week) year, which ends on the last given day of the
+ *    week in a given month (or the one nearest the end of that month).  Each quarter is
+ *    13 weeks, split into periods of 4, 4 and 5 weeks (or another pattern such as 4-5-4);
+ *    the extra week in a 53 week year goes in the last period.
+ *
+ * Fiscal years are numbered by the calendar year in which they end, so a year starting in
+ * April 2024 is fiscal 2025.  Periods and quarters are numbered from 1.
+ *
+ * The start and end of every period in the given span of years are calculated once, when
+ * the calendar is created; lookups are then a binary search of that table, with quarters
+ * and years found by dividing the period number.  Times outside of the span throw an
+ * IllegalArgumentException.  As with DateUtil, the Date methods return null for null.
+ *
+ * Boundaries are in the given DateContext, or the default time zone and locale.
+ * Instances are immutable and thread safe.
+ */
+public final class FiscalCalendar {
+	private static final int PERIODS_PER_YEAR = 12;
+	private static final int PERIODS_PER_QUARTER = 3;
+
+	private final int firstYear;
+	private final int lastYear;
+	//starts[i] and ends[i] are the first and last milisecond of period i of the span
+	private final long[] starts;
+	private final long[] ends;
+
+	/**
+	 * Returns a fiscal calendar whose years start on the 1st of the given month, in the
+	 * default time zone and locale.
+	 * @param startMonth The first month of the year, e.g. Calendar.APRIL
+	 * @param firstYear The first fiscal year to include
+	 * @param lastYear The last fiscal year to include
+	 * @return
+	 */
+	public static FiscalCalendar forMonths(int startMonth, int firstYear, int lastYear){
+		return forMonths(DateEngine.getDefault(), startMonth, firstYear, lastYear);
+	}
+
+	/**
+	 * Returns a fiscal calendar whose years start on the 1st of the given month, in the
+	 * given context.
+	 * @param context
+	 * @param startMonth The first month of the year, e.g. Calendar.APRIL
+	 * @param firstYear The first fiscal year to include
+	 * @param lastYear The last fiscal year to include
+	 * @return
+	 */
+	public static FiscalCalendar forMonths(DateContext context, int startMonth, int firstYear, int lastYear){
+		return forMonths(context.getEngine(), startMonth, firstYear, lastYear);
+	}
+
+	private static FiscalCalendar forMonths(DateEngine engine, int startMonth, int firstYear, int lastYear){
+		if (startMonth < Calendar.JANUARY || startMonth > Calendar.DECEMBER)
+			throw new IllegalArgumentException("Invalid month: " + startMonth);
+		checkYears(firstYear, lastYear);
+		int years = lastYear - firstYear + 1;
+		long[] days = new long[years * PERIODS_PER_YEAR + 1];
+		//Fiscal year y ends in calendar year y, so it starts in y - 1 unless it starts in January
+		long year = startMonth == Calendar.JANUARY ? firstYear : firstYear - 1;
+		for (int i = 0; i < days.length; i++){
+			long months = year * 12 + startMonth + i;
+			days[i] = DateEngine.toEpochDay(Math.floorDiv(months, 12), (int) Math.floorMod(months, 12), 1);
+		}
+		return new FiscalCalendar(engine, firstYear, lastYear, days);
+	}
+
+	/**
+	 * Returns a retail (52 / 53 week) fiscal calendar in the default time zone and locale.
+	 * @param endMonth The month in which each year ends, e.g. Calendar.JANUARY
+	 * @param endDayOfWeek The day of the week on which each year ends, e.g. Calendar.SATURDAY
+	 * @param nearest If true, years end on the endDayOfWeek nearest the end of endMonth
+	 * (which may be in the following month); otherwise on the last one in endMonth.
+	 * @param weeks The number of weeks in each period of a quarter, e.g. {4, 4, 5}
+	 * @param firstYear The first fiscal year to include
+	 * @param lastYear The last fiscal year to include
+	 * @return
+	 */
+	public static FiscalCalendar forWeeks(int endMonth, int endDayOfWeek, boolean nearest, int[] weeks, int firstYear, int lastYear){
+		return forWeeks(DateEngine.getDefault(), endMonth, endDayOfWeek, nearest, weeks, firstYear, lastYear);
+	}
+
+	/**
+	 * Returns a retail (52 / 53 week) fiscal calendar in the given context.
+	 * @param context
+	 * @param endMonth The month in which each year ends, e.g. Calendar.JANUARY
+	 * @param endDayOfWeek The day of the week on which each year ends, e.g. Calendar.SATURDAY
+	 * @param nearest If true, years end on the endDayOfWeek nearest the end of endMonth
+	 * (which may be in the following month); otherwise on the last one in endMonth.
+	 * @param weeks The number of weeks in each period of a quarter, e.g. {4, 4, 5}
+	 * @param firstYear The first fiscal year to include
+	 * @param lastYear The last fiscal year to include
+	 * @return
+	 */
+	public static FiscalCalendar forWeeks(DateContext context, int endMonth, int endDayOfWeek, boolean nearest, int[] weeks, int firstYear, int lastYear){
+		return forWeeks(context.getEngine(), endMonth, endDayOfWeek, nearest, weeks, firstYear, lastYear);
+	}
+
+	private static FiscalCalendar forWeeks(DateEngine engine, int endMonth, int endDayOfWeek, boolean nearest, int[] weeks, int firstYear, int lastYear){
+		if (endMonth < Calendar.JANUARY || endMonth > Calendar.DECEMBER)
+			throw new IllegalArgumentException("Invalid month: " + endMonth);
+		if (endDayOfWeek < Calendar.SUNDAY || endDayOfWeek > Calendar.SATURDAY)
+			throw new IllegalArgumentException("Invalid day of week: " + endDayOfWeek);
+		if (weeks.length != PERIODS_PER_QUARTER || weeks[0] + weeks[1] + weeks[2] != 13 || weeks[0] <= 0 || weeks[1] <= 0 || weeks[2] <= 0)
+			throw new IllegalArgumentException("Weeks must be three positive numbers adding up to 13, e.g. {4, 4, 5}");
+		checkYears(firstYear, lastYear);
+		int years = lastYear - firstYear + 1;
+		long[] days = new long[years * PERIODS_PER_YEAR + 1];
+		long yearStart = yearEnd(firstYear - 1, endMonth, endDayOfWeek, nearest) + 1;
+		for (int y = 0; y < years; y++){
+			long nextYearStart = yearEnd(firstYear + y, endMonth, endDayOfWeek, nearest) + 1;
+			long day = yearStart;
+			for (int p = 0; p < PERIODS_PER_YEAR; p++){
+				days[y * PERIODS_PER_YEAR + p] = day;
+				day += weeks[p % PERIODS_PER_QUARTER] * 7;
+			}
+			//day is now 52 weeks after the start; any extra week stays in the last period
+			yearStart = nextYearStart;
+		}
+		days[days.length - 1] = yearStart;
+		return new FiscalCalendar(engine, firstYear, lastYear, days);
+	}
+
+	/**
+	 * Returns the epoch day on which the retail year ending in the given calendar year ends.
+	 */
+	private static long yearEnd(long year, int endMonth, int endDayOfWeek, boolean nearest){
+		long lastOfMonth = DateEngine.toEpochDay(year, endMonth, DateEngine.lengthOfMonth(year, endMonth));
+		//Go back to the last endDayOfWeek on or before the end of the month
+		long last = lastOfMonth - Math.floorMod(DateEngine.dayOfWeek(lastOfMonth) - endDayOfWeek, 7);
+		if (nearest && lastOfMonth - last > 3)
+			last += 7;
+		return last;
+	}
+
+	private static void checkYears(int firstYear, int lastYear){
+		if (lastYear < firstYear)
+			throw new IllegalArgumentException("Last year " + lastYear + " is before first year " + firstYear);
+		if (firstYear < 2 || lastYear > 9999)
+			throw new IllegalArgumentException("Fiscal years must be between 2 and 9999");
+	}
+
+	private FiscalCalendar(DateEngine engine, int firstYear, int lastYear, long[] days){
+		this.firstYear = firstYear;
+		this.lastYear = lastYear;
+		this.starts = new long[days.length - 1];
+		this.ends = new long[days.length - 1];
+		for (int i = 0; i < starts.length; i++){
+			starts[i] = engine.periodStart(PeriodType.DAY, days[i]);
+			ends[i] = engine.periodEnd(PeriodType.DAY, days[i + 1] - 1);
+		}
+	}
+
+	public int getFirstYear(){
+		return firstYear;
+	}
+
+	public int getLastYear(){
+		return lastYear;
+	}
+
+	/**
+	 * Returns true if the given time is within the span of years of this calendar.
+	 * @param time
+	 * @return
+	 */
+	public boolean contains(long time){
+		return time >= starts[0] && time <= ends[ends.length - 1];
+	}
+
+	/**
+	 * Returns the fiscal year containing the given time.
+	 * @param time
+	 * @return
+	 */
+	public int getYear(long time){
+		return firstYear + period(time) / PERIODS_PER_YEAR;
+	}
+
+	/**
+	 * Returns the fiscal year containing the given date.
+	 * @param date
+	 * @return
+	 */
+	public int getYear(Date date){
+		return getYear(date.getTime());
+	}
+
+	/**
+	 * Returns the fiscal quarter (1 - 4) containing the given time.
+	 * @param time
+	 * @return
+	 */
+	public int getQuarter(long time){
+		return period(time) % PERIODS_PER_YEAR / PERIODS_PER_QUARTER + 1;
+	}
+
+	/**
+	 * Returns the fiscal quarter (1 - 4) containing the given date.
+	 * @param date
+	 * @return
+	 */
+	public int getQuarter(Date date){
+		return getQuarter(date.getTime());
+	}
+
+	/**
+	 * Returns the fiscal period (1 - 12) containing the given time.
+	 * @param time
+	 * @return
+	 */
+	public int getPeriod(long time){
+		return period(time) % PERIODS_PER_YEAR + 1;
+	}
+
+	/**
+	 * Returns the fiscal period (1 - 12) containing the given date.
+	 * @param date
+	 * @return
+	 */
+	public int getPeriod(Date date){
+		return getPeriod(date.getTime());
+	}
+
+	public long getStartOfPeriod(long date){
+		return starts[period(date)];
+	}
+
+	public Date getStartOfPeriod(Date date){
+		if (date == null)
+			return null;
+		return new Date(getStartOfPeriod(date.getTime()));
+	}
+
+	public long getEndOfPeriod(long date){
+		return ends[period(date)];
+	}
+
+	public Date getEndOfPeriod(Date date){
+		if (date == null)
+			return null;
+		return new Date(getEndOfPeriod(date.getTime()));
+	}
+
+	public long getStartOfQuarter(long date){
+		return starts[period(date) / PERIODS_PER_QUARTER * PERIODS_PER_QUARTER];
+	}
+
+	public Date getStartOfQuarter(Date date){
+		if (date == null)
+			return null;
+		return new Date(getStartOfQuarter(date.getTime()));
+	}
+
+	public long getEndOfQuarter(long date){
+		return ends[period(date) / PERIODS_PER_QUARTER * PERIODS_PER_QUARTER + PERIODS_PER_QUARTER - 1];
+	}
+
+	public Date getEndOfQuarter(Date date){
+		if (date == null)
+			return null;
+		return new Date(getEndOfQuarter(date.getTime()));
+	}
+
+	public long getStartOfYear(long date){
+		return starts[period(date) / PERIODS_PER_YEAR * PERIODS_PER_YEAR];
+	}
+
+	public Date getStartOfYear(Date date){
+		if (date == null)
+			return null;
+		return new Date(getStartOfYear(date.getTime()));
+	}
+
+	public long getEndOfYear(long date){
+		return ends[period(date) / PERIODS_PER_YEAR * PERIODS_PER_YEAR + PERIODS_PER_YEAR - 1];
+	}
+
+	public Date getEndOfYear(Date date){
+		if (date == null)
+			return null;
+		return new Date(getEndOfYear(date.getTime()));
+	}
+
+	/**
+	 * Returns the first milisecond of the given fiscal year.
+	 * @param year
+	 * @return
+	 */
+	public long getStartOfYear(int year){
+		return starts[yearIndex(year)];
+	}
+
+	/**
+	 * Returns the last milisecond of the given fiscal year.
+	 * @param year
+	 * @return
+	 */
+	public long getEndOfYear(int year){
+		return ends[yearIndex(year) + PERIODS_PER_YEAR - 1];
+	}
+
+	/**
+	 * Returns the first milisecond of the given quarter (1 - 4) of the given fiscal year.
+	 * @param year
+	 * @param quarter
+	 * @return
+	 */
+	public long getStartOfQuarter(int year, int quarter){
+		return starts[yearIndex(year) + quarterIndex(quarter)];
+	}
+
+	/**
+	 * Returns the last milisecond of the given quarter (1 - 4) of the given fiscal year.
+	 * @param year
+	 * @param quarter
+	 * @return
+	 */
+	public long getEndOfQuarter(int year, int quarter){
+		return ends[yearIndex(year) + quarterIndex(quarter) + PERIODS_PER_QUARTER - 1];
+	}
+
+	/**
+	 * Returns the index of the period containing the given time in the table.
+	 */
+	private int period(long time){
+		if (!contains(time))
+			throw new IllegalArgumentException("Time " + time + " is outside of fiscal years " + firstYear + " - " + lastYear);
+		//Find the last period which starts at or before time
+		int lo = 0;
+		int hi = starts.length - 1;
+		while (lo < hi){
+			int mid = (lo + hi + 1) >>> 1;
+			if (starts[mid] <= time)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	private int yearIndex(int year){
+		if (year < firstYear || year > lastYear)
+			throw new IllegalArgumentException("Fiscal year " + year + " is outside of " + firstYear + " - " + lastYear);
+		return (year - firstYear) * PERIODS_PER_YEAR;
+	}
+
+	private static int quarterIndex(int quarter){
+		if (quarter < 1 || quarter > 4)
+			throw new IllegalArgumentException("Invalid quarter: " + quarter);
+		return (quarter - 1) * PERIODS_PER_QUARTER;
+	}
+}
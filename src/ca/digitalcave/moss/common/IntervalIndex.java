@@ -0,0 +1,436 @@
+package ca.digitalcave.moss.common;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * @author wyatt
+ * An index of [start, end] ranges of epoch miliseconds (both inclusive, as with the
+ * values returned by DateUtil's getStartOf* and getEndOf* methods), each with a long
+ * id, which answers "which ranges contain this time" and "which ranges overlap this
+ * window" without scanning every range.
+ *
+ * The ranges are kept in a treap (a binary search tree balanced by random priorities)
+ * ordered by start, where each node also records the latest end in its subtree.
+ * Queries skip every subtree which ends before the window or starts after it, so they
+ * take O(log n + k) for k results; inserting and removing a range take O(log n).
+ * build() creates an index from arrays in O(n log n), without the per range cost of
+ * inserting.  Nodes are stored in primitive arrays, not objects.
+ *
+ * An index is not thread safe while it is being modified; once built, any number of
+ * threads may query it.
+ */
+public class IntervalIndex {
+	//Node 0 is the empty tree.
+	private long[] starts;
+	private long[] ends;
+	private long[] ids;
+	private long[] maxEnds;
+	private int[] lefts;
+	private int[] rights;
+	private int[] priorities;
+
+	private int root;
+	private int used = 1;
+	private int size;
+	//Removed nodes, linked through lefts[]
+	private int free;
+	private int seed = 0x2545F491;
+
+	//Results of split()
+	private int splitLeft;
+	private int splitRight;
+
+	/**
+	 * Receives the ranges found by a query.
+	 */
+	public interface Visitor {
+		public void visit(long id, long start, long end);
+	}
+
+	/**
+	 * Creates an empty index.
+	 */
+	public IntervalIndex(){
+		this(16);
+	}
+
+	private IntervalIndex(int capacity){
+		starts = new long[capacity];
+		ends = new long[capacity];
+		ids = new long[capacity];
+		maxEnds = new long[capacity];
+		lefts = new int[capacity];
+		rights = new int[capacity];
+		priorities = new int[capacity];
+		maxEnds[0] = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Creates an index containing the given ranges; starts[i], ends[i] and ids[i] describe
+	 * range i.
+	 * @param starts
+	 * @param ends
+	 * @param ids
+	 * @return
+	 */
+	public static IntervalIndex build(long[] starts, long[] ends, long[] ids){
+		if (starts.length != ends.length || starts.length != ids.length)
+			throw new IllegalArgumentException("starts, ends and ids must be the same length");
+		int n = starts.length;
+		IntervalIndex index = new IntervalIndex(n + 1);
+		for (int i = 0; i < n; i++){
+			index.checkRange(starts[i], ends[i]);
+		}
+
+		//Sort the ranges, and copy them into nodes 1 .. n in order
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++){
+			order[i] = i;
+		}
+		sort(order, new int[n], 0, n, starts, ends, ids);
+		for (int i = 0; i < n; i++){
+			int node = i + 1;
+			index.starts[node] = starts[order[i]];
+			index.ends[node] = ends[order[i]];
+			index.ids[node] = ids[order[i]];
+			index.priorities[node] = index.nextPriority();
+		}
+		index.used = n + 1;
+		index.size = n;
+
+		//Build the treap as the Cartesian tree of the priorities, keeping the right spine on a stack
+		int[] stack = new int[n + 1];
+		int top = 0;
+		for (int node = 1; node <= n; node++){
+			int last = 0;
+			while (top > 0 && index.priorities[stack[top - 1]] < index.priorities[node]){
+				last = stack[--top];
+			}
+			index.lefts[node] = last;
+			if (top > 0)
+				index.rights[stack[top - 1]] = node;
+			stack[top++] = node;
+		}
+		index.root = top > 0 ? stack[0] : 0;
+		index.updateAll(index.root);
+		return index;
+	}
+
+	/**
+	 * Returns the number of ranges in the index.
+	 * @return
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Adds a range.  The same range and id may be added more than once.
+	 * @param start
+	 * @param end
+	 * @param id
+	 */
+	public void add(long start, long end, long id){
+		checkRange(start, end);
+		int node = allocate();
+		starts[node] = start;
+		ends[node] = end;
+		ids[node] = id;
+		maxEnds[node] = end;
+		lefts[node] = 0;
+		rights[node] = 0;
+		priorities[node] = nextPriority();
+		root = insert(root, node);
+		size++;
+	}
+
+	/**
+	 * Adds a range.
+	 * @param start
+	 * @param end
+	 * @param id
+	 */
+	public void add(Date start, Date end, long id){
+		add(start.getTime(), end.getTime(), id);
+	}
+
+	/**
+	 * Removes one range with the given start, end and id, returning false if there was none.
+	 * @param start
+	 * @param end
+	 * @param id
+	 * @return
+	 */
+	public boolean remove(long start, long end, long id){
+		int before = size;
+		root = remove(root, start, end, id);
+		return size < before;
+	}
+
+	/**
+	 * Visits each range which contains the given time, in order of start.
+	 * @param time
+	 * @param visitor
+	 */
+	public void findContaining(long time, Visitor visitor){
+		find(root, time, time, visitor);
+	}
+
+	/**
+	 * Visits each range which overlaps from - to (both inclusive), in order of start.
+	 * @param from
+	 * @param to
+	 * @param visitor
+	 */
+	public void findOverlapping(long from, long to, Visitor visitor){
+		if (from <= to)
+			find(root, from, to, visitor);
+	}
+
+	/**
+	 * Visits each range which overlaps the period of the given type containing the
+	 * given time, e.g. findOverlapping(PeriodType.MONTH, now, visitor) for all ranges
+	 * which overlap this month.  The period is in the default time zone and locale.
+	 * @param type
+	 * @param time
+	 * @param visitor
+	 */
+	public void findOverlapping(PeriodType type, long time, Visitor visitor){
+		findOverlapping(type.getStart(time), type.getEnd(time), visitor);
+	}
+
+	/**
+	 * Returns the number of ranges which overlap from - to (both inclusive).
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public int countOverlapping(long from, long to){
+		final int[] count = new int[1];
+		findOverlapping(from, to, new Visitor() {
+			public void visit(long id, long start, long end) {
+				count[0]++;
+			}
+		});
+		return count[0];
+	}
+
+	/**
+	 * Returns the ids of the ranges which overlap from - to (both inclusive), in order of start.
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public long[] getOverlappingIds(long from, long to){
+		final LongList result = new LongList();
+		findOverlapping(from, to, new Visitor() {
+			public void visit(long id, long start, long end) {
+				result.add(id);
+			}
+		});
+		return result.toArray();
+	}
+
+	/*
+	 * Treap operations
+	 */
+
+	private void find(int node, long from, long to, Visitor visitor){
+		while (node != 0 && maxEnds[node] >= from){
+			find(lefts[node], from, to, visitor);
+			if (starts[node] > to)
+				return;
+			if (ends[node] >= from)
+				visitor.visit(ids[node], starts[node], ends[node]);
+			node = rights[node];
+		}
+	}
+
+	private int insert(int tree, int node){
+		if (tree == 0)
+			return node;
+		if (priorities[node] > priorities[tree]){
+			split(tree, node);
+			lefts[node] = splitLeft;
+			rights[node] = splitRight;
+			update(node);
+			return node;
+		}
+		if (compare(node, tree) < 0)
+			lefts[tree] = insert(lefts[tree], node);
+		else
+			rights[tree] = insert(rights[tree], node);
+		update(tree);
+		return tree;
+	}
+
+	/**
+	 * Splits tree into the nodes before node (splitLeft) and the rest (splitRight).
+	 */
+	private void split(int tree, int node){
+		if (tree == 0){
+			splitLeft = 0;
+			splitRight = 0;
+		}
+		else if (compare(tree, node) < 0){
+			split(rights[tree], node);
+			rights[tree] = splitLeft;
+			update(tree);
+			splitLeft = tree;
+		}
+		else {
+			split(lefts[tree], node);
+			lefts[tree] = splitRight;
+			update(tree);
+			splitRight = tree;
+		}
+	}
+
+	private int remove(int tree, long start, long end, long id){
+		if (tree == 0)
+			return 0;
+		int c = compare(start, end, id, tree);
+		if (c == 0){
+			int merged = merge(lefts[tree], rights[tree]);
+			release(tree);
+			size--;
+			return merged;
+		}
+		if (c < 0)
+			lefts[tree] = remove(lefts[tree], start, end, id);
+		else
+			rights[tree] = remove(rights[tree], start, end, id);
+		update(tree);
+		return tree;
+	}
+
+	private int merge(int a, int b){
+		if (a == 0)
+			return b;
+		if (b == 0)
+			return a;
+		if (priorities[a] > priorities[b]){
+			rights[a] = merge(rights[a], b);
+			update(a);
+			return a;
+		}
+		lefts[b] = merge(a, lefts[b]);
+		update(b);
+		return b;
+	}
+
+	private void update(int node){
+		maxEnds[node] = Math.max(ends[node], Math.max(maxEnds[lefts[node]], maxEnds[rights[node]]));
+	}
+
+	private void updateAll(int node){
+		if (node == 0)
+			return;
+		updateAll(lefts[node]);
+		updateAll(rights[node]);
+		update(node);
+	}
+
+	private int compare(int a, int b){
+		return compare(starts[a], ends[a], ids[a], b);
+	}
+
+	private int compare(long start, long end, long id, int node){
+		if (start != starts[node])
+			return start < starts[node] ? -1 : 1;
+		if (end != ends[node])
+			return end < ends[node] ? -1 : 1;
+		if (id != ids[node])
+			return id < ids[node] ? -1 : 1;
+		return 0;
+	}
+
+	/*
+	 * Storage
+	 */
+
+	private int allocate(){
+		if (free != 0){
+			int node = free;
+			free = lefts[node];
+			return node;
+		}
+		if (used == starts.length)
+			grow(starts.length * 2);
+		return used++;
+	}
+
+	private void release(int node){
+		lefts[node] = free;
+		rights[node] = 0;
+		free = node;
+	}
+
+	private void grow(int capacity){
+		starts = Arrays.copyOf(starts, capacity);
+		ends = Arrays.copyOf(ends, capacity);
+		ids = Arrays.copyOf(ids, capacity);
+		maxEnds = Arrays.copyOf(maxEnds, capacity);
+		lefts = Arrays.copyOf(lefts, capacity);
+		rights = Arrays.copyOf(rights, capacity);
+		priorities = Arrays.copyOf(priorities, capacity);
+	}
+
+	private int nextPriority(){
+		//xorshift
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		return seed;
+	}
+
+	private void checkRange(long start, long end){
+		if (end < start)
+			throw new IllegalArgumentException("Range ends before it starts: " + start + " - " + end);
+	}
+
+	/**
+	 * Merge sort of the indexes in order[from..to) by start, end, id.
+	 */
+	private static void sort(int[] order, int[] scratch, int from, int to, long[] starts, long[] ends, long[] ids){
+		if (to - from < 2)
+			return;
+		int mid = (from + to) >>> 1;
+		sort(order, scratch, from, mid, starts, ends, ids);
+		sort(order, scratch, mid, to, starts, ends, ids);
+		int i = from;
+		int j = mid;
+		int k = from;
+		while (i < mid && j < to){
+			int a = order[i];
+			int b = order[j];
+			boolean bFirst = starts[b] < starts[a]
+					|| (starts[b] == starts[a] && (ends[b] < ends[a] || (ends[b] == ends[a] && ids[b] < ids[a])));
+			scratch[k++] = bFirst ? order[j++] : order[i++];
+		}
+		while (i < mid)
+			scratch[k++] = order[i++];
+		while (j < to)
+			scratch[k++] = order[j++];
+		System.arraycopy(scratch, from, order, from, to - from);
+	}
+
+	/**
+	 * Growable long array for collecting results.
+	 */
+	private static class LongList {
+		long[] values = new long[16];
+		int count;
+
+		void add(long value){
+			if (count == values.length)
+				values = Arrays.copyOf(values, count * 2);
+			values[count++] = value;
+		}
+
+		long[] toArray(){
+			return Arrays.copyOf(values, count);
+		}
+	}
+}
@@ -0,0 +1,492 @@
+package ca.digitalcave.moss.common;
+
+/**
+ * @author wyatt
+ * Parses and formats the two ISO 8601 forms which we see in CSV and JSON feeds,
+ * yyyy-MM-dd and yyyy-MM-dd'T'HH:mm:ss (a space is also accepted in place of the 'T').
+ * This replaces SimpleDateFormat for those feeds: text is read straight from a
+ * CharSequence, char[] or byte[] (ASCII / UTF-8) at a given offset, and written back
+ * into a buffer supplied by the caller, without creating any Strings or Calendars.
+ *
+ * Epoch days (days since 1970-01-01) do not depend on a time zone, so the epoch day
+ * methods are static.  Converting to and from miliseconds uses the time zone of the
+ * DateContext which the format was created with; local times in a DST gap or overlap
+ * are resolved as Calendar does.  Years must be between 0000 and 9999, and dates are
+ * always on the (proleptic) Gregorian calendar, as ISO 8601 requires.
+ *
+ * Malformed input throws an IllegalArgumentException.  Instances are immutable and
+ * thread safe.
+ */
+public final class IsoDateFormat {
+	/** The length of yyyy-MM-dd */
+	public static final int DATE_LENGTH = 10;
+	/** The length of yyyy-MM-ddTHH:mm:ss */
+	public static final int DATE_TIME_LENGTH = 19;
+
+	//The epoch days of 0000-01-01 and 9999-12-31
+	private static final long MIN_EPOCH_DAY = DateEngine.toEpochDay(0, 0, 1);
+	private static final long MAX_EPOCH_DAY = DateEngine.toEpochDay(9999, 11, 31);
+
+	private final DateEngine engine;
+	private final ZoneOffsetTable zone;
+
+	/**
+	 * Creates a format for the JVM default time zone (as it is now).
+	 */
+	public IsoDateFormat(){
+		this(DateEngine.getDefault());
+	}
+
+	/**
+	 * Creates a format for the time zone of the given context.
+	 * @param context
+	 */
+	public IsoDateFormat(DateContext context){
+		this(context.getEngine());
+	}
+
+	private IsoDateFormat(DateEngine engine){
+		this.engine = engine;
+		this.zone = engine.getZone();
+	}
+
+	/*
+	 * Epoch days
+	 */
+
+	/**
+	 * Parses yyyy-MM-dd, starting at offset, into an epoch day.
+	 * @param text
+	 * @param offset
+	 * @return
+	 */
+	public static long parseEpochDay(CharSequence text, int offset){
+		checkLength(text.length(), offset, DATE_LENGTH);
+		if (text.charAt(offset + 4) != '-' || text.charAt(offset + 7) != '-')
+			throw invalid(text, offset, DATE_LENGTH);
+		return epochDay(number(text, offset, 4), number(text, offset + 5, 2), number(text, offset + 8, 2), text, offset);
+	}
+
+	/**
+	 * Parses yyyy-MM-dd, starting at offset, into an epoch day.
+	 * @param text
+	 * @param offset
+	 * @return
+	 */
+	public static long parseEpochDay(char[] text, int offset){
+		checkLength(text.length, offset, DATE_LENGTH);
+		if (text[offset + 4] != '-' || text[offset + 7] != '-')
+			throw invalid(new String(text, offset, DATE_LENGTH));
+		return epochDay(number(text, offset, 4), number(text, offset + 5, 2), number(text, offset + 8, 2), text, offset);
+	}
+
+	/**
+	 * Parses yyyy-MM-dd (ASCII), starting at offset, into an epoch day.
+	 * @param text
+	 * @param offset
+	 * @return
+	 */
+	public static long parseEpochDay(byte[] text, int offset){
+		checkLength(text.length, offset, DATE_LENGTH);
+		if (text[offset + 4] != '-' || text[offset + 7] != '-')
+			throw invalid(text, offset, DATE_LENGTH);
+		return epochDay(number(text, offset, 4), number(text, offset + 5, 2), number(text, offset + 8, 2), text, offset);
+	}
+
+	/**
+	 * Writes the epoch day as yyyy-MM-dd into the buffer at offset, and returns the offset
+	 * after the last character written.
+	 * @param epochDay
+	 * @param buffer
+	 * @param offset
+	 * @return
+	 */
+	public static int formatEpochDay(long epochDay, char[] buffer, int offset){
+		int civil = civil(epochDay);
+		int year = DateEngine.civilYear(civil);
+		int month = DateEngine.civilMonth(civil) + 1;
+		int day = DateEngine.civilDay(civil);
+		buffer[offset] = (char) ('0' + year / 1000);
+		buffer[offset + 1] = (char) ('0' + year / 100 % 10);
+		buffer[offset + 2] = (char) ('0' + year / 10 % 10);
+		buffer[offset + 3] = (char) ('0' + year % 10);
+		buffer[offset + 4] = '-';
+		buffer[offset + 5] = (char) ('0' + month / 10);
+		buffer[offset + 6] = (char) ('0' + month % 10);
+		buffer[offset + 7] = '-';
+		buffer[offset + 8] = (char) ('0' + day / 10);
+		buffer[offset + 9] = (char) ('0' + day % 10);
+		return offset + DATE_LENGTH;
+	}
+
+	/**
+	 * Writes the epoch day as yyyy-MM-dd (ASCII) into the buffer at offset, and returns
+	 * the offset after the last byte written.
+	 * @param epochDay
+	 * @param buffer
+	 * @param offset
+	 * @return
+	 */
+	public static int formatEpochDay(long epochDay, byte[] buffer, int offset){
+		int civil = civil(epochDay);
+		int year = DateEngine.civilYear(civil);
+		int month = DateEngine.civilMonth(civil) + 1;
+		int day = DateEngine.civilDay(civil);
+		buffer[offset] = (byte) ('0' + year / 1000);
+		buffer[offset + 1] = (byte) ('0' + year / 100 % 10);
+		buffer[offset + 2] = (byte) ('0' + year / 10 % 10);
+		buffer[offset + 3] = (byte) ('0' + year % 10);
+		buffer[offset + 4] = '-';
+		buffer[offset + 5] = (byte) ('0' + month / 10);
+		buffer[offset + 6] = (byte) ('0' + month % 10);
+		buffer[offset + 7] = '-';
+		buffer[offset + 8] = (byte) ('0' + day / 10);
+		buffer[offset + 9] = (byte) ('0' + day % 10);
+		return offset + DATE_LENGTH;
+	}
+
+	/**
+	 * Appends the epoch day as yyyy-MM-dd to the given builder.
+	 * @param epochDay
+	 * @param builder
+	 * @return
+	 */
+	public static StringBuilder formatEpochDay(long epochDay, StringBuilder builder){
+		int civil = civil(epochDay);
+		int year = DateEngine.civilYear(civil);
+		int month = DateEngine.civilMonth(civil) + 1;
+		int day = DateEngine.civilDay(civil);
+		builder.append((char) ('0' + year / 1000))
+			.append((char) ('0' + year / 100 % 10))
+			.append((char) ('0' + year / 10 % 10))
+			.append((char) ('0' + year % 10))
+			.append('-')
+			.append((char) ('0' + month / 10))
+			.append((char) ('0' + month % 10))
+			.append('-')
+			.append((char) ('0' + day / 10))
+			.append((char) ('0' + day % 10));
+		return builder;
+	}
+
+	/*
+	 * Miliseconds
+	 */
+
+	/**
+	 * Parses yyyy-MM-dd, starting at offset, and returns the first milisecond of that day.
+	 * @param text
+	 * @param offset
+	 * @return
+	 */
+	public long parseDate(CharSequence text, int offset){
+		return engine.periodStart(PeriodType.DAY, parseEpochDay(text, offset));
+	}
+
+	/**
+	 * Parses yyyy-MM-dd, starting at offset, and returns the first milisecond of that day.
+	 * @param text
+	 * @param offset
+	 * @return
+	 */
+	public long parseDate(char[] text, int offset){
+		return engine.periodStart(PeriodType.DAY, parseEpochDay(text, offset));
+	}
+
+	/**
+	 * Parses yyyy-MM-dd (ASCII), starting at offset, and returns the first milisecond of that day.
+	 * @param text
+	 * @param offset
+	 * @return
+	 */
+	public long parseDate(byte[] text, int offset){
+		return engine.periodStart(PeriodType.DAY, parseEpochDay(text, offset));
+	}
+
+	/**
+	 * Parses yyyy-MM-ddTHH:mm:ss, starting at offset, as a local time.
+	 * @param text
+	 * @param offset
+	 * @return
+	 */
+	public long parseDateTime(CharSequence text, int offset){
+		checkLength(text.length(), offset, DATE_TIME_LENGTH);
+		char separator = text.charAt(offset + 10);
+		if ((separator != 'T' && separator != ' ') || text.charAt(offset + 13) != ':' || text.charAt(offset + 16) != ':')
+			throw invalid(text, offset, DATE_TIME_LENGTH);
+		long epochDay = parseEpochDay(text, offset);
+		int seconds = secondOfDay(number(text, offset + 11, 2), number(text, offset + 14, 2), number(text, offset + 17, 2));
+		if (seconds < 0)
+			throw invalid(text, offset, DATE_TIME_LENGTH);
+		return zone.toUtc(epochDay * DateEngine.MILLIS_PER_DAY + seconds * 1000l);
+	}
+
+	/**
+	 * Parses yyyy-MM-ddTHH:mm:ss, starting at offset, as a local time.
+	 * @param text
+	 * @param offset
+	 * @return
+	 */
+	public long parseDateTime(char[] text, int offset){
+		checkLength(text.length, offset, DATE_TIME_LENGTH);
+		char separator = text[offset + 10];
+		if ((separator != 'T' && separator != ' ') || text[offset + 13] != ':' || text[offset + 16] != ':')
+			throw invalid(new String(text, offset, DATE_TIME_LENGTH));
+		long epochDay = parseEpochDay(text, offset);
+		int seconds = secondOfDay(number(text, offset + 11, 2), number(text, offset + 14, 2), number(text, offset + 17, 2));
+		if (seconds < 0)
+			throw invalid(new String(text, offset, DATE_TIME_LENGTH));
+		return zone.toUtc(epochDay * DateEngine.MILLIS_PER_DAY + seconds * 1000l);
+	}
+
+	/**
+	 * Parses yyyy-MM-ddTHH:mm:ss (ASCII), starting at offset, as a local time.
+	 * @param text
+	 * @param offset
+	 * @return
+	 */
+	public long parseDateTime(byte[] text, int offset){
+		checkLength(text.length, offset, DATE_TIME_LENGTH);
+		byte separator = text[offset + 10];
+		if ((separator != 'T' && separator != ' ') || text[offset + 13] != ':' || text[offset + 16] != ':')
+			throw invalid(text, offset, DATE_TIME_LENGTH);
+		long epochDay = parseEpochDay(text, offset);
+		int seconds = secondOfDay(number(text, offset + 11, 2), number(text, offset + 14, 2), number(text, offset + 17, 2));
+		if (seconds < 0)
+			throw invalid(text, offset, DATE_TIME_LENGTH);
+		return zone.toUtc(epochDay * DateEngine.MILLIS_PER_DAY + seconds * 1000l);
+	}
+
+	/**
+	 * Parses either form, depending on the length of the text.
+	 * @param text
+	 * @return
+	 */
+	public long parse(CharSequence text){
+		if (text.length() == DATE_LENGTH)
+			return parseDate(text, 0);
+		if (text.length() == DATE_TIME_LENGTH)
+			return parseDateTime(text, 0);
+		throw invalid(text, 0, text.length());
+	}
+
+	/**
+	 * Writes the local date of the given time as yyyy-MM-dd into the buffer at offset,
+	 * and returns the offset after the last character written.
+	 * @param time
+	 * @param buffer
+	 * @param offset
+	 * @return
+	 */
+	public int formatDate(long time, char[] buffer, int offset){
+		return formatEpochDay(Math.floorDiv(zone.toLocal(time), DateEngine.MILLIS_PER_DAY), buffer, offset);
+	}
+
+	/**
+	 * Writes the local date of the given time as yyyy-MM-dd (ASCII) into the buffer at
+	 * offset, and returns the offset after the last byte written.
+	 * @param time
+	 * @param buffer
+	 * @param offset
+	 * @return
+	 */
+	public int formatDate(long time, byte[] buffer, int offset){
+		return formatEpochDay(Math.floorDiv(zone.toLocal(time), DateEngine.MILLIS_PER_DAY), buffer, offset);
+	}
+
+	/**
+	 * Appends the local date of the given time as yyyy-MM-dd to the given builder.
+	 * @param time
+	 * @param builder
+	 * @return
+	 */
+	public StringBuilder formatDate(long time, StringBuilder builder){
+		return formatEpochDay(Math.floorDiv(zone.toLocal(time), DateEngine.MILLIS_PER_DAY), builder);
+	}
+
+	/**
+	 * Writes the given time as yyyy-MM-ddTHH:mm:ss (local time) into the buffer at offset,
+	 * and returns the offset after the last character written.  Miliseconds are dropped.
+	 * @param time
+	 * @param buffer
+	 * @param offset
+	 * @return
+	 */
+	public int formatDateTime(long time, char[] buffer, int offset){
+		long local = zone.toLocal(time);
+		offset = formatEpochDay(Math.floorDiv(local, DateEngine.MILLIS_PER_DAY), buffer, offset);
+		int seconds = (int) (Math.floorMod(local, DateEngine.MILLIS_PER_DAY) / 1000);
+		int hour = seconds / 3600;
+		int minute = seconds / 60 % 60;
+		int second = seconds % 60;
+		buffer[offset] = 'T';
+		buffer[offset + 1] = (char) ('0' + hour / 10);
+		buffer[offset + 2] = (char) ('0' + hour % 10);
+		buffer[offset + 3] = ':';
+		buffer[offset + 4] = (char) ('0' + minute / 10);
+		buffer[offset + 5] = (char) ('0' + minute % 10);
+		buffer[offset + 6] = ':';
+		buffer[offset + 7] = (char) ('0' + second / 10);
+		buffer[offset + 8] = (char) ('0' + second % 10);
+		return offset + DATE_TIME_LENGTH - DATE_LENGTH;
+	}
+
+	/**
+	 * Writes the given time as yyyy-MM-ddTHH:mm:ss (local time, ASCII) into the buffer at
+	 * offset, and returns the offset after the last byte written.  Miliseconds are dropped.
+	 * @param time
+	 * @param buffer
+	 * @param offset
+	 * @return
+	 */
+	public int formatDateTime(long time, byte[] buffer, int offset){
+		long local = zone.toLocal(time);
+		offset = formatEpochDay(Math.floorDiv(local, DateEngine.MILLIS_PER_DAY), buffer, offset);
+		int seconds = (int) (Math.floorMod(local, DateEngine.MILLIS_PER_DAY) / 1000);
+		int hour = seconds / 3600;
+		int minute = seconds / 60 % 60;
+		int second = seconds % 60;
+		buffer[offset] = 'T';
+		buffer[offset + 1] = (byte) ('0' + hour / 10);
+		buffer[offset + 2] = (byte) ('0' + hour % 10);
+		buffer[offset + 3] = ':';
+		buffer[offset + 4] = (byte) ('0' + minute / 10);
+		buffer[offset + 5] = (byte) ('0' + minute % 10);
+		buffer[offset + 6] = ':';
+		buffer[offset + 7] = (byte) ('0' + second / 10);
+		buffer[offset + 8] = (byte) ('0' + second % 10);
+		return offset + DATE_TIME_LENGTH - DATE_LENGTH;
+	}
+
+	/**
+	 * Appends the given time as yyyy-MM-ddTHH:mm:ss (local time) to the given builder.
+	 * @param time
+	 * @param builder
+	 * @return
+	 */
+	public StringBuilder formatDateTime(long time, StringBuilder builder){
+		long local = zone.toLocal(time);
+		formatEpochDay(Math.floorDiv(local, DateEngine.MILLIS_PER_DAY), builder);
+		int seconds = (int) (Math.floorMod(local, DateEngine.MILLIS_PER_DAY) / 1000);
+		int hour = seconds / 3600;
+		int minute = seconds / 60 % 60;
+		int second = seconds % 60;
+		builder.append('T')
+			.append((char) ('0' + hour / 10))
+			.append((char) ('0' + hour % 10))
+			.append(':')
+			.append((char) ('0' + minute / 10))
+			.append((char) ('0' + minute % 10))
+			.append(':')
+			.append((char) ('0' + second / 10))
+			.append((char) ('0' + second % 10));
+		return builder;
+	}
+
+	/*
+	 * Helpers
+	 */
+
+	/**
+	 * Reads a fixed number of decimal digits, returning -1 if any of them is not a digit.
+	 */
+	private static int number(CharSequence text, int offset, int length){
+		int value = 0;
+		for (int i = offset; i < offset + length; i++){
+			int digit = text.charAt(i) - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private static int number(char[] text, int offset, int length){
+		int value = 0;
+		for (int i = offset; i < offset + length; i++){
+			int digit = text[i] - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private static int number(byte[] text, int offset, int length){
+		int value = 0;
+		for (int i = offset; i < offset + length; i++){
+			int digit = text[i] - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the epoch day for the given (one based) month and day, or Long.MIN_VALUE if
+	 * they are not valid.  Year is already known to be 0 - 9999, or -1 if not a number.
+	 */
+	private static long epochDay(int year, int month, int day){
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > DateEngine.lengthOfMonth(year, month - 1))
+			return Long.MIN_VALUE;
+		return DateEngine.toEpochDay(year, month - 1, day);
+	}
+
+	private static long epochDay(int year, int month, int day, CharSequence text, int offset){
+		long epochDay = epochDay(year, month, day);
+		if (epochDay == Long.MIN_VALUE)
+			throw invalid(text, offset, DATE_LENGTH);
+		return epochDay;
+	}
+
+	private static long epochDay(int year, int month, int day, char[] text, int offset){
+		long epochDay = epochDay(year, month, day);
+		if (epochDay == Long.MIN_VALUE)
+			throw invalid(new String(text, offset, DATE_LENGTH));
+		return epochDay;
+	}
+
+	private static long epochDay(int year, int month, int day, byte[] text, int offset){
+		long epochDay = epochDay(year, month, day);
+		if (epochDay == Long.MIN_VALUE)
+			throw invalid(text, offset, DATE_LENGTH);
+		return epochDay;
+	}
+
+	/**
+	 * Returns the second of the day, or -1 if any field is out of range (or not a number).
+	 */
+	private static int secondOfDay(int hour, int minute, int second){
+		if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59)
+			return -1;
+		return hour * 3600 + minute * 60 + second;
+	}
+
+	private static int civil(long epochDay){
+		if (epochDay < MIN_EPOCH_DAY || epochDay > MAX_EPOCH_DAY)
+			throw new IllegalArgumentException("Year out of range for yyyy-MM-dd: epoch day " + epochDay);
+		return DateEngine.toCivil(epochDay);
+	}
+
+	private static void checkLength(int length, int offset, int needed){
+		if (offset < 0 || length - offset < needed)
+			throw new IllegalArgumentException("Expected " + needed + " characters at offset " + offset);
+	}
+
+	private static IllegalArgumentException invalid(CharSequence text, int offset, int length){
+		return invalid(text.subSequence(offset, offset + length).toString());
+	}
+
+	private static IllegalArgumentException invalid(byte[] text, int offset, int length){
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++){
+			chars[i] = (char) (text[offset + i] & 0xFF);
+		}
+		return invalid(new String(chars));
+	}
+
+	private static IllegalArgumentException invalid(String text){
+		return new IllegalArgumentException("Invalid ISO date: '" + text + "'");
+	}
+}
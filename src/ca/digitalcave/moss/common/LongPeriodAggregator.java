@@ -0,0 +1,90 @@
+package ca.digitalcave.moss.common;
+
+import java.util.Arrays;
+
+/**
+ * @author wyatt
+ * A PeriodAggregator for long values (e.g. amounts in cents).  Sums are not checked
+ * for overflow.  For periods which have no values, the sum is 0, the min is
+ * Long.MAX_VALUE and the max is Long.MIN_VALUE; check getCount() first.
+ */
+public class LongPeriodAggregator extends PeriodAggregator {
+	private final long[] sums;
+	private final long[] mins;
+	private final long[] maxes;
+
+	public LongPeriodAggregator(PeriodRange range){
+		super(range);
+		this.sums = new long[size()];
+		this.mins = new long[size()];
+		this.maxes = new long[size()];
+		Arrays.fill(mins, Long.MAX_VALUE);
+		Arrays.fill(maxes, Long.MIN_VALUE);
+	}
+
+	@Override
+	public LongPeriodAggregator newPartial(){
+		return new LongPeriodAggregator(getRange());
+	}
+
+	/**
+	 * Adds a single value, in the period containing the given time.
+	 * @param time
+	 * @param value
+	 */
+	public void add(long time, long value){
+		int i = indexOf(time);
+		if (i < 0)
+			return;
+		counts[i]++;
+		sums[i] += value;
+		if (value < mins[i])
+			mins[i] = value;
+		if (value > maxes[i])
+			maxes[i] = value;
+	}
+
+	/**
+	 * Adds values[i] in the period containing times[i], for each i.  Large arrays are
+	 * split between all available processors.
+	 * @param times
+	 * @param values
+	 */
+	public void addAll(final long[] times, final long[] values){
+		if (times.length != values.length)
+			throw new IllegalArgumentException("times and values must be the same length");
+		addAllParallel(0, times.length, new Chunk() {
+			public void add(PeriodAggregator target, int from, int to) {
+				LongPeriodAggregator aggregator = (LongPeriodAggregator) target;
+				for (int i = from; i < to; i++){
+					aggregator.add(times[i], values[i]);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void merge(PeriodAggregator other){
+		super.merge(other);
+		LongPeriodAggregator o = (LongPeriodAggregator) other;
+		for (int i = 0; i < sums.length; i++){
+			sums[i] += o.sums[i];
+			if (o.mins[i] < mins[i])
+				mins[i] = o.mins[i];
+			if (o.maxes[i] > maxes[i])
+				maxes[i] = o.maxes[i];
+		}
+	}
+
+	public long getSum(int period){
+		return sums[period];
+	}
+
+	public long getMin(int period){
+		return mins[period];
+	}
+
+	public long getMax(int period){
+		return maxes[period];
+	}
+}
@@ -0,0 +1,383 @@
+package ca.digitalcave.moss.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author wyatt
+ * Read only access to a file through memory mapping, so that large files can be read
+ * (or scanned in place) straight from the page cache without copying each block into
+ * the Java heap, as reading through an InputStream does.
+ *
+ * A single mapping is limited to 2G, so the file is mapped in windows (1G by default),
+ * each mapped when it is first used.  The windows are available as read only ByteBuffer
+ * views, for code which scans the data in place; get() and slice() read at any position
+ * in the file, and getInputStream() reads the file in order.  The size of the file is
+ * fixed when it is opened.
+ *
+ * The JVM normally unmaps a file only when the garbage collector finds its buffers
+ * unreachable, which may be much later; close() unmaps every window at once, so the
+ * address space (and, on Windows, the file) is released when we are done with it.
+ * Buffers and streams obtained from this file must not be used after it is closed: the
+ * memory behind them is gone, and touching it may crash the JVM.  Where the JVM does
+ * not let us unmap (which should not happen on Java 8 or later), close() leaves the
+ * windows to the garbage collector.
+ *
+ * Instances are thread safe, but must not be closed while another thread is reading.
+ */
+public final class MappedFile implements Closeable {
+	private static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long size;
+	private final int windowSize;
+
+	//A window is null until it is first used; windows are mapped and unmapped holding this
+	private final AtomicReferenceArray<MappedByteBuffer> windows;
+	private volatile boolean closed;
+
+	/**
+	 * Opens the given file, to be mapped in 1G windows.
+	 * @param file
+	 * @throws IOException
+	 */
+	public MappedFile(File file) throws IOException {
+		this(file, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * Opens the given file, to be mapped in windows of the given size.  Smaller windows
+	 * use less address space; larger ones mean fewer reads straddle a window boundary.
+	 * @param file
+	 * @param windowSize
+	 * @throws IOException
+	 */
+	public MappedFile(File file, int windowSize) throws IOException {
+		if (windowSize <= 0)
+			throw new IllegalArgumentException("Window size must be positive: " + windowSize);
+		this.file = new RandomAccessFile(file, "r");
+		this.channel = this.file.getChannel();
+		try {
+			this.size = channel.size();
+		}
+		catch (IOException ioe){
+			this.file.close();
+			throw ioe;
+		}
+		this.windowSize = windowSize;
+		long count = (size + windowSize - 1) / windowSize;
+		if (count > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Window size " + windowSize + " is too small for a file of " + size + " bytes");
+		this.windows = new AtomicReferenceArray<MappedByteBuffer>((int) count);
+	}
+
+	/**
+	 * Returns the size of the file, in bytes, when it was opened.
+	 * @return
+	 */
+	public long size(){
+		return size;
+	}
+
+	public int getWindowSize(){
+		return windowSize;
+	}
+
+	/**
+	 * Returns the number of windows; the last one may be shorter than the window size.
+	 * @return
+	 */
+	public int getWindowCount(){
+		return windows.length();
+	}
+
+	/**
+	 * Returns the position in the file at which the given window starts.
+	 * @param index
+	 * @return
+	 */
+	public long getWindowStart(int index){
+		if (index < 0 || index >= windows.length())
+			throw new IndexOutOfBoundsException("Window " + index + " of " + windows.length());
+		return (long) index * windowSize;
+	}
+
+	/**
+	 * Returns a read only view of the given window, mapping it if it is not already
+	 * mapped.  The view has its own position and limit, starting at 0.
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	public ByteBuffer getWindow(int index) throws IOException {
+		if (index < 0 || index >= windows.length())
+			throw new IndexOutOfBoundsException("Window " + index + " of " + windows.length());
+		return window(index).duplicate();
+	}
+
+	/**
+	 * Returns the byte at the given position.
+	 * @param position
+	 * @return
+	 * @throws IOException
+	 */
+	public byte get(long position) throws IOException {
+		checkRange(position, 1);
+		return window((int) (position / windowSize)).get((int) (position % windowSize));
+	}
+
+	/**
+	 * Copies length bytes from the given position of the file into dst, starting at
+	 * dst[offset].
+	 * @param position
+	 * @param dst
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void get(long position, byte[] dst, int offset, int length) throws IOException {
+		if (offset < 0 || length < 0 || offset + length > dst.length)
+			throw new IndexOutOfBoundsException("Range " + offset + " - " + (offset + length) + " is not within the array (length " + dst.length + ")");
+		checkRange(position, length);
+		while (length > 0){
+			ByteBuffer view = window((int) (position / windowSize)).duplicate();
+			view.position((int) (position % windowSize));
+			int count = Math.min(length, view.remaining());
+			view.get(dst, offset, count);
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Returns a read only buffer of length bytes from the given position of the file.
+	 * This is a view of the mapped memory, unless the range straddles two windows, in
+	 * which case it is a copy; as the file is read only, the two are the same to the
+	 * caller.
+	 * @param position
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	public ByteBuffer slice(long position, int length) throws IOException {
+		checkRange(position, length);
+		if (length == 0)
+			return ByteBuffer.allocate(0).asReadOnlyBuffer();
+		int index = (int) (position / windowSize);
+		int start = (int) (position % windowSize);
+		if ((long) start + length <= windowSize){
+			ByteBuffer view = window(index).duplicate();
+			view.position(start);
+			view.limit(start + length);
+			return view.slice();
+		}
+		byte[] copy = new byte[length];
+		get(position, copy, 0, length);
+		return ByteBuffer.wrap(copy).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns a stream which reads the file in order from the start.  Closing the stream
+	 * does not close this file.
+	 * @return
+	 */
+	public InputStream getInputStream(){
+		return getInputStream(0);
+	}
+
+	/**
+	 * Returns a stream which reads the file in order from the given position.  Closing
+	 * the stream does not close this file.
+	 * @param position
+	 * @return
+	 */
+	public InputStream getInputStream(long position){
+		if (position < 0 || position > size)
+			throw new IndexOutOfBoundsException("Position " + position + " is not within the file (size " + size + ")");
+		return new MappedInputStream(position);
+	}
+
+	/**
+	 * Unmaps every window and closes the file.  This does nothing if the file is already
+	 * closed.
+	 */
+	public void close() throws IOException {
+		synchronized (this){
+			if (closed)
+				return;
+			closed = true;
+			for (int i = 0; i < windows.length(); i++){
+				MappedByteBuffer window = windows.getAndSet(i, null);
+				if (window != null)
+					Unmapper.unmap(window);
+			}
+		}
+		file.close();
+	}
+
+	private MappedByteBuffer window(int index) throws IOException {
+		MappedByteBuffer window = windows.get(index);
+		if (window != null)
+			return window;
+		synchronized (this){
+			if (closed)
+				throw new IOException("Mapped file is closed");
+			window = windows.get(index);
+			if (window == null){
+				long start = (long) index * windowSize;
+				window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+				windows.set(index, window);
+			}
+			return window;
+		}
+	}
+
+	private void checkRange(long position, long length){
+		if (position < 0 || length < 0 || position + length > size)
+			throw new IndexOutOfBoundsException("Range " + position + " - " + (position + length) + " is not within the file (size " + size + ")");
+	}
+
+	/**
+	 * Reads the file in order, through a view of one window at a time.
+	 */
+	private class MappedInputStream extends InputStream {
+		private long position;
+		private long mark;
+		private ByteBuffer current;
+		private int currentIndex = -1;
+
+		MappedInputStream(long position){
+			this.position = position;
+			this.mark = position;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!advance())
+				return -1;
+			position++;
+			return current.get() & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (off < 0 || len < 0 || off + len > b.length)
+				throw new IndexOutOfBoundsException();
+			if (len == 0)
+				return 0;
+			if (!advance())
+				return -1;
+			int count = Math.min(len, current.remaining());
+			current.get(b, off, count);
+			position += count;
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = Math.max(0, Math.min(n, size - position));
+			seek(position + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available(){
+			return (int) Math.min(Integer.MAX_VALUE, size - position);
+		}
+
+		@Override
+		public boolean markSupported(){
+			return true;
+		}
+
+		@Override
+		public void mark(int readlimit){
+			mark = position;
+		}
+
+		@Override
+		public void reset() throws IOException {
+			seek(mark);
+		}
+
+		private void seek(long target){
+			position = target;
+			//Move within the current view if we can; otherwise advance() finds the window
+			if (current != null && position / windowSize == currentIndex)
+				current.position((int) (position % windowSize));
+			else
+				current = null;
+		}
+
+		/**
+		 * Makes current a view positioned at the next byte to read, returning false at the
+		 * end of the file.
+		 */
+		private boolean advance() throws IOException {
+			if (closed)
+				throw new IOException("Mapped file is closed");
+			if (position >= size)
+				return false;
+			if (current == null || !current.hasRemaining()){
+				currentIndex = (int) (position / windowSize);
+				current = window(currentIndex).duplicate();
+				current.position((int) (position % windowSize));
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Releases a mapping without waiting for the garbage collector.  There is no public
+	 * API for this before Java 19, so we use what each JVM provides: Unsafe.invokeCleaner()
+	 * from Java 9, and the buffer's Cleaner on Java 8.
+	 */
+	private static final class Unmapper {
+		private static final Object unsafe;
+		private static final Method invokeCleaner;
+		static {
+			Object u = null;
+			Method m = null;
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				m = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field field = unsafeClass.getDeclaredField("theUnsafe");
+				field.setAccessible(true);
+				u = field.get(null);
+			}
+			catch (Exception e){
+				m = null;
+			}
+			unsafe = u;
+			invokeCleaner = m;
+		}
+
+		static void unmap(MappedByteBuffer buffer){
+			try {
+				if (invokeCleaner != null){
+					invokeCleaner.invoke(unsafe, buffer);
+					return;
+				}
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null)
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+			catch (Exception e){
+				//Leave it to the garbage collector
+			}
+		}
+	}
+}
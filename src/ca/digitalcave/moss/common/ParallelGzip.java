@@ -0,0 +1,303 @@
+package ca.digitalcave.moss.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * @author wyatt
+ * Block parallel gzip compression and decompression for StreamUtil.copyStreamGzip()
+ * and copyStreamGunzip(), in the style of pigz.
+ *
+ * The input is split into fixed size blocks, and each block is compressed as a
+ * complete gzip member on the executor; the members are written in order, so the
+ * output is a standard multi member gzip file which any gzip reader accepts.  Each
+ * member header has an extra field (subfield "MS") holding the length of the member,
+ * as BGZF does, so that our decompressor can find the next member without inflating
+ * this one, and inflate members in parallel.  Streams without that field (from any
+ * other gzip writer), or whose field gives a length that compress() could not have
+ * written, are decompressed sequentially with GZIPInputStream.
+ *
+ * At most a few blocks per processor are in flight at once, so memory use does not
+ * depend on the size of the input.
+ */
+final class ParallelGzip {
+	//ID1, ID2, CM (deflate), FLG (FEXTRA), MTIME (0), XFL, OS (unknown)
+	private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 255};
+	private static final int HEADER_LENGTH = 20;
+	private static final int TRAILER_LENGTH = 8;
+	private static final int XLEN = 8;
+	private static final byte SUBFIELD_1 = 'M';
+	private static final byte SUBFIELD_2 = 'S';
+
+	//The largest block we compress, and so the largest member and ISIZE we accept when
+	// decompressing; anything bigger in a header did not come from us.  The member bound
+	// is zlib's most general deflateBound(), plus the header and trailer.
+	static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+	private static final int MAX_MEMBER_LENGTH = HEADER_LENGTH + MAX_BLOCK_SIZE + (MAX_BLOCK_SIZE >> 3) + (MAX_BLOCK_SIZE >> 6) + 5 + TRAILER_LENGTH;
+
+	//The most members being compressed or inflated (or waiting to be written) at once
+	private static final int WINDOW = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+	//Deflaters and inflaters hold native memory, so we keep one per worker thread
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>();
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	private ParallelGzip(){
+	}
+
+	/**
+	 * Compresses the input to the output.  Neither stream is closed.
+	 */
+	static void compress(InputStream is, OutputStream os, Executor executor, int blockSize, final int level, CopyMeter meter) throws IOException {
+		if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE)
+			throw new IllegalArgumentException("Block size must be between 1 and " + MAX_BLOCK_SIZE + ": " + blockSize);
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<CompletableFuture<byte[]>>();
+		boolean any = false;
+		try {
+			while (true){
+				final byte[] block = new byte[blockSize];
+				final int length = readBlock(is, block, meter);
+				if (length == 0 && any)
+					break;
+				any = true;
+				if (pending.size() >= WINDOW)
+					write(os, join(pending.poll()), meter);
+				pending.add(CompletableFuture.supplyAsync(new Supplier<byte[]>() {
+					public byte[] get() {
+						return deflateMember(block, length, level);
+					}
+				}, executor));
+				if (length < blockSize)
+					break;
+			}
+			while (!pending.isEmpty()){
+				write(os, join(pending.poll()), meter);
+			}
+		}
+		finally {
+			for (CompletableFuture<byte[]> future : pending){
+				future.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Decompresses the input to the output.  Neither stream is closed.
+	 */
+	static void decompress(InputStream is, OutputStream os, Executor executor, CopyMeter meter) throws IOException {
+		ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<CompletableFuture<byte[]>>();
+		try {
+			while (true){
+				final byte[] header = new byte[HEADER_LENGTH];
+				int length = readBlock(is, header, meter);
+				if (length == 0)
+					break;
+				int memberLength = length == HEADER_LENGTH ? memberLength(header) : -1;
+				if (memberLength < 0){
+					//Not one of ours; finish what we have and then inflate the rest in order
+					while (!pending.isEmpty()){
+						write(os, join(pending.poll()), meter);
+					}
+					decompressSequential(new SequenceInputStream(new ByteArrayInputStream(header, 0, length), is), os, meter);
+					return;
+				}
+
+				final byte[] member = new byte[memberLength];
+				System.arraycopy(header, 0, member, 0, HEADER_LENGTH);
+				if (readBlock(is, member, HEADER_LENGTH, memberLength - HEADER_LENGTH, meter) < memberLength - HEADER_LENGTH)
+					throw new EOFException("Unexpected end of gzip stream");
+				if (pending.size() >= WINDOW)
+					write(os, join(pending.poll()), meter);
+				pending.add(CompletableFuture.supplyAsync(new Supplier<byte[]>() {
+					public byte[] get() {
+						return inflateMember(member);
+					}
+				}, executor));
+			}
+			while (!pending.isEmpty()){
+				write(os, join(pending.poll()), meter);
+			}
+		}
+		finally {
+			for (CompletableFuture<byte[]> future : pending){
+				future.cancel(false);
+			}
+		}
+	}
+
+	private static void decompressSequential(InputStream is, OutputStream os, CopyMeter meter) throws IOException {
+		GZIPInputStream gis = new GZIPInputStream(is, 64 * 1024);
+		byte[] data = BufferPool.getDefault().borrowArray(64 * 1024);
+		try {
+			while (true){
+				long started = System.nanoTime();
+				int bytesRead = gis.read(data);
+				meter.read(started);
+				if (bytesRead < 0)
+					break;
+				started = System.nanoTime();
+				os.write(data, 0, bytesRead);
+				meter.wrote(started, bytesRead);
+			}
+		}
+		finally {
+			BufferPool.getDefault().releaseArray(data);
+		}
+	}
+
+	/**
+	 * Returns the member length from one of our headers, or -1 if it is not one of ours
+	 * (including a length which compress() could not have written).
+	 */
+	private static int memberLength(byte[] header){
+		for (int i = 0; i < 4; i++){
+			if (header[i] != HEADER[i])
+				return -1;
+		}
+		if (littleEndian(header, 10, 2) != XLEN || header[12] != SUBFIELD_1 || header[13] != SUBFIELD_2 || littleEndian(header, 14, 2) != 4)
+			return -1;
+		long length = littleEndian(header, 16, 4);
+		if (length < HEADER_LENGTH + TRAILER_LENGTH || length > MAX_MEMBER_LENGTH)
+			return -1;
+		return (int) length;
+	}
+
+	private static byte[] deflateMember(byte[] data, int length, int level){
+		Deflater deflater = deflaters.get();
+		if (deflater == null){
+			deflater = new Deflater(level, true);
+			deflaters.set(deflater);
+		}
+		deflater.reset();
+		deflater.setLevel(level);
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+
+		//Deflate can grow incompressible data slightly; allow for that plus the header and trailer
+		byte[] member = new byte[HEADER_LENGTH + length + length / 1000 + 64 + TRAILER_LENGTH];
+		int position = HEADER_LENGTH;
+		while (!deflater.finished()){
+			if (position == member.length - TRAILER_LENGTH)
+				member = Arrays.copyOf(member, member.length * 2);
+			position += deflater.deflate(member, position, member.length - TRAILER_LENGTH - position);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		int memberLength = position + TRAILER_LENGTH;
+		System.arraycopy(HEADER, 0, member, 0, HEADER.length);
+		putLittleEndian(member, 10, XLEN, 2);
+		member[12] = SUBFIELD_1;
+		member[13] = SUBFIELD_2;
+		putLittleEndian(member, 14, 4, 2);
+		putLittleEndian(member, 16, memberLength, 4);
+		putLittleEndian(member, position, crc.getValue(), 4);
+		putLittleEndian(member, position + 4, length, 4);
+		return member.length == memberLength ? member : Arrays.copyOf(member, memberLength);
+	}
+
+	private static byte[] inflateMember(byte[] member){
+		int trailer = member.length - TRAILER_LENGTH;
+		long size = littleEndian(member, trailer + 4, 4);
+		if (size > MAX_BLOCK_SIZE)
+			throw new CompletionException(new ZipException("Corrupt gzip member: size " + size));
+		byte[] data = new byte[(int) size];
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(member, HEADER_LENGTH, trailer - HEADER_LENGTH);
+		try {
+			int position = 0;
+			while (!inflater.finished()){
+				int inflated = inflater.inflate(data, position, data.length - position);
+				position += inflated;
+				//Inflater is given the whole member, so no progress means it is truncated or too long
+				if (inflated == 0 && !inflater.finished())
+					throw new CompletionException(new ZipException("Corrupt gzip member"));
+			}
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, position);
+			if (position != data.length || inflater.getRemaining() != 0 || crc.getValue() != littleEndian(member, trailer, 4))
+				throw new CompletionException(new ZipException("Corrupt gzip member"));
+		}
+		catch (DataFormatException dfe){
+			throw new CompletionException(new ZipException(dfe.getMessage()));
+		}
+		return data;
+	}
+
+	private static byte[] join(CompletableFuture<byte[]> future) throws IOException {
+		try {
+			return future.join();
+		}
+		catch (CompletionException ce){
+			//Whatever went wrong with a member, the copy failed
+			if (ce.getCause() instanceof IOException)
+				throw (IOException) ce.getCause();
+			throw new IOException("Gzip member failed: " + ce.getCause(), ce.getCause());
+		}
+	}
+
+	private static void write(OutputStream os, byte[] data, CopyMeter meter) throws IOException {
+		long started = System.nanoTime();
+		os.write(data);
+		meter.wrote(started, data.length);
+	}
+
+	private static int readBlock(InputStream is, byte[] block, CopyMeter meter) throws IOException {
+		return readBlock(is, block, 0, block.length, meter);
+	}
+
+	/**
+	 * Reads until the given length has been read or the input ends, returning the number
+	 * of bytes read.
+	 */
+	private static int readBlock(InputStream is, byte[] block, int offset, int length, CopyMeter meter) throws IOException {
+		int total = 0;
+		while (total < length){
+			long started = System.nanoTime();
+			int bytesRead = is.read(block, offset + total, length - total);
+			meter.read(started);
+			if (bytesRead < 0)
+				break;
+			total += bytesRead;
+		}
+		return total;
+	}
+
+	private static long littleEndian(byte[] data, int offset, int length){
+		long value = 0;
+		for (int i = length - 1; i >= 0; i--){
+			value = (value << 8) | (data[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	private static void putLittleEndian(byte[] data, int offset, long value, int length){
+		for (int i = 0; i < length; i++){
+			data[offset + i] = (byte) (value >>> (8 * i));
+		}
+	}
+}
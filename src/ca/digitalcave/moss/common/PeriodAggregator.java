@@ -0,0 +1,172 @@
+package ca.digitalcave.moss.common;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * @author wyatt
+ * Base class for grouping timestamped values into the periods of a PeriodRange, and
+ * keeping statistics (count, sum, min, max) for each period.  This takes the place of
+ * a HashMap keyed on getStartOfMonth(date): statistics are held in primitive arrays
+ * indexed by the position of the period within the range, so adding a value does not
+ * create any objects.
+ *
+ * Values with a timestamp outside of the range are not added to any period; they are
+ * counted, and the count is available from getOutOfRange().
+ *
+ * Aggregators are not thread safe.  To use more than one thread, give each thread
+ * its own aggregator (from newPartial()) and then merge() them together; the addAll()
+ * methods of the subclasses do this for you, using the common ForkJoinPool.
+ */
+public abstract class PeriodAggregator {
+	//Below this many records per task, it is not worth splitting further.
+	private static final int MIN_CHUNK = 8192;
+
+	private final PeriodRange range;
+	private final DateEngine engine;
+	private final PeriodType type;
+	private final long firstIndex;
+	private final int size;
+
+	protected final long[] counts;
+	private long outOfRange;
+
+	protected PeriodAggregator(PeriodRange range){
+		if (range == null)
+			throw new NullPointerException("range");
+		if (range.size() > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Range has too many periods: " + range.size());
+		this.range = range;
+		this.engine = range.getEngine();
+		this.type = range.getType();
+		this.firstIndex = range.getFirstIndex();
+		this.size = (int) Math.max(0, range.size());
+		this.counts = new long[size];
+	}
+
+	/**
+	 * Returns a new, empty aggregator of the same type over the same range, to be
+	 * filled by another thread and then merged back into this one.
+	 * @return
+	 */
+	public abstract PeriodAggregator newPartial();
+
+	/**
+	 * Adds all of the statistics from the other aggregator (which must be over the same
+	 * periods) into this one.
+	 * @param other
+	 */
+	public void merge(PeriodAggregator other){
+		if (other.type != type || other.firstIndex != firstIndex || other.size != size)
+			throw new IllegalArgumentException("Cannot merge aggregators over different ranges");
+		for (int i = 0; i < size; i++){
+			counts[i] += other.counts[i];
+		}
+		outOfRange += other.outOfRange;
+	}
+
+	/**
+	 * Returns the position within the range of the period containing the given time,
+	 * or -1 (after counting it as out of range) if it is not in the range.
+	 */
+	protected final int indexOf(long time){
+		long index = engine.periodIndex(type, time) - firstIndex;
+		if (index < 0 || index >= size){
+			outOfRange++;
+			return -1;
+		}
+		return (int) index;
+	}
+
+	public PeriodRange getRange(){
+		return range;
+	}
+
+	/**
+	 * Returns the number of periods (which is the same as the size of the range).
+	 * @return
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Returns the first milisecond of the nth period.
+	 * @param period
+	 * @return
+	 */
+	public long getPeriodStart(int period){
+		return range.getPeriodStart(period);
+	}
+
+	/**
+	 * Returns the number of values added to the nth period.
+	 * @param period
+	 * @return
+	 */
+	public long getCount(int period){
+		return counts[period];
+	}
+
+	/**
+	 * Returns the number of values which were not added because their timestamp was
+	 * outside of the range.
+	 * @return
+	 */
+	public long getOutOfRange(){
+		return outOfRange;
+	}
+
+	/**
+	 * Splits the records from..to over the common ForkJoinPool, adding each chunk to
+	 * a partial aggregator, and merges the partials into this one.
+	 */
+	protected final void addAllParallel(int from, int to, Chunk chunk){
+		int chunkSize = Math.max(MIN_CHUNK, (to - from) / (ForkJoinPool.getCommonPoolParallelism() * 4));
+		if (to - from <= chunkSize){
+			chunk.add(this, from, to);
+			return;
+		}
+		merge(ForkJoinPool.commonPool().invoke(new ChunkTask(this, chunk, from, to, chunkSize)));
+	}
+
+	/**
+	 * Adds the records from (inclusive) to to (exclusive) to the given aggregator.
+	 */
+	protected interface Chunk {
+		public void add(PeriodAggregator target, int from, int to);
+	}
+
+	private static class ChunkTask extends RecursiveTask<PeriodAggregator> {
+		private static final long serialVersionUID = 1L;
+
+		private final PeriodAggregator prototype;
+		private final Chunk chunk;
+		private final int from;
+		private final int to;
+		private final int chunkSize;
+
+		ChunkTask(PeriodAggregator prototype, Chunk chunk, int from, int to, int chunkSize){
+			this.prototype = prototype;
+			this.chunk = chunk;
+			this.from = from;
+			this.to = to;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		protected PeriodAggregator compute(){
+			if (to - from <= chunkSize){
+				PeriodAggregator partial = prototype.newPartial();
+				chunk.add(partial, from, to);
+				return partial;
+			}
+			int mid = from + (to - from) / 2;
+			ChunkTask left = new ChunkTask(prototype, chunk, from, mid, chunkSize);
+			left.fork();
+			PeriodAggregator result = new ChunkTask(prototype, chunk, mid, to, chunkSize).compute();
+			result.merge(left.join());
+			return result;
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package ca.digitalcave.moss.common;
+
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Spliterator;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * @author wyatt
+ * All of the periods (days, weeks, months, etc) which overlap a range of dates.  This
+ * replaces loops such as
+ *
+ *	for (Date d = start; d.before(end); d = DateUtil.addMonths(d, 1)) { ... }
+ *
+ * Nothing is precomputed; each period is worked out from its index when it is needed,
+ * so a range covering centuries costs no more to create than one covering a week.
+ *
+ * There are two ways to walk the range.  cursor() returns a Cursor, which does not
+ * allocate anything as it moves, and gives the start and end of each period.  stream()
+ * and spliterator() give the start of each period as a long; the spliterator splits
+ * evenly by period, so parallelStream() spreads a long range over all cores.  The end
+ * of a period can be found with getEnd(start).
+ *
+ * The first and last periods are not clipped to the range; e.g. a MONTH range from
+ * Jan 15 to Mar 10 contains all of January, February and March.  Periods are
+ * calculated in the given DateContext, or with the default time zone and locale at
+ * the time the range was created.  Periods are counted on the Gregorian calendar; for
+ * locales which use another calendar (e.g. ja_JP_JP), the start and end of each period
+ * still come from DateUtil, and so may not line up with the Gregorian period around
+ * era changes.
+ *
+ * Instances are immutable and thread safe.
+ */
+public class PeriodRange {
+	private final DateEngine engine;
+	private final PeriodType type;
+	private final long firstIndex;
+	private final long lastIndex;
+
+	/**
+	 * Creates a range of all periods of the given type which overlap start to end (both
+	 * inclusive), using the default time zone and locale.  If end is before start, the
+	 * range is empty.
+	 * @param type
+	 * @param start
+	 * @param end
+	 */
+	public PeriodRange(PeriodType type, long start, long end){
+		this(DateEngine.getDefault(), type, start, end);
+	}
+
+	/**
+	 * Creates a range of all periods of the given type which overlap start to end (both
+	 * inclusive), using the default time zone and locale.  If end is before start, the
+	 * range is empty.
+	 * @param type
+	 * @param start
+	 * @param end
+	 */
+	public PeriodRange(PeriodType type, Date start, Date end){
+		this(DateEngine.getDefault(), type, start.getTime(), end.getTime());
+	}
+
+	/**
+	 * Creates a range of all periods of the given type which overlap start to end (both
+	 * inclusive), in the given context.  If end is before start, the range is empty.
+	 * @param context
+	 * @param type
+	 * @param start
+	 * @param end
+	 */
+	public PeriodRange(DateContext context, PeriodType type, long start, long end){
+		this(context.getEngine(), type, start, end);
+	}
+
+	/**
+	 * Creates a range of all periods of the given type which overlap start to end (both
+	 * inclusive), in the given context.  If end is before start, the range is empty.
+	 * @param context
+	 * @param type
+	 * @param start
+	 * @param end
+	 */
+	public PeriodRange(DateContext context, PeriodType type, Date start, Date end){
+		this(context.getEngine(), type, start.getTime(), end.getTime());
+	}
+
+	private PeriodRange(DateEngine engine, PeriodType type, long start, long end){
+		if (type == null)
+			throw new NullPointerException("type");
+		this.engine = engine;
+		this.type = type;
+		this.firstIndex = engine.periodIndex(type, start);
+		this.lastIndex = end < start ? firstIndex - 1 : engine.periodIndex(type, end);
+	}
+
+	public PeriodType getType(){
+		return type;
+	}
+
+	DateEngine getEngine(){
+		return engine;
+	}
+
+	/**
+	 * Returns the number of periods in this range.
+	 * @return
+	 */
+	public long size(){
+		return lastIndex - firstIndex + 1;
+	}
+
+	/**
+	 * Returns the index (see PeriodType) of the first period in the range.
+	 * @return
+	 */
+	public long getFirstIndex(){
+		return firstIndex;
+	}
+
+	/**
+	 * Returns the index (see PeriodType) of the last period in the range.
+	 * @return
+	 */
+	public long getLastIndex(){
+		return lastIndex;
+	}
+
+	/**
+	 * Returns the first milisecond of the nth period in the range (starting at 0).
+	 * @param n
+	 * @return
+	 */
+	public long getPeriodStart(long n){
+		return engine.periodStart(type, firstIndex + n);
+	}
+
+	/**
+	 * Returns the last milisecond of the period which starts at the given time (as
+	 * returned by the stream or spliterator).
+	 * @param periodStart
+	 * @return
+	 */
+	public long getEnd(long periodStart){
+		return engine.endOf(type, periodStart);
+	}
+
+	/**
+	 * Returns the last milisecond of the nth period in the range (starting at 0).
+	 * @param n
+	 * @return
+	 */
+	public long getPeriodEnd(long n){
+		return engine.periodEnd(type, firstIndex + n);
+	}
+
+	/**
+	 * Returns a new cursor, positioned before the first period.
+	 * @return
+	 */
+	public Cursor cursor(){
+		return new Cursor();
+	}
+
+	/**
+	 * Returns a spliterator over the start of each period.
+	 * @return
+	 */
+	public Spliterator.OfLong spliterator(){
+		return new PeriodSpliterator(firstIndex, lastIndex + 1);
+	}
+
+	/**
+	 * Returns a sequential stream of the start of each period.
+	 * @return
+	 */
+	public LongStream stream(){
+		return StreamSupport.longStream(spliterator(), false);
+	}
+
+	/**
+	 * Returns a parallel stream of the start of each period.
+	 * @return
+	 */
+	public LongStream parallelStream(){
+		return StreamSupport.longStream(spliterator(), true);
+	}
+
+	/**
+	 * A position within the range.  Call next() to move to each period in turn; while it
+	 * returns true, getStart(), getEnd() and getIndex() describe the current period.
+	 * A cursor is not thread safe; use one per thread.
+	 */
+	public final class Cursor {
+		private long index = firstIndex - 1;
+		private long start;
+		private long end;
+
+		private Cursor(){}
+
+		/**
+		 * Moves to the next period, returning false if there are no more.
+		 * @return
+		 */
+		public boolean next(){
+			if (index >= lastIndex)
+				return false;
+			index++;
+			//We do not assume that a period starts one milisecond after the previous one
+			// ends; around some midnight DST transitions DateUtil does not agree.
+			start = engine.periodStart(type, index);
+			end = engine.periodEnd(type, index);
+			return true;
+		}
+
+		public long getStart(){
+			return start;
+		}
+
+		public long getEnd(){
+			return end;
+		}
+
+		public long getIndex(){
+			return index;
+		}
+	}
+
+	/**
+	 * Splits by halving the remaining indexes; each period is calculated independently,
+	 * so both halves cost the same to walk.
+	 */
+	private class PeriodSpliterator implements Spliterator.OfLong {
+		private long index;
+		private final long fence;
+
+		PeriodSpliterator(long index, long fence){
+			this.index = index;
+			this.fence = fence;
+		}
+
+		@Override
+		public OfLong trySplit(){
+			long remaining = fence - index;
+			if (remaining < 2)
+				return null;
+			long mid = index + remaining / 2;
+			PeriodSpliterator prefix = new PeriodSpliterator(index, mid);
+			index = mid;
+			return prefix;
+		}
+
+		@Override
+		public boolean tryAdvance(LongConsumer action){
+			if (index >= fence)
+				return false;
+			action.accept(engine.periodStart(type, index++));
+			return true;
+		}
+
+		@Override
+		public void forEachRemaining(LongConsumer action){
+			for (; index < fence; index++){
+				action.accept(engine.periodStart(type, index));
+			}
+		}
+
+		@Override
+		public long estimateSize(){
+			return Math.max(0, fence - index);
+		}
+
+		@Override
+		public int characteristics(){
+			return SIZED | SUBSIZED | ORDERED | SORTED | DISTINCT | NONNULL | IMMUTABLE;
+		}
+
+		@Override
+		public Comparator<? super Long> getComparator(){
+			return null;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package ca.digitalcave.moss.common;
+
+/**
+ * @author wyatt
+ * The granularities which DateUtil knows the boundaries of.  Each constant can find the
+ * start and end of its period for a given timestamp, using the JVM default time zone and
+ * locale (exactly as the matching DateUtil / DateMath getStartOf* and getEndOf* methods do).
+ *
+ * Every period also has an index, which goes up by one from each period to the next
+ * (for instance, MONTH indexes are year * 12 + month).  Indexes follow the Gregorian
+ * calendar; they are what PeriodRange iterates over.
+ */
+public enum PeriodType {
+	DAY,
+	WEEK,
+	MONTH,
+	QUARTER,
+	YEAR;
+
+	/**
+	 * Returns the first milisecond of the period containing the given date.
+	 * @param date
+	 * @return
+	 */
+	public long getStart(long date){
+		return DateEngine.getDefault().startOf(this, date);
+	}
+
+	/**
+	 * Returns the last milisecond of the period containing the given date.
+	 * @param date
+	 * @return
+	 */
+	public long getEnd(long date){
+		return DateEngine.getDefault().endOf(this, date);
+	}
+
+	/**
+	 * Returns the date which is offset periods from the given date, as with the
+	 * DateUtil add* methods.  Weeks are added as 7 days.
+	 * @param date
+	 * @param offset
+	 * @return
+	 */
+	public long add(long date, int offset){
+		return DateEngine.getDefault().add(this, date, offset);
+	}
+
+	/**
+	 * Returns the index of the period containing the given date.
+	 * @param date
+	 * @return
+	 */
+	public long getIndex(long date){
+		return DateEngine.getDefault().periodIndex(this, date);
+	}
+
+	/**
+	 * Returns the first milisecond of the period with the given index.
+	 * @param index
+	 * @return
+	 */
+	public long getStartOfIndex(long index){
+		return DateEngine.getDefault().periodStart(this, index);
+	}
+
+	/**
+	 * Returns the last milisecond of the period with the given index.
+	 * @param index
+	 * @return
+	 */
+	public long getEndOfIndex(long index){
+		return DateEngine.getDefault().periodEnd(this, index);
+	}
+}
@@ -0,0 +1,184 @@
+package ca.digitalcave.moss.common;
+
+import java.util.Date;
+import java.util.function.LongUnaryOperator;
+import java.util.stream.LongStream;
+
+/**
+ * @author wyatt
+ * A schedule which repeats every N days, weeks, months, quarters or years from an
+ * anchor date, such as a payment on the 31st of every month.
+ *
+ * Each occurrence is calculated directly from the anchor (occurrence n is
+ * PeriodType.add(anchor, n * interval)), never from the previous occurrence, so
+ * month end clamping does not drift: a monthly schedule anchored on January 31st
+ * falls on February 28th, then March 31st, as with DateUtil.addMonths().  Finding the
+ * next occurrence after a given time estimates the occurrence number from the
+ * difference in periods and then corrects it by at most a step or two, so it takes
+ * the same time however far the time is from the anchor.
+ *
+ * Occurrences are numbered from 0 (the anchor itself).  Instances are immutable and
+ * thread safe.
+ */
+public final class Recurrence {
+	private final DateEngine engine;
+	private final long anchor;
+	private final PeriodType unit;
+	private final int interval;
+
+	/**
+	 * Creates a recurrence in the default time zone and locale.
+	 * @param anchor The first occurrence
+	 * @param unit
+	 * @param interval The number of units between occurrences; must be positive
+	 */
+	public Recurrence(Date anchor, PeriodType unit, int interval){
+		this(DateEngine.getDefault(), anchor.getTime(), unit, interval);
+	}
+
+	/**
+	 * Creates a recurrence in the default time zone and locale.
+	 * @param anchor The first occurrence
+	 * @param unit
+	 * @param interval The number of units between occurrences; must be positive
+	 */
+	public Recurrence(long anchor, PeriodType unit, int interval){
+		this(DateEngine.getDefault(), anchor, unit, interval);
+	}
+
+	/**
+	 * Creates a recurrence in the given context.
+	 * @param context
+	 * @param anchor The first occurrence
+	 * @param unit
+	 * @param interval The number of units between occurrences; must be positive
+	 */
+	public Recurrence(DateContext context, long anchor, PeriodType unit, int interval){
+		this(context.getEngine(), anchor, unit, interval);
+	}
+
+	private Recurrence(DateEngine engine, long anchor, PeriodType unit, int interval){
+		if (unit == null)
+			throw new NullPointerException("unit");
+		if (interval <= 0)
+			throw new IllegalArgumentException("Interval must be positive: " + interval);
+		this.engine = engine;
+		this.anchor = anchor;
+		this.unit = unit;
+		this.interval = interval;
+	}
+
+	public long getAnchor(){
+		return anchor;
+	}
+
+	public PeriodType getUnit(){
+		return unit;
+	}
+
+	public int getInterval(){
+		return interval;
+	}
+
+	/**
+	 * Returns the nth occurrence (the anchor is occurrence 0).
+	 * @param n
+	 * @return
+	 */
+	public long getOccurrence(long n){
+		if (n < 0)
+			throw new IllegalArgumentException("Occurrence must not be negative: " + n);
+		long amount;
+		try {
+			amount = Math.multiplyExact(Math.multiplyExact(n, (long) interval), unit == PeriodType.WEEK ? 7l : 1l);
+		}
+		catch (ArithmeticException ae){
+			amount = Long.MAX_VALUE;
+		}
+		if (amount > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Occurrence " + n + " is too far from the anchor");
+		return engine.add(unit == PeriodType.WEEK ? PeriodType.DAY : unit, anchor, (int) amount);
+	}
+
+	/**
+	 * Returns the nth occurrence (the anchor is occurrence 0).
+	 * @param n
+	 * @return
+	 */
+	public Date getOccurrenceDate(long n){
+		return new Date(getOccurrence(n));
+	}
+
+	/**
+	 * Returns the number of the first occurrence which is after (and not equal to) the
+	 * given time.
+	 * @param time
+	 * @return
+	 */
+	public long getIndexAfter(long time){
+		if (time < anchor)
+			return 0;
+		long n = estimate(time);
+		while (n > 0 && getOccurrence(n - 1) > time)
+			n--;
+		while (getOccurrence(n) <= time)
+			n++;
+		return n;
+	}
+
+	/**
+	 * Returns the first occurrence which is after (and not equal to) the given time.
+	 * @param time
+	 * @return
+	 */
+	public long getNextOccurrence(long time){
+		return getOccurrence(getIndexAfter(time));
+	}
+
+	/**
+	 * Returns the first occurrence which is after (and not equal to) the given date.
+	 * @param date
+	 * @return
+	 */
+	public Date getNextOccurrence(Date date){
+		return new Date(getNextOccurrence(date.getTime()));
+	}
+
+	/**
+	 * Returns the occurrences between from and to (both inclusive), in order.  The
+	 * stream is lazy, and splits evenly if made parallel.
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public LongStream getOccurrences(long from, long to){
+		if (to < from)
+			return LongStream.empty();
+		long first = getIndexAfter(from - 1);
+		long last = getIndexAfter(to) - 1;
+		return LongStream.rangeClosed(first, last).map(new LongUnaryOperator() {
+			public long applyAsLong(long n) {
+				return getOccurrence(n);
+			}
+		});
+	}
+
+	/**
+	 * Estimates the number of occurrences at or before the given time, from the number of
+	 * whole periods between the anchor and the time.  This may be off by one either way
+	 * (more near DST changes), which getIndexAfter() corrects.
+	 */
+	private long estimate(long time){
+		long periods;
+		if (unit == PeriodType.WEEK)
+			periods = (engine.periodIndex(PeriodType.DAY, time) - engine.periodIndex(PeriodType.DAY, anchor)) / 7;
+		else
+			periods = engine.periodIndex(unit, time) - engine.periodIndex(unit, anchor);
+		return Math.max(0, periods / interval);
+	}
+
+	@Override
+	public String toString(){
+		return "Recurrence[every " + interval + " " + unit + " from " + new Date(anchor) + "]";
+	}
+}
@@ -0,0 +1,258 @@
+package ca.digitalcave.moss.common;
+
+import java.util.Arrays;
+
+/**
+ * @author wyatt
+ * Keeps count, sum, min and max over a rolling window of the last N periods (for
+ * instance the last 7 days, or the last 12 months), updated as values arrive, instead
+ * of re-bucketing and re-summing the whole window each time.
+ *
+ * Each period in the window has a slot in a ring of primitive arrays.  When a value
+ * arrives for a later period than any seen so far, the window moves forward and the
+ * slots which fall out of it are subtracted from the running count and sum and
+ * cleared; this is constant time per period moved.  Count, sum and mean are then
+ * read from the running totals; min and max look at the N slots (never at the
+ * individual values).  Values for periods which have already left the window are not
+ * added, and are counted in getLate().
+ *
+ * The running sum is adjusted by subtraction as periods leave, so over a very long run
+ * it may differ from a fresh sum of the slots in the last few bits.
+ *
+ * Periods are as from DateUtil's getStartOf* methods, in the given DateContext or the
+ * default time zone and locale.  Aggregators are not thread safe.
+ */
+public class RollingPeriodAggregator {
+	private final DateEngine engine;
+	private final PeriodType type;
+	private final int periods;
+
+	private final long[] counts;
+	private final double[] sums;
+	private final double[] mins;
+	private final double[] maxes;
+
+	//The index (see PeriodType) of the last period in the window, or Long.MIN_VALUE before the first value
+	private long latest = Long.MIN_VALUE;
+	private long count;
+	private double sum;
+	private long late;
+
+	/**
+	 * Creates an aggregator over the last periods periods of the given type, in the
+	 * default time zone and locale.
+	 * @param type
+	 * @param periods
+	 */
+	public RollingPeriodAggregator(PeriodType type, int periods){
+		this(DateEngine.getDefault(), type, periods);
+	}
+
+	/**
+	 * Creates an aggregator over the last periods periods of the given type, in the
+	 * given context.
+	 * @param context
+	 * @param type
+	 * @param periods
+	 */
+	public RollingPeriodAggregator(DateContext context, PeriodType type, int periods){
+		this(context.getEngine(), type, periods);
+	}
+
+	private RollingPeriodAggregator(DateEngine engine, PeriodType type, int periods){
+		if (type == null)
+			throw new NullPointerException("type");
+		if (periods <= 0)
+			throw new IllegalArgumentException("Window must have at least one period: " + periods);
+		this.engine = engine;
+		this.type = type;
+		this.periods = periods;
+		this.counts = new long[periods];
+		this.sums = new double[periods];
+		this.mins = new double[periods];
+		this.maxes = new double[periods];
+		Arrays.fill(mins, Double.POSITIVE_INFINITY);
+		Arrays.fill(maxes, Double.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * Adds a value in the period containing the given time, moving the window forward
+	 * first if that period is after the end of the window.
+	 * @param time
+	 * @param value
+	 */
+	public void add(long time, double value){
+		long index = engine.periodIndex(type, time);
+		advanceToIndex(index);
+		if (index <= latest - periods){
+			late++;
+			return;
+		}
+		int slot = slot(index);
+		counts[slot]++;
+		sums[slot] += value;
+		if (value < mins[slot])
+			mins[slot] = value;
+		if (value > maxes[slot])
+			maxes[slot] = value;
+		count++;
+		sum += value;
+	}
+
+	/**
+	 * Moves the window forward so that it ends with the period containing the given
+	 * time.  Does nothing if the window already ends at or after that period.
+	 * @param time
+	 */
+	public void advanceTo(long time){
+		advanceToIndex(engine.periodIndex(type, time));
+	}
+
+	private void advanceToIndex(long index){
+		if (latest == Long.MIN_VALUE){
+			latest = index;
+			return;
+		}
+		if (index <= latest)
+			return;
+		//Periods latest + 1 .. index enter the window; the slots they reuse are evicted.
+		long entering = Math.min(index - latest, periods);
+		for (long i = index - entering + 1; i <= index; i++){
+			evict(slot(i));
+		}
+		latest = index;
+	}
+
+	private void evict(int slot){
+		count -= counts[slot];
+		sum -= sums[slot];
+		counts[slot] = 0;
+		sums[slot] = 0;
+		mins[slot] = Double.POSITIVE_INFINITY;
+		maxes[slot] = Double.NEGATIVE_INFINITY;
+		if (count == 0)
+			sum = 0;
+	}
+
+	private int slot(long index){
+		return (int) Math.floorMod(index, (long) periods);
+	}
+
+	public PeriodType getType(){
+		return type;
+	}
+
+	/**
+	 * Returns the number of periods in the window.
+	 * @return
+	 */
+	public int getPeriods(){
+		return periods;
+	}
+
+	/**
+	 * Returns the first milisecond of the window, or 0 if no values have been added.
+	 * @return
+	 */
+	public long getWindowStart(){
+		if (latest == Long.MIN_VALUE)
+			return 0;
+		return engine.periodStart(type, latest - periods + 1);
+	}
+
+	/**
+	 * Returns the last milisecond of the window, or 0 if no values have been added.
+	 * @return
+	 */
+	public long getWindowEnd(){
+		if (latest == Long.MIN_VALUE)
+			return 0;
+		return engine.periodEnd(type, latest);
+	}
+
+	/**
+	 * Returns the number of values in the window.
+	 * @return
+	 */
+	public long getCount(){
+		return count;
+	}
+
+	/**
+	 * Returns the sum of the values in the window.
+	 * @return
+	 */
+	public double getSum(){
+		return sum;
+	}
+
+	/**
+	 * Returns the mean of the values in the window, or NaN if there are none.
+	 * @return
+	 */
+	public double getMean(){
+		return count == 0 ? Double.NaN : sum / count;
+	}
+
+	/**
+	 * Returns the smallest value in the window, or NaN if there are none.
+	 * @return
+	 */
+	public double getMin(){
+		double min = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < periods; i++){
+			if (mins[i] < min)
+				min = mins[i];
+		}
+		return count == 0 ? Double.NaN : min;
+	}
+
+	/**
+	 * Returns the largest value in the window, or NaN if there are none.
+	 * @return
+	 */
+	public double getMax(){
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < periods; i++){
+			if (maxes[i] > max)
+				max = maxes[i];
+		}
+		return count == 0 ? Double.NaN : max;
+	}
+
+	/**
+	 * Returns the sum of the values in a single period of the window; 0 is the latest
+	 * period, 1 the one before, etc.
+	 * @param periodsAgo
+	 * @return
+	 */
+	public double getSum(int periodsAgo){
+		checkPeriodsAgo(periodsAgo);
+		return latest == Long.MIN_VALUE ? 0 : sums[slot(latest - periodsAgo)];
+	}
+
+	/**
+	 * Returns the number of values in a single period of the window; 0 is the latest
+	 * period, 1 the one before, etc.
+	 * @param periodsAgo
+	 * @return
+	 */
+	public long getCount(int periodsAgo){
+		checkPeriodsAgo(periodsAgo);
+		return latest == Long.MIN_VALUE ? 0 : counts[slot(latest - periodsAgo)];
+	}
+
+	/**
+	 * Returns the number of values which were not added because their period had
+	 * already left the window.
+	 * @return
+	 */
+	public long getLate(){
+		return late;
+	}
+
+	private void checkPeriodsAgo(int periodsAgo){
+		if (periodsAgo < 0 || periodsAgo >= periods)
+			throw new IndexOutOfBoundsException("Period " + periodsAgo + " is not in the window");
+	}
+}
@@ -1,29 +1,445 @@
 package ca.digitalcave.moss.common;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 public class StreamUtil {
+	//Size of the buffers (from BufferPool.getDefault()) used when we have to copy through memory
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	//The number of buffers between the reader and writer of copyStreamAsync()
+	private static final int PIPELINE_DEPTH = 4;
+
+	//The number of buffers which the sinks of copyStreamFanOut() may be behind the reader
+	private static final int FAN_OUT_DEPTH = 16;
+
+	//The size of the blocks which copyStreamGzip() compresses in parallel, as pigz uses
+	private static final int GZIP_BLOCK_SIZE = 128 * 1024;
+
+	private static Executor copyExecutor;
+
+	//The most we ask the kernel to transfer in one call; some platforms fail on larger requests
+	private static final long TRANSFER_SIZE = 64l * 1024 * 1024;
+
 	/**
-	 * Copy the contents of the given input stream to the given output stream.
+	 * Copy the contents of the given input stream to the given output stream.  The
+	 * output stream is closed afterwards; the input stream is not.  If both streams
+	 * are plain FileInputStream / FileOutputStream (not subclasses) and the input is a
+	 * regular file, the copy is done by the kernel (see copyChannel()).
 	 * @param is
 	 * @param os
 	 * @throws IOException
 	 */
 	public static void copyStream(InputStream is, OutputStream os) throws IOException {
-		BufferedInputStream bis = new BufferedInputStream(is);
-		BufferedOutputStream bos = new BufferedOutputStream(os);
+		copyStreamMeasured(is, os, null, 0);
+	}
+
+	/**
+	 * Copy the contents of the given input stream to the given output stream as with
+	 * copyStream(), and return how many bytes were copied and where the time went.
+	 * The result is also added to CopyMetrics.
+	 * @param is
+	 * @param os
+	 * @param listener Told of the progress of the copy; may be null
+	 * @param intervalMillis The least time between progress reports
+	 * @return
+	 * @throws IOException
+	 */
+	public static CopyResult copyStreamMeasured(InputStream is, OutputStream os, CopyListener listener, long intervalMillis) throws IOException {
+		return copyStream(is, os, new CopyMeter(listener, intervalMillis), null);
+	}
+
+	/**
+	 * Copy the contents of the given input stream to the given output stream as with
+	 * copyStream(), computing the given digests and checksums over the data as it is
+	 * copied, so that it does not have to be read again to check it.  Each algorithm
+	 * is either the name of a MessageDigest (e.g. "SHA-256", "MD5") or one of the
+	 * checksums "CRC32", "CRC32C" and "Adler32".  CRC32C uses the JVM's intrinsic
+	 * implementation where there is one (Java 9 and later).  File streams are copied
+	 * through memory rather than by the kernel, since the data has to be seen.
+	 * @param is
+	 * @param os
+	 * @param algorithms
+	 * @return
+	 * @throws IOException
+	 */
+	public static DigestResult copyStreamDigested(InputStream is, OutputStream os, String... algorithms) throws IOException {
+		DigestTee tee = new DigestTee(algorithms);
+		return tee.finish(copyStream(is, os, new CopyMeter(null, 0), tee));
+	}
+
+	/**
+	 * Copy the contents of the given input stream to the given output stream, gzip
+	 * compressing it.  The input is split into blocks of 128K which are compressed in
+	 * parallel on the common ForkJoinPool; the output is a standard (multi member) gzip
+	 * stream.  As with copyStream(), the output stream is closed afterwards and the input
+	 * stream is not.
+	 * @param is
+	 * @param os
+	 * @throws IOException
+	 */
+	public static void copyStreamGzip(InputStream is, OutputStream os) throws IOException {
+		copyStreamGzip(is, os, Deflater.DEFAULT_COMPRESSION, GZIP_BLOCK_SIZE, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Copy the contents of the given input stream to the given output stream, gzip
+	 * compressing it as copyStreamGzip(is, os), with the given compression level and block
+	 * size, compressing blocks on the given executor.  Larger blocks compress a little
+	 * better; smaller ones spread over more threads.
+	 * @param is
+	 * @param os
+	 * @param level The Deflater compression level, 0 - 9, or Deflater.DEFAULT_COMPRESSION
+	 * @param blockSize At most 16M
+	 * @param executor
+	 * @throws IOException
+	 */
+	public static void copyStreamGzip(InputStream is, OutputStream os, int level, int blockSize, Executor executor) throws IOException {
+		CopyMeter meter = new CopyMeter(null, 0);
+		boolean succeeded = false;
+		try {
+			ParallelGzip.compress(is, os, executor, blockSize, level, meter);
+			long started = System.nanoTime();
+			os.flush();
+			os.close();
+			meter.wrote(started, 0);
+			succeeded = true;
+			meter.finish(true);
+		}
+		finally {
+			if (!succeeded)
+				meter.finish(false);
+		}
+	}
+
+	/**
+	 * Copy the contents of the given gzip input stream to the given output stream,
+	 * decompressing it.  Streams written by copyStreamGzip() are decompressed in parallel
+	 * on the common ForkJoinPool; any other gzip stream is decompressed in order, as
+	 * GZIPInputStream would.  As with copyStream(), the output stream is closed afterwards
+	 * and the input stream is not.
+	 * @param is
+	 * @param os
+	 * @throws IOException
+	 */
+	public static void copyStreamGunzip(InputStream is, OutputStream os) throws IOException {
+		copyStreamGunzip(is, os, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Copy the contents of the given gzip input stream to the given output stream,
+	 * decompressing it as copyStreamGunzip(is, os), on the given executor.
+	 * @param is
+	 * @param os
+	 * @param executor
+	 * @throws IOException
+	 */
+	public static void copyStreamGunzip(InputStream is, OutputStream os, Executor executor) throws IOException {
+		CopyMeter meter = new CopyMeter(null, 0);
+		boolean succeeded = false;
+		try {
+			ParallelGzip.decompress(is, os, executor, meter);
+			long started = System.nanoTime();
+			os.flush();
+			os.close();
+			meter.wrote(started, 0);
+			succeeded = true;
+			meter.finish(true);
+		}
+		finally {
+			if (!succeeded)
+				meter.finish(false);
+		}
+	}
+
+	private static CopyResult copyStream(InputStream is, OutputStream os, CopyMeter meter, DigestTee tee) throws IOException {
+		boolean succeeded = false;
+		try {
+			//Only the exact classes; a subclass may override read() or write() to do more
+			if (tee == null && is.getClass() == FileInputStream.class && os.getClass() == FileOutputStream.class
+					&& isTransferable(((FileInputStream) is).getChannel(), true))
+				transferTo(((FileInputStream) is).getChannel(), ((FileOutputStream) os).getChannel(), meter);
+			else
+				copyThroughBuffer(is, os, meter, tee);
+
+			long started = System.nanoTime();
+			os.flush();
+			os.close();
+			meter.wrote(started, 0);
+			succeeded = true;
+			return meter.finish(true);
+		}
+		finally {
+			if (!succeeded)
+				meter.finish(false);
+		}
+	}
+
+	private static void copyThroughBuffer(InputStream is, OutputStream os, CopyMeter meter, DigestTee tee) throws IOException {
+		//No Buffered streams; they would only copy each block through another array.
+		BufferPool pool = BufferPool.getDefault();
+		byte[] data = pool.borrowArray(BUFFER_SIZE);
+		try {
+			while (true){
+				long started = System.nanoTime();
+				int bytesRead = is.read(data);
+				meter.read(started);
+				if (bytesRead < 0)
+					break;
+				if (tee != null)
+					tee.update(data, 0, bytesRead);
+				started = System.nanoTime();
+				os.write(data, 0, bytesRead);
+				meter.wrote(started, bytesRead);
+			}
+		}
+		finally {
+			pool.releaseArray(data);
+		}
+	}
+
+	/**
+	 * Starts copying the contents of the given input stream to the given output stream
+	 * in the background, reading the next block while the last one is being written.
+	 * The returned future completes with the number of bytes copied, and can be
+	 * cancelled.  As with copyStream(), the output stream is closed afterwards (if the
+	 * copy succeeds) and the input stream is not.  The copy runs on two daemon threads
+	 * from a shared pool.
+	 * @param is
+	 * @param os
+	 * @return
+	 */
+	public static CompletableFuture<Long> copyStreamAsync(InputStream is, OutputStream os){
+		return copyStreamAsync(is, os, getCopyExecutor());
+	}
+
+	/**
+	 * Starts copying the contents of the given input stream to the given output stream,
+	 * as copyStreamAsync(is, os), running the reader and writer as two tasks on the given
+	 * executor.  The executor must be able to run both tasks at the same time.
+	 * @param is
+	 * @param os
+	 * @param executor
+	 * @return
+	 */
+	public static CompletableFuture<Long> copyStreamAsync(InputStream is, OutputStream os, Executor executor){
+		CopyPipeline pipeline = new CopyPipeline(is, os, BUFFER_SIZE, PIPELINE_DEPTH);
+		pipeline.start(executor);
+		return pipeline;
+	}
+
+	/**
+	 * Copy the contents of the given input stream to each of the given output streams,
+	 * reading the input only once.  Each stream is written by its own daemon thread from
+	 * a shared pool, so the streams are written in parallel; a stream may fall behind the
+	 * others by up to 1M before the copy waits for it.  A stream which fails is dropped
+	 * and the others carry on; the error is returned in the result rather than thrown.
+	 * As with copyStream(), each stream which receives all of the input is closed
+	 * afterwards, and the input stream is not closed.  An error reading the input is
+	 * thrown (and no output stream is closed).
+	 * @param is
+	 * @param sinks
+	 * @return
+	 * @throws IOException
+	 */
+	public static FanOutResult copyStreamFanOut(InputStream is, OutputStream... sinks) throws IOException {
+		return copyStreamFanOut(is, getCopyExecutor(), sinks);
+	}
+
+	/**
+	 * Copy the contents of the given input stream to each of the given output streams as
+	 * copyStreamFanOut(is, sinks), writing each stream on a task on the given executor.
+	 * The executor must be able to run a task for every sink at the same time.
+	 * @param is
+	 * @param executor
+	 * @param sinks
+	 * @return
+	 * @throws IOException
+	 */
+	public static FanOutResult copyStreamFanOut(InputStream is, Executor executor, OutputStream... sinks) throws IOException {
+		return new FanOutCopy(is, sinks, null, BUFFER_SIZE, FAN_OUT_DEPTH).run(executor);
+	}
+
+	/**
+	 * Copy the contents of the given input stream to each of the given channels as
+	 * copyStreamFanOut(is, sinks).  As with copyChannel(), the channels are not closed,
+	 * and non blocking channels are not supported.
+	 * @param is
+	 * @param sinks
+	 * @return
+	 * @throws IOException
+	 */
+	public static FanOutResult copyStreamFanOut(InputStream is, WritableByteChannel... sinks) throws IOException {
+		return copyStreamFanOut(is, getCopyExecutor(), sinks);
+	}
+
+	/**
+	 * Copy the contents of the given input stream to each of the given channels as
+	 * copyStreamFanOut(is, sinks), writing each channel on a task on the given executor.
+	 * @param is
+	 * @param executor
+	 * @param sinks
+	 * @return
+	 * @throws IOException
+	 */
+	public static FanOutResult copyStreamFanOut(InputStream is, Executor executor, WritableByteChannel... sinks) throws IOException {
+		return new FanOutCopy(is, null, sinks, BUFFER_SIZE, FAN_OUT_DEPTH).run(executor);
+	}
 
-		byte[] data = new byte[1024];
-		int bytesRead;
-		while((bytesRead = bis.read(data)) > -1){
-			bos.write(data, 0, bytesRead);
+	private static synchronized Executor getCopyExecutor(){
+		if (copyExecutor == null){
+			copyExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "StreamUtil copy " + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return copyExecutor;
+	}
+
+	/**
+	 * Copy the contents of the given channel to the other channel, returning the number
+	 * of bytes copied.  Neither channel is closed.
+	 *
+	 * If either channel is a FileChannel on a regular file, the copy is done with
+	 * transferTo() / transferFrom(), which the JVM implements with sendfile() or similar
+	 * where the platform allows, so that the data does not pass through the Java heap.  A
+	 * FileChannel source is copied from its current position to its end, and its
+	 * position is left at the end.  Otherwise (including FileChannels on pipes and
+	 * devices) the data is copied through a direct buffer.  Non blocking channels are not
+	 * supported.
+	 * @param in
+	 * @param out
+	 * @return
+	 * @throws IOException
+	 */
+	public static long copyChannel(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+		return copyChannelMeasured(in, out, null, 0).getBytes();
+	}
+
+	/**
+	 * Copy the contents of the given channel to the other channel as with copyChannel(),
+	 * and return how many bytes were copied and where the time went.  The result is also
+	 * added to CopyMetrics.
+	 * @param in
+	 * @param out
+	 * @param listener Told of the progress of the copy; may be null
+	 * @param intervalMillis The least time between progress reports
+	 * @return
+	 * @throws IOException
+	 */
+	public static CopyResult copyChannelMeasured(ReadableByteChannel in, WritableByteChannel out, CopyListener listener, long intervalMillis) throws IOException {
+		if ((in instanceof SelectableChannel && !((SelectableChannel) in).isBlocking())
+				|| (out instanceof SelectableChannel && !((SelectableChannel) out).isBlocking()))
+			throw new IllegalArgumentException("Non blocking channels are not supported");
+
+		CopyMeter meter = new CopyMeter(listener, intervalMillis);
+		boolean succeeded = false;
+		try {
+			copyChannel(in, out, meter);
+			succeeded = true;
+			return meter.finish(true);
+		}
+		finally {
+			if (!succeeded)
+				meter.finish(false);
+		}
+	}
+
+	private static void copyChannel(ReadableByteChannel in, WritableByteChannel out, CopyMeter meter) throws IOException {
+		if (in instanceof FileChannel && isTransferable((FileChannel) in, true)){
+			transferTo((FileChannel) in, out, meter);
+			return;
+		}
+		//transferFrom() sizes a FileChannel source by size() too, so a pipe or /proc source goes through the buffer
+		if (out instanceof FileChannel && !(in instanceof FileChannel) && isTransferable((FileChannel) out, false)){
+			transferFrom(in, (FileChannel) out, meter);
+			return;
+		}
+
+		BufferPool pool = BufferPool.getDefault();
+		ByteBuffer buffer = pool.borrowBuffer(BUFFER_SIZE, true);
+		try {
+			while (true){
+				long started = System.nanoTime();
+				int bytesRead = in.read(buffer);
+				meter.read(started);
+				if (bytesRead < 0)
+					break;
+				buffer.flip();
+				while (buffer.hasRemaining()){
+					started = System.nanoTime();
+					int written = out.write(buffer);
+					meter.wrote(started, written);
+				}
+				buffer.clear();
+			}
+		}
+		finally {
+			pool.releaseBuffer(buffer);
+		}
+	}
+
+	/**
+	 * Returns whether the channel is a regular file, which transferTo() / transferFrom()
+	 * can work on by position.  Pipes and devices cannot seek, and files such as those in
+	 * /proc report a size of 0, so these are copied through a buffer instead.
+	 */
+	private static boolean isTransferable(FileChannel channel, boolean source){
+		try {
+			channel.position();
+			return !source || channel.size() > 0;
+		}
+		catch (IOException ioe){
+			return false;
+		}
+	}
+
+	private static void transferTo(FileChannel in, WritableByteChannel out, CopyMeter meter) throws IOException {
+		long position = in.position();
+		while (true){
+			long started = System.nanoTime();
+			long transferred = in.transferTo(position, TRANSFER_SIZE, out);
+			meter.wrote(started, transferred);
+			if (transferred > 0)
+				position += transferred;
+			//transferTo() may stop short of the end; only stop when we have reached it
+			else if (position >= in.size())
+				break;
 		}
+		in.position(position);
+	}
 
-		bos.flush();
-		bos.close();
+	private static void transferFrom(ReadableByteChannel in, FileChannel out, CopyMeter meter) throws IOException {
+		long position = out.position();
+		while (true){
+			long started = System.nanoTime();
+			long transferred = out.transferFrom(in, position, TRANSFER_SIZE);
+			meter.wrote(started, transferred);
+			//With a blocking source, nothing transferred means the end of the input
+			if (transferred <= 0)
+				break;
+			position += transferred;
+		}
+		out.position(position);
 	}
 }
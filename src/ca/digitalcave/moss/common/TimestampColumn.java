@@ -0,0 +1,310 @@
+package ca.digitalcave.moss.common;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.function.LongConsumer;
+
+/**
+ * @author wyatt
+ * A compact, append only column of timestamps (epoch miliseconds), for use instead of
+ * a Date[] or List&lt;Date&gt;.  Timestamps are stored in blocks of BLOCK_SIZE.  The
+ * first timestamp of each block is kept as a long; the rest of the block is stored in
+ * a byte[] as the difference between consecutive deltas (delta of delta), zig-zag and
+ * varint encoded.  Regularly spaced timestamps (every second, every day, ...) take one
+ * byte each, and sorted but irregular ones usually two to four, compared to 24 or more
+ * for a Date.
+ *
+ * Reading is sequential within a block: cursor() and forEach() decode in order, and
+ * get(i) decodes from the start of i's block.  If the timestamps were added in order,
+ * findFirst() binary searches the block starts and then decodes a single block, and
+ * countByPeriod() counts the timestamps in each period of a PeriodRange while decoding.
+ *
+ * A column is not thread safe while timestamps are being added; after that, any number
+ * of threads may read it.
+ */
+public class TimestampColumn {
+	public static final int BLOCK_SIZE = 128;
+
+	private byte[] data = new byte[256];
+	private int length;
+	private long[] blockFirsts = new long[8];
+	private int[] blockOffsets = new int[8];
+	private int size;
+	private boolean sorted = true;
+
+	//Encoder state for the last block
+	private long last;
+	private long lastDelta;
+
+	/**
+	 * Creates an empty column.
+	 */
+	public TimestampColumn(){
+	}
+
+	/**
+	 * Creates a column containing the given timestamps.
+	 * @param times
+	 */
+	public TimestampColumn(long[] times){
+		for (long time : times){
+			add(time);
+		}
+	}
+
+	/**
+	 * Appends a timestamp.
+	 * @param time
+	 */
+	public void add(long time){
+		//Checked across blocks too, or findFirst() would search unsorted blocks
+		if (size > 0 && time < last)
+			sorted = false;
+		int position = size % BLOCK_SIZE;
+		if (position == 0){
+			int block = size / BLOCK_SIZE;
+			if (block == blockFirsts.length){
+				blockFirsts = Arrays.copyOf(blockFirsts, block * 2);
+				blockOffsets = Arrays.copyOf(blockOffsets, block * 2);
+			}
+			blockFirsts[block] = time;
+			blockOffsets[block] = length;
+			lastDelta = 0;
+		}
+		else {
+			long delta = time - last;
+			writeVarLong(position == 1 ? delta : delta - lastDelta);
+			lastDelta = delta;
+		}
+		last = time;
+		size++;
+	}
+
+	/**
+	 * Appends a timestamp.
+	 * @param date
+	 */
+	public void add(Date date){
+		add(date.getTime());
+	}
+
+	/**
+	 * Returns the number of timestamps.
+	 * @return
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Returns true if each timestamp is at or after the one before.
+	 * @return
+	 */
+	public boolean isSorted(){
+		return sorted;
+	}
+
+	/**
+	 * Returns the approximate number of bytes used to store the timestamps.
+	 * @return
+	 */
+	public long getEncodedSize(){
+		return length + (long) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE) * 12;
+	}
+
+	/**
+	 * Returns the timestamp at the given index.  This decodes from the start of the
+	 * index's block; use a cursor to read many in order.
+	 * @param index
+	 * @return
+	 */
+	public long get(int index){
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		Cursor cursor = new Cursor(index / BLOCK_SIZE);
+		for (int i = index % BLOCK_SIZE; i >= 0; i--){
+			cursor.next();
+		}
+		return cursor.get();
+	}
+
+	/**
+	 * Returns a cursor positioned before the first timestamp.
+	 * @return
+	 */
+	public Cursor cursor(){
+		return new Cursor(0);
+	}
+
+	/**
+	 * Passes each timestamp, in order, to the given consumer.
+	 * @param consumer
+	 */
+	public void forEach(LongConsumer consumer){
+		Cursor cursor = new Cursor(0);
+		while (cursor.next()){
+			consumer.accept(cursor.get());
+		}
+	}
+
+	/**
+	 * Returns all of the timestamps.
+	 * @return
+	 */
+	public long[] toArray(){
+		long[] result = new long[size];
+		Cursor cursor = new Cursor(0);
+		for (int i = 0; cursor.next(); i++){
+			result[i] = cursor.get();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the index of the first timestamp which is at or after the given time, or
+	 * size() if there is none.  The column must be sorted.
+	 * @param time
+	 * @return
+	 */
+	public int findFirst(long time){
+		if (!sorted)
+			throw new IllegalStateException("Column is not sorted");
+		int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		//Find the last block which starts before time; the answer is in it or at the start of the next
+		int lo = 0;
+		int hi = blocks - 1;
+		while (lo < hi){
+			int mid = (lo + hi + 1) >>> 1;
+			if (blockFirsts[mid] < time)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		Cursor cursor = new Cursor(lo);
+		int index = lo * BLOCK_SIZE;
+		while (cursor.next() && cursor.get() < time){
+			index++;
+		}
+		return Math.min(index, size);
+	}
+
+	/**
+	 * Counts the timestamps in each period of the given range; the result has one entry
+	 * per period.  Timestamps outside of the range are not counted.  For a sorted column,
+	 * the timestamps of period i are those from index (sum of counts before i) onwards.
+	 * @param range
+	 * @return
+	 */
+	public long[] countByPeriod(PeriodRange range){
+		if (range.size() > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Range has too many periods: " + range.size());
+		int periods = (int) Math.max(0, range.size());
+		long[] counts = new long[periods];
+		DateEngine engine = range.getEngine();
+		PeriodType type = range.getType();
+		long firstIndex = range.getFirstIndex();
+
+		//Remember the bounds of the last period we found, so that we only work out the
+		// period again when a timestamp falls outside of it.
+		long periodStart = 1;
+		long periodEnd = 0;
+		int period = -1;
+
+		Cursor cursor = new Cursor(0);
+		while (cursor.next()){
+			long time = cursor.get();
+			if (time < periodStart || time > periodEnd){
+				long index = engine.periodIndex(type, time) - firstIndex;
+				if (index < 0 || index >= periods){
+					period = -1;
+					periodStart = 1;
+					periodEnd = 0;
+					continue;
+				}
+				period = (int) index;
+				periodStart = Math.max(engine.periodStart(type, index + firstIndex), engine.startOf(type, time));
+				periodEnd = Math.min(engine.periodEnd(type, index + firstIndex), engine.endOf(type, time));
+				//Both ends can fall in the next period when DST skips the hour before midnight
+				periodEnd = Math.min(periodEnd, engine.periodStart(type, index + firstIndex + 1) - 1);
+			}
+			counts[period]++;
+		}
+		return counts;
+	}
+
+	/**
+	 * Reads timestamps in order.  next() moves to the next timestamp, returning false
+	 * when there are no more; get() returns the current one.
+	 */
+	public final class Cursor {
+		private int block;
+		private int index;
+		private int position;
+		private long value;
+		private long delta;
+
+		private Cursor(int block){
+			this.block = block;
+			this.index = block * BLOCK_SIZE - 1;
+		}
+
+		public boolean next(){
+			if (index + 1 >= size)
+				return false;
+			index++;
+			int inBlock = index % BLOCK_SIZE;
+			if (inBlock == 0){
+				block = index / BLOCK_SIZE;
+				position = blockOffsets[block];
+				value = blockFirsts[block];
+				delta = 0;
+			}
+			else {
+				long encoded = readVarLong();
+				delta = inBlock == 1 ? encoded : delta + encoded;
+				value += delta;
+			}
+			return true;
+		}
+
+		public long get(){
+			return value;
+		}
+
+		/**
+		 * Returns the index of the current timestamp.
+		 * @return
+		 */
+		public int getIndex(){
+			return index;
+		}
+
+		private long readVarLong(){
+			long result = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[position++];
+				result |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			//Undo the zig-zag encoding
+			return (result >>> 1) ^ -(result & 1);
+		}
+	}
+
+	/**
+	 * Writes the value zig-zag encoded (so small negative numbers are small), then 7 bits
+	 * per byte, low bits first, with the high bit set on all but the last byte.
+	 */
+	private void writeVarLong(long value){
+		if (length + 10 > data.length)
+			data = Arrays.copyOf(data, data.length * 2);
+		long zigzag = (value << 1) ^ (value >> 63);
+		while ((zigzag & ~0x7Fl) != 0){
+			data[length++] = (byte) ((zigzag & 0x7F) | 0x80);
+			zigzag >>>= 7;
+		}
+		data[length++] = (byte) zigzag;
+	}
+}
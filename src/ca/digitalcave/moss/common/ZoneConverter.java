@@ -0,0 +1,368 @@
+package ca.digitalcave.moss.common;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * @author wyatt
+ * Converts between instants (epoch miliseconds) and local wall clock times in a time
+ * zone, singly or in bulk, without creating a Calendar.  Local times are expressed as
+ * miliseconds since 1970-01-01T00:00 on the wall clock, as with ZoneOffsetTable.
+ *
+ * A local time which falls in a DST gap does not exist, and one which falls in an
+ * overlap exists twice; how these are resolved is chosen when the converter is created.
+ * The default (Gap.SHIFT and Overlap.LATER) matches GregorianCalendar, and so DateUtil.
+ *
+ * The bulk methods convert arrays of times, splitting large arrays over the common
+ * ForkJoinPool.  Within a chunk, consecutive times away from any offset change reuse
+ * the offset found for the first one, so a batch costs little more than copying it.  The
+ * result array may be the input array, as long as each result goes in the same position
+ * as its input (offset == from) or the ranges do not overlap.
+ *
+ * Instances are immutable and thread safe.
+ */
+public final class ZoneConverter {
+	//Arrays smaller than this are not split
+	private static final int MIN_CHUNK = 8192;
+
+	private static final int TO_INSTANT = 0;
+	private static final int TO_LOCAL = 1;
+	private static final int CONVERT = 2;
+
+	/**
+	 * How to resolve a local time which is skipped when the clocks go forward.
+	 */
+	public enum Gap {
+		/** Use the offset from before the change, which moves the time forward by the length of the gap (as Calendar does) */
+		SHIFT,
+		/** Use the instant at which the clocks changed, i.e. the first valid time after the gap */
+		NEXT_VALID,
+		/** Throw an IllegalArgumentException */
+		REJECT
+	}
+
+	/**
+	 * How to resolve a local time which occurs twice when the clocks go back.
+	 */
+	public enum Overlap {
+		/** Use the first occurrence (the offset from before the change) */
+		EARLIER,
+		/** Use the second occurrence (the offset from after the change, as Calendar does) */
+		LATER,
+		/** Throw an IllegalArgumentException */
+		REJECT
+	}
+
+	private final ZoneOffsetTable zone;
+	private final Gap gap;
+	private final Overlap overlap;
+
+	/**
+	 * Creates a converter for the given zone, which resolves gaps and overlaps as
+	 * GregorianCalendar does.
+	 * @param zone
+	 */
+	public ZoneConverter(TimeZone zone){
+		this(zone, Gap.SHIFT, Overlap.LATER);
+	}
+
+	/**
+	 * Creates a converter for the given zone, which resolves gaps and overlaps as given.
+	 * @param zone
+	 * @param gap
+	 * @param overlap
+	 */
+	public ZoneConverter(TimeZone zone, Gap gap, Overlap overlap){
+		if (gap == null)
+			throw new NullPointerException("gap");
+		if (overlap == null)
+			throw new NullPointerException("overlap");
+		this.zone = ZoneOffsetTable.forZone(zone);
+		this.gap = gap;
+		this.overlap = overlap;
+	}
+
+	public TimeZone getTimeZone(){
+		return zone.getTimeZone();
+	}
+
+	public Gap getGap(){
+		return gap;
+	}
+
+	public Overlap getOverlap(){
+		return overlap;
+	}
+
+	/**
+	 * Returns the local wall clock time of the given instant.
+	 * @param instant
+	 * @return
+	 */
+	public long toLocal(long instant){
+		return zone.toLocal(instant);
+	}
+
+	/**
+	 * Returns the instant of the given local wall clock time, resolving gaps and overlaps
+	 * by this converter's policy.
+	 * @param local
+	 * @return
+	 */
+	public long toInstant(long local){
+		int before = zone.getOffset(local - ZoneOffsetTable.MILLIS_PER_DAY);
+		int after = zone.getOffset(local + ZoneOffsetTable.MILLIS_PER_DAY);
+		if (before == after)
+			return local - before;
+
+		long withBefore = local - before;
+		long withAfter = local - after;
+		boolean beforeValid = zone.getOffset(withBefore) == before;
+		boolean afterValid = zone.getOffset(withAfter) == after;
+		if (beforeValid && afterValid){
+			switch (overlap){
+			case EARLIER: return withBefore;
+			case LATER: return withAfter;
+			default: throw new IllegalArgumentException("Local time " + local + " occurs twice in " + zone.getTimeZone().getID());
+			}
+		}
+		if (beforeValid)
+			return withBefore;
+		if (afterValid)
+			return withAfter;
+
+		switch (gap){
+		case SHIFT: return withBefore;
+		case NEXT_VALID: return transition(withAfter, withBefore, before);
+		default: throw new IllegalArgumentException("Local time " + local + " does not exist in " + zone.getTimeZone().getID());
+		}
+	}
+
+	/**
+	 * Returns the instant of the given local date and time, resolving gaps and overlaps
+	 * by this converter's policy.
+	 * @param year
+	 * @param month The month, e.g. Calendar.JANUARY
+	 * @param day The day of the month, from 1
+	 * @param hour
+	 * @param minute
+	 * @param second
+	 * @param milisecond
+	 * @return
+	 */
+	public long toInstant(int year, int month, int day, int hour, int minute, int second, int milisecond){
+		if (month < Calendar.JANUARY || month > Calendar.DECEMBER
+				|| day < 1 || day > DateEngine.lengthOfMonth(year, month)
+				|| hour < 0 || hour > 23 || minute < 0 || minute > 59
+				|| second < 0 || second > 59 || milisecond < 0 || milisecond > 999)
+			throw new IllegalArgumentException("Invalid local time: " + year + "-" + (month + 1) + "-" + day + " " + hour + ":" + minute + ":" + second + "." + milisecond);
+		long local = DateEngine.toEpochDay(year, month, day) * ZoneOffsetTable.MILLIS_PER_DAY
+				+ ((hour * 60 + minute) * 60 + second) * 1000l + milisecond;
+		return toInstant(local);
+	}
+
+	/**
+	 * Returns the local wall clock time of each of the given instants.
+	 * @param instants
+	 * @return
+	 */
+	public long[] toLocal(long[] instants){
+		long[] result = new long[instants.length];
+		toLocal(instants, 0, instants.length, result, 0);
+		return result;
+	}
+
+	/**
+	 * Stores the local wall clock time of each of instants[from] .. instants[to - 1]
+	 * into result, starting at result[offset].
+	 * @param instants
+	 * @param from
+	 * @param to
+	 * @param result
+	 * @param offset
+	 */
+	public void toLocal(long[] instants, int from, int to, long[] result, int offset){
+		run(TO_LOCAL, null, instants, from, to, result, offset);
+	}
+
+	/**
+	 * Returns the instant of each of the given local times.
+	 * @param locals
+	 * @return
+	 */
+	public long[] toInstant(long[] locals){
+		long[] result = new long[locals.length];
+		toInstant(locals, 0, locals.length, result, 0);
+		return result;
+	}
+
+	/**
+	 * Stores the instant of each of locals[from] .. locals[to - 1] into result, starting
+	 * at result[offset].  If the policy is to reject gaps or overlaps, the exception may
+	 * be thrown after some of the results are stored.
+	 * @param locals
+	 * @param from
+	 * @param to
+	 * @param result
+	 * @param offset
+	 */
+	public void toInstant(long[] locals, int from, int to, long[] result, int offset){
+		run(TO_INSTANT, null, locals, from, to, result, offset);
+	}
+
+	/**
+	 * Returns each of the given local times in this converter's zone as a local time in
+	 * the target's zone.
+	 * @param locals
+	 * @param target
+	 * @return
+	 */
+	public long[] convert(long[] locals, ZoneConverter target){
+		long[] result = new long[locals.length];
+		convert(locals, 0, locals.length, target, result, 0);
+		return result;
+	}
+
+	/**
+	 * Stores each of locals[from] .. locals[to - 1], a local time in this converter's
+	 * zone, as a local time in the target's zone into result, starting at result[offset].
+	 * @param locals
+	 * @param from
+	 * @param to
+	 * @param target
+	 * @param result
+	 * @param offset
+	 */
+	public void convert(long[] locals, int from, int to, ZoneConverter target, long[] result, int offset){
+		if (target == null)
+			throw new NullPointerException("target");
+		run(CONVERT, target, locals, from, to, result, offset);
+	}
+
+	/*
+	 * Bulk conversion
+	 */
+
+	private void run(int operation, ZoneConverter target, long[] times, int from, int to, long[] result, int offset){
+		if (from < 0 || to > times.length || from > to)
+			throw new IndexOutOfBoundsException("Range " + from + " - " + to + " is not within the input (length " + times.length + ")");
+		if (offset < 0 || offset + (to - from) > result.length)
+			throw new IndexOutOfBoundsException("Result (length " + result.length + ") is too short for " + (to - from) + " values at " + offset);
+		//Chunks run in any order, so a shifted overlap would overwrite times before they are read
+		if (result == times && offset != from && offset < to && from < offset + (to - from))
+			throw new IllegalArgumentException("The result range (at " + offset + ") overlaps the input range (at " + from + ")");
+
+		int chunkSize = Math.max(MIN_CHUNK, (to - from) / (ForkJoinPool.getCommonPoolParallelism() * 4));
+		if (to - from <= chunkSize)
+			apply(operation, target, times, from, to, result, offset);
+		else
+			ForkJoinPool.commonPool().invoke(new ChunkTask(operation, target, times, from, to, result, offset, chunkSize));
+	}
+
+	private void apply(int operation, ZoneConverter target, long[] times, int from, int to, long[] result, int offset){
+		if (operation == TO_LOCAL){
+			applyToLocal(times, from, to, result, offset);
+		}
+		else {
+			applyToInstant(times, from, to, result, offset);
+			if (operation == CONVERT)
+				target.applyToLocal(result, offset, offset + (to - from), result, offset);
+		}
+	}
+
+	private void applyToLocal(long[] instants, int from, int to, long[] result, int offset){
+		//The instants over which the offset is the same as for the last one we looked up
+		long first = 1;
+		long last = 0;
+		int current = 0;
+		for (int i = from; i < to; i++){
+			long instant = instants[i];
+			if (instant < first || instant > last){
+				current = zone.getOffset(instant);
+				first = zone.offsetStart(instant);
+				last = zone.offsetEnd(instant);
+			}
+			result[offset + i - from] = instant + current;
+		}
+	}
+
+	private void applyToInstant(long[] locals, int from, int to, long[] result, int offset){
+		//The local times which are a day or more from any offset change (so are neither
+		// in a gap nor an overlap) on either side of the last one we looked up
+		long first = 1;
+		long last = 0;
+		int current = 0;
+		for (int i = from; i < to; i++){
+			long local = locals[i];
+			if (local < first || local > last){
+				long instant = toInstant(local);
+				result[offset + i - from] = instant;
+				current = zone.getOffset(instant);
+				if (zone.isFixed()){
+					first = Long.MIN_VALUE;
+					last = Long.MAX_VALUE;
+				}
+				else {
+					first = zone.offsetStart(instant) + current + ZoneOffsetTable.MILLIS_PER_DAY;
+					last = zone.offsetEnd(instant) + current - ZoneOffsetTable.MILLIS_PER_DAY;
+				}
+				continue;
+			}
+			result[offset + i - from] = local - current;
+		}
+	}
+
+	/**
+	 * Returns the first instant after from (up to to) at which the offset is no longer
+	 * the given one.
+	 */
+	private long transition(long from, long to, int offset){
+		long lo = from;
+		long hi = to;
+		while (hi - lo > 1){
+			long mid = lo + (hi - lo) / 2;
+			if (zone.getOffset(mid) == offset)
+				lo = mid;
+			else
+				hi = mid;
+		}
+		return hi;
+	}
+
+	private class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int operation;
+		private final ZoneConverter target;
+		private final long[] times;
+		private final int from;
+		private final int to;
+		private final long[] result;
+		private final int offset;
+		private final int chunkSize;
+
+		ChunkTask(int operation, ZoneConverter target, long[] times, int from, int to, long[] result, int offset, int chunkSize){
+			this.operation = operation;
+			this.target = target;
+			this.times = times;
+			this.from = from;
+			this.to = to;
+			this.result = result;
+			this.offset = offset;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		protected void compute(){
+			if (to - from <= chunkSize){
+				apply(operation, target, times, from, to, result, offset);
+				return;
+			}
+			int mid = from + (to - from) / 2;
+			invokeAll(new ChunkTask(operation, target, times, from, mid, result, offset, chunkSize),
+					new ChunkTask(operation, target, times, mid, to, result, offset + (mid - from), chunkSize));
+		}
+	}
+}
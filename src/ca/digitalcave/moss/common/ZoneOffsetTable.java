@@ -0,0 +1,343 @@
+package ca.digitalcave.moss.common;
+
+import java.time.Instant;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * @author wyatt
+ * A precomputed table of the offset transitions of a TimeZone.  TimeZone.getOffset()
+ * is accurate but slow, and converting a local (wall clock) time back to an instant
+ * normally needs a whole Calendar.  This class reads the zone once, records every
+ * transition between 1800 and 2400, and then answers both directions with a bucket
+ * lookup and a short forward scan.  Outside of that window we fall back to asking
+ * the TimeZone directly.
+ *
+ * Local to UTC conversion resolves gaps and overlaps the same way that
+ * GregorianCalendar does: a wall time which falls in a gap is interpreted using the
+ * offset before the transition (and so is moved forward), and a wall time which
+ * occurs twice is interpreted using the offset after the transition (the later instant).
+ *
+ * Instances are immutable and thread safe; use forZone() to get a shared instance.
+ */
+public final class ZoneOffsetTable {
+	static final long MILLIS_PER_DAY = 86400000l;
+
+	//The window which we precompute; these are 1800-01-01 and 2400-01-01 UTC.
+	private static final long TABLE_START = -5364662400000l;
+	private static final long TABLE_END = 13569465600000l;
+
+	//Each bucket covers 2^32 ms (about 50 days), which is shorter than the distance
+	// between any two real transitions, so a lookup scans at most a couple of entries.
+	private static final int BUCKET_SHIFT = 32;
+
+	private static final ConcurrentMap<String, ZoneOffsetTable> cache = new ConcurrentHashMap<String, ZoneOffsetTable>();
+
+	private final TimeZone zone;
+	private final boolean fixed;
+	private final int fixedOffset;
+
+	//transitions[i] is the instant at which offsets[i + 1] takes effect; offsets[0]
+	// is the offset in effect at the start of the table.
+	private final long[] transitions;
+	private final int[] offsets;
+
+	//wallTransitions[i] is transitions[i] as seen on the new wall clock.
+	private final long[] wallTransitions;
+
+	private final int[] utcBuckets;
+	private final int[] wallBuckets;
+
+	/**
+	 * Returns the (shared) offset table for the given zone.  Tables are cached by zone ID,
+	 * and rebuilt if a zone with the same ID but different rules is passed in.
+	 * @param zone
+	 * @return
+	 */
+	public static ZoneOffsetTable forZone(TimeZone zone){
+		if (zone == null)
+			throw new NullPointerException("zone");
+		ZoneOffsetTable table = cache.get(zone.getID());
+		if (table == null || !table.zone.hasSameRules(zone)){
+			table = new ZoneOffsetTable((TimeZone) zone.clone());
+			cache.put(zone.getID(), table);
+		}
+		return table;
+	}
+
+	private ZoneOffsetTable(TimeZone zone){
+		this.zone = zone;
+
+		Transitions found = findTransitions(zone);
+		int count = found.count;
+
+		this.transitions = Arrays.copyOf(found.transitions, count);
+		this.offsets = Arrays.copyOf(found.offsets, count + 1);
+		this.wallTransitions = new long[count];
+		for (int i = 0; i < count; i++){
+			wallTransitions[i] = transitions[i] + offsets[i + 1];
+		}
+
+		this.fixed = count == 0 && !zone.useDaylightTime();
+		this.fixedOffset = offsets[0];
+
+		int buckets = (int) ((TABLE_END - TABLE_START) >>> BUCKET_SHIFT) + 2;
+		this.utcBuckets = buildBuckets(transitions, buckets);
+		this.wallBuckets = buildBuckets(wallTransitions, buckets);
+	}
+
+	/**
+	 * Finds all transitions within the window.  Where the zone is known to java.time we
+	 * use its rules to jump from one transition to the next, checking each period against
+	 * the TimeZone once a week.  Any period which does not agree (the TimeZone data differs
+	 * for some zones before 1900 and around 2037), and zones which java.time does not know, are scanned a
+	 * day at a time, bisecting down to the exact milisecond whenever the offset changes.
+	 */
+	private static Transitions findTransitions(TimeZone zone){
+		ZoneRules rules;
+		try {
+			rules = zone.toZoneId().getRules();
+		}
+		catch (RuntimeException re){
+			rules = null;
+		}
+
+		Transitions found = new Transitions(zone.getOffset(TABLE_START));
+		long from = TABLE_START;
+		while (from < TABLE_END){
+			long to = TABLE_END;
+			if (rules != null){
+				ZoneOffsetTransition transition = rules.nextTransition(Instant.ofEpochMilli(from));
+				if (transition != null && transition.toEpochSecond() * 1000 < TABLE_END)
+					to = transition.toEpochSecond() * 1000;
+			}
+
+			int current = found.lastOffset();
+			if (rules == null || !isConstant(zone, from, to - 1, current))
+				scan(zone, found, from, to - 1);
+
+			if (to < TABLE_END){
+				int after = zone.getOffset(to);
+				if (after != found.lastOffset())
+					found.add(to, after);
+			}
+			from = to;
+		}
+		return found;
+	}
+
+	/**
+	 * Checks (weekly, and at the end) that the offset stays the same between from and to.
+	 */
+	private static boolean isConstant(TimeZone zone, long from, long to, int offset){
+		for (long t = from; t < to; t += 7 * MILLIS_PER_DAY){
+			if (zone.getOffset(t) != offset)
+				return false;
+		}
+		return zone.getOffset(to) == offset;
+	}
+
+	/**
+	 * Adds any transitions between from (exclusive) and to (inclusive).
+	 */
+	private static void scan(TimeZone zone, Transitions found, long from, long to){
+		int previous = found.lastOffset();
+		long lastProbe = from;
+		while (lastProbe < to){
+			long probe = Math.min(lastProbe + MILLIS_PER_DAY, to);
+			int offset = zone.getOffset(probe);
+			if (offset != previous){
+				long lo = lastProbe;
+				long hi = probe;
+				while (hi - lo > 1){
+					long mid = lo + (hi - lo) / 2;
+					if (zone.getOffset(mid) == previous)
+						lo = mid;
+					else
+						hi = mid;
+				}
+				found.add(hi, offset);
+				previous = offset;
+			}
+			lastProbe = probe;
+		}
+	}
+
+	/**
+	 * Growable list of transitions, used while building the table.
+	 */
+	private static class Transitions {
+		long[] transitions = new long[64];
+		int[] offsets = new int[65];
+		int count = 0;
+
+		Transitions(int initialOffset){
+			offsets[0] = initialOffset;
+		}
+
+		int lastOffset(){
+			return offsets[count];
+		}
+
+		void add(long transition, int offset){
+			if (count == transitions.length){
+				transitions = Arrays.copyOf(transitions, count * 2);
+				offsets = Arrays.copyOf(offsets, count * 2 + 1);
+			}
+			transitions[count] = transition;
+			offsets[count + 1] = offset;
+			count++;
+		}
+	}
+
+	/**
+	 * Returns the index of the first transition which is at or after the start of each bucket.
+	 */
+	private static int[] buildBuckets(long[] times, int buckets){
+		int[] result = new int[buckets];
+		int index = 0;
+		for (int b = 0; b < buckets; b++){
+			long bucketStart = TABLE_START + ((long) b << BUCKET_SHIFT);
+			while (index < times.length && times[index] < bucketStart)
+				index++;
+			result[b] = index;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a copy of the TimeZone which this table was built from.
+	 * @return
+	 */
+	public TimeZone getTimeZone(){
+		//Always a fresh copy; SimpleTimeZone (which ZoneInfo uses after 2037) caches
+		// the last year it looked at, and that cache is not reliable once it has been
+		// used out of order, as we do when scanning.
+		return (TimeZone) zone.clone();
+	}
+
+	/**
+	 * Returns true if this zone has a single offset for all time.
+	 * @return
+	 */
+	public boolean isFixed(){
+		return fixed;
+	}
+
+	/**
+	 * Returns the total offset (raw plus DST) in miliseconds for the given instant.
+	 * @param utc
+	 * @return
+	 */
+	public int getOffset(long utc){
+		if (fixed)
+			return fixedOffset;
+		if (utc < TABLE_START || utc >= TABLE_END)
+			return zone.getOffset(utc);
+
+		int index = utcBuckets[(int) ((utc - TABLE_START) >>> BUCKET_SHIFT)];
+		while (index < transitions.length && transitions[index] <= utc)
+			index++;
+		return offsets[index];
+	}
+
+	/**
+	 * Returns the first instant at or before utc from which the offset has been the same
+	 * as at utc.  Outside of the table we do not know, and return utc itself.
+	 */
+	long offsetStart(long utc){
+		if (fixed)
+			return Long.MIN_VALUE;
+		if (utc < TABLE_START || utc >= TABLE_END)
+			return utc;
+		int index = utcBuckets[(int) ((utc - TABLE_START) >>> BUCKET_SHIFT)];
+		while (index < transitions.length && transitions[index] <= utc)
+			index++;
+		return index > 0 ? transitions[index - 1] : TABLE_START;
+	}
+
+	/**
+	 * Returns the last instant at or after utc until which the offset stays the same as
+	 * at utc.  Outside of the table we do not know, and return utc itself.
+	 */
+	long offsetEnd(long utc){
+		if (fixed)
+			return Long.MAX_VALUE;
+		if (utc < TABLE_START || utc >= TABLE_END)
+			return utc;
+		int index = utcBuckets[(int) ((utc - TABLE_START) >>> BUCKET_SHIFT)];
+		while (index < transitions.length && transitions[index] <= utc)
+			index++;
+		return (index < transitions.length ? transitions[index] : TABLE_END) - 1;
+	}
+
+	/**
+	 * Returns false if the offset is the same at every instant from from to to (both
+	 * inclusive).  Outside of the table we do not know, and always return true.
+	 */
+	boolean mayChangeBetween(long from, long to){
+		if (fixed)
+			return false;
+		if (from < TABLE_START || to >= TABLE_END)
+			return true;
+
+		int index = utcBuckets[(int) ((from - TABLE_START) >>> BUCKET_SHIFT)];
+		while (index < transitions.length && transitions[index] <= from)
+			index++;
+		return index < transitions.length && transitions[index] <= to;
+	}
+
+	/**
+	 * Converts the given instant to local miliseconds, i.e. the number of miliseconds since
+	 * 1970-01-01T00:00 on the local wall clock.
+	 * @param utc
+	 * @return
+	 */
+	public long toLocal(long utc){
+		return utc + getOffset(utc);
+	}
+
+	/**
+	 * Converts the given local miliseconds back to an instant, resolving gaps and
+	 * overlaps in the same way as GregorianCalendar.
+	 * @param local
+	 * @return
+	 */
+	public long toUtc(long local){
+		if (fixed)
+			return local - fixedOffset;
+		if (local < TABLE_START + MILLIS_PER_DAY || local >= TABLE_END - MILLIS_PER_DAY)
+			return toUtcOutsideTable(local);
+
+		int index = wallBuckets[(int) ((local - TABLE_START) >>> BUCKET_SHIFT)];
+		while (index < wallTransitions.length && wallTransitions[index] <= local)
+			index++;
+		return local - offsets[index];
+	}
+
+	/**
+	 * Local to UTC conversion when we do not have a table; we look a day either side,
+	 * and if the offset differs, bisect to find the transition between them.
+	 */
+	private long toUtcOutsideTable(long local){
+		int before = zone.getOffset(local - MILLIS_PER_DAY);
+		int after = zone.getOffset(local + MILLIS_PER_DAY);
+		if (before == after)
+			return local - zone.getOffset(local - before);
+
+		long lo = local - MILLIS_PER_DAY;
+		long hi = local + MILLIS_PER_DAY;
+		while (hi - lo > 1){
+			long mid = lo + (hi - lo) / 2;
+			if (zone.getOffset(mid) == before)
+				lo = mid;
+			else
+				hi = mid;
+		}
+		return local >= hi + after ? local - after : local - before;
+	}
+}
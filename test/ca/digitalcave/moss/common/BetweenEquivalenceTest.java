@@ -0,0 +1,250 @@
+package ca.digitalcave.moss.common;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * @author wyatt
+ * Checks that the constant time DateUtil / DateMath *Between methods give the same
+ * results as the Calendar implementations they replaced: getDaysBetween() against the
+ * original year by year loop, getMonthsBetween() against the original Calendar fields,
+ * and the week, quarter and year counts against walking a Calendar between the dates.
+ *
+ * Pairs of dates are checked in each order (so reversed ranges are covered), with and
+ * without inclusive, in several zones (including half hour DST, DST at midnight and a
+ * skipped day) and locales (with Sunday and Monday weeks, and a non Gregorian calendar).
+ * Besides random dates, every DST transition from 1970 to 2040 is checked a millisecond,
+ * an hour and a day either side of the change.
+ *
+ * Run with the classes from src on the classpath:
+ *	java ca.digitalcave.moss.common.BetweenEquivalenceTest
+ * It prints each mismatch, and exits with status 1 if there were any.
+ */
+public class BetweenEquivalenceTest {
+	private static final String[] ZONES = {"UTC", "America/New_York", "Europe/Paris", "Australia/Lord_Howe", "Asia/Kolkata", "America/Havana", "Asia/Tehran", "Pacific/Apia"};
+	private static final Locale[] LOCALES = {Locale.US, Locale.FRANCE, new Locale("th", "TH")};
+
+	private static final long DAY = 24l * 60 * 60 * 1000;
+	private static final long HOUR = 60l * 60 * 1000;
+
+	//Random dates are from 1600 to 2400; week counts walk day by day, so their spans are shorter
+	private static final long MIN = -11676096000000l;
+	private static final long MAX = 13569465600000l;
+	private static final long MAX_WEEK_SPAN = 4 * 366 * DAY;
+
+	private final List<String> failures = new ArrayList<String>();
+	private int checks;
+
+	public static void main(String[] args){
+		TimeZone zone = TimeZone.getDefault();
+		Locale locale = Locale.getDefault();
+		BetweenEquivalenceTest test = new BetweenEquivalenceTest();
+		try {
+			for (String id : ZONES){
+				for (Locale l : LOCALES){
+					TimeZone.setDefault(TimeZone.getTimeZone(id));
+					Locale.setDefault(l);
+					DateUtil.resetDefaults();
+					test.run(id, l);
+				}
+			}
+		}
+		finally {
+			TimeZone.setDefault(zone);
+			Locale.setDefault(locale);
+			DateUtil.resetDefaults();
+		}
+
+		for (String failure : test.failures){
+			System.out.println(failure);
+		}
+		System.out.println(test.checks + " checks, " + test.failures.size() + " failures");
+		if (!test.failures.isEmpty())
+			System.exit(1);
+	}
+
+	private void run(String zone, Locale locale){
+		Random random = new Random(zone.hashCode() * 31 + locale.hashCode());
+		for (int i = 0; i < 1000; i++){
+			long first = MIN + (long) (random.nextDouble() * (MAX - MIN));
+			long last = i % 2 == 0 ? MIN + (long) (random.nextDouble() * (MAX - MIN)) : first + (long) ((random.nextDouble() - 0.5) * 2 * MAX_WEEK_SPAN);
+			check(zone, locale, first, last);
+		}
+
+		//Either side of each DST change, against each other and against nearby dates
+		ZoneRules rules = ZoneId.of(zone).getRules();
+		ZoneOffsetTransition transition = rules.nextTransition(Instant.ofEpochMilli(0));
+		while (transition != null && transition.getInstant().toEpochMilli() < 2208988800000l){
+			long change = transition.getInstant().toEpochMilli();
+			long[] around = {change - DAY, change - HOUR, change - 1, change, change + 1, change + HOUR, change + DAY};
+			for (long first : around){
+				for (long last : around){
+					check(zone, locale, first, last);
+				}
+				check(zone, locale, first, first + (long) ((random.nextDouble() - 0.5) * 2 * 400 * DAY));
+			}
+			transition = rules.nextTransition(transition.getInstant());
+		}
+	}
+
+	/**
+	 * Checks both orders of the given dates, with and without inclusive.
+	 */
+	private void check(String zone, Locale locale, long a, long b){
+		for (int order = 0; order < 2; order++){
+			long first = order == 0 ? a : b;
+			long last = order == 0 ? b : a;
+			for (int i = 0; i < 2; i++){
+				boolean inclusive = i == 1;
+				Date firstDate = new Date(first);
+				Date lastDate = new Date(last);
+				String context = zone + " " + locale + " " + first + " " + last + " " + inclusive;
+
+				int days = legacyDaysBetween(firstDate, lastDate, inclusive);
+				compare("days", context, days, DateUtil.getDaysBetween(firstDate, lastDate, inclusive));
+				compare("days (DateMath)", context, days, DateMath.getDaysBetween(first, last, inclusive));
+
+				int months = legacyMonthsBetween(firstDate, lastDate, inclusive);
+				compare("months", context, months, DateUtil.getMonthsBetween(firstDate, lastDate, inclusive));
+				compare("months (DateMath)", context, months, DateMath.getMonthsBetween(first, last, inclusive));
+
+				int quarters = calendarQuartersBetween(first, last) + adjustment(first, last, inclusive);
+				compare("quarters", context, quarters, DateUtil.getQuartersBetween(firstDate, lastDate, inclusive));
+				compare("quarters (DateMath)", context, quarters, DateMath.getQuartersBetween(first, last, inclusive));
+
+				int years = calendar(last).get(Calendar.YEAR) - calendar(first).get(Calendar.YEAR) + adjustment(first, last, inclusive);
+				compare("years", context, years, DateUtil.getYearsBetween(firstDate, lastDate, inclusive));
+				compare("years (DateMath)", context, years, DateMath.getYearsBetween(first, last, inclusive));
+
+				if (Math.abs(last - first) <= MAX_WEEK_SPAN){
+					int weeks = calendarWeeksBetween(first, last) + adjustment(first, last, inclusive);
+					compare("weeks", context, weeks, DateUtil.getWeeksBetween(firstDate, lastDate, inclusive));
+					compare("weeks (DateMath)", context, weeks, DateMath.getWeeksBetween(first, last, inclusive));
+				}
+			}
+		}
+	}
+
+	private void compare(String method, String context, int expected, int actual){
+		checks++;
+		if (expected != actual)
+			failures.add(method + " " + context + ": expected " + expected + ", got " + actual);
+	}
+
+	private static Calendar calendar(long time){
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		return calendar;
+	}
+
+	private static int adjustment(long first, long last, boolean inclusive){
+		if (!inclusive)
+			return 0;
+		return first <= last ? 1 : -1;
+	}
+
+	/**
+	 * The number of first days of the week after the earlier date, up to and including the
+	 * later one, found by walking a Calendar a day at a time.
+	 */
+	private static int calendarWeeksBetween(long first, long last){
+		Calendar from = calendar(Math.min(first, last));
+		Calendar to = calendar(Math.max(first, last));
+		int weeks = 0;
+		while (from.get(Calendar.ERA) != to.get(Calendar.ERA) || from.get(Calendar.YEAR) != to.get(Calendar.YEAR)
+				|| from.get(Calendar.DAY_OF_YEAR) != to.get(Calendar.DAY_OF_YEAR)){
+			from.add(Calendar.DATE, 1);
+			if (from.get(Calendar.DAY_OF_WEEK) == from.getFirstDayOfWeek())
+				weeks++;
+		}
+		return first <= last ? weeks : -weeks;
+	}
+
+	private static int calendarQuartersBetween(long first, long last){
+		Calendar from = calendar(first);
+		Calendar to = calendar(last);
+		return (to.get(Calendar.YEAR) * 4 + to.get(Calendar.MONTH) / 3) - (from.get(Calendar.YEAR) * 4 + from.get(Calendar.MONTH) / 3);
+	}
+
+	/*
+	 * The implementations which were replaced, as they were
+	 */
+
+	private static int legacyMonthsBetween(Date first, Date last, boolean inclusive) {
+		Calendar cFirst = Calendar.getInstance();
+		cFirst.setTime(first);
+		Calendar cLast = Calendar.getInstance();
+		cLast.setTime(last);
+
+		int firstYear = cFirst.get(Calendar.YEAR);
+		int firstMonth = cFirst.get(Calendar.MONTH);
+		int lastYear = cLast.get(Calendar.YEAR);
+		int lastMonth = cLast.get(Calendar.MONTH);
+
+		return lastMonth - firstMonth + (12 * (lastYear - firstYear)) + (inclusive ? (first.compareTo(last) > 0 ? 1 : -1) : 0);
+	}
+
+	private static int legacyDaysBetween(Date first, Date last, boolean inclusive) {
+		Calendar cFirst = Calendar.getInstance();
+		Calendar cLast = Calendar.getInstance();
+
+		cFirst.setTime(first);
+		cLast.setTime(last);
+
+		int daysBetween;
+		if (cFirst.get(Calendar.YEAR) == cLast.get(Calendar.YEAR)){
+			daysBetween = cLast.get(Calendar.DAY_OF_YEAR) - cFirst.get(Calendar.DAY_OF_YEAR);
+		}
+		else {
+			Calendar cTemp;
+			boolean swap = false;
+			if (cFirst.get(Calendar.YEAR) > cLast.get(Calendar.YEAR)){
+				swap = true;
+				cTemp = cFirst;
+				cFirst = cLast;
+				cLast = cTemp;
+			}
+
+			cTemp = Calendar.getInstance();
+			cTemp.setTime(cFirst.getTime());
+			cTemp.set(Calendar.DAY_OF_YEAR, cTemp.getActualMaximum(Calendar.DAY_OF_YEAR));
+			int daysAfterFirstDateInYear = legacyDaysBetween(cFirst.getTime(), cTemp.getTime(), true);
+
+			cTemp = Calendar.getInstance();
+			cTemp.setTime(cLast.getTime());
+			cTemp.set(Calendar.DAY_OF_YEAR, cTemp.getActualMinimum(Calendar.DAY_OF_YEAR));
+			int daysBeforeLastDateInYear = legacyDaysBetween(cTemp.getTime(), cLast.getTime(), false);
+
+			int daysInCompleteYearsBetweenDates = 0;
+			for (int i = cFirst.get(Calendar.YEAR) + 1; i < cLast.get(Calendar.YEAR); i++){
+				cTemp.set(Calendar.YEAR, i);
+				daysInCompleteYearsBetweenDates += cTemp.getActualMaximum(Calendar.DAY_OF_YEAR);
+			}
+
+			daysBetween = daysAfterFirstDateInYear + daysInCompleteYearsBetweenDates + daysBeforeLastDateInYear;
+			if (swap)
+				daysBetween *= -1;
+		}
+
+		int adjustment = 0;
+		if (inclusive){
+			if (first.equals(last))
+				adjustment = 1;
+			else if (first.before(last))
+				adjustment = 1;
+			else
+				adjustment = -1;
+		}
+
+		return daysBetween + adjustment;
+	}
+}
@@ -0,0 +1,137 @@
+package ca.digitalcave.moss.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * @author wyatt
+ * Checks that DateArrays.getStartOf() / getEndOf() give the same results as the DateUtil
+ * methods, and that TimestampColumn.countByPeriod() puts each timestamp in the same
+ * period whatever comes before it, in zones where DST skips the hour before midnight
+ * (so the end of a day, calculated as 23:59:59.999, falls on the next day): America/Nuuk
+ * from 2024, and Europe/Paris in the 1920s and 30s.
+ *
+ * Each year is checked every half hour, for each period type.
+ *
+ * Run with the classes from src on the classpath:
+ *	java ca.digitalcave.moss.common.DateArraysDstTest
+ * It prints each mismatch, and exits with status 1 if there were any.
+ */
+public class DateArraysDstTest {
+	private static final long HALF_HOUR = 30l * 60 * 1000;
+
+	private final List<String> failures = new ArrayList<String>();
+	private int checks;
+
+	public static void main(String[] args){
+		TimeZone zone = TimeZone.getDefault();
+		Locale locale = Locale.getDefault();
+		DateArraysDstTest test = new DateArraysDstTest();
+		try {
+			test.run("America/Nuuk", new int[]{2024, 2025, 2026});
+			test.run("Europe/Paris", new int[]{1920, 1925, 1930, 1935, 1938});
+		}
+		finally {
+			TimeZone.setDefault(zone);
+			Locale.setDefault(locale);
+			DateUtil.resetDefaults();
+		}
+
+		for (String failure : test.failures){
+			System.out.println(failure);
+		}
+		System.out.println(test.checks + " checks, " + test.failures.size() + " failures");
+		if (!test.failures.isEmpty())
+			System.exit(1);
+	}
+
+	private void run(String zone, int[] years){
+		TimeZone.setDefault(TimeZone.getTimeZone(zone));
+		Locale.setDefault(Locale.US);
+		DateUtil.resetDefaults();
+		DateArrays arrays = new DateArrays();
+
+		for (int year : years){
+			Calendar calendar = Calendar.getInstance();
+			calendar.clear();
+			calendar.set(year, Calendar.JANUARY, 1);
+			long first = calendar.getTimeInMillis();
+			calendar.set(year + 1, Calendar.JANUARY, 1);
+			long last = calendar.getTimeInMillis();
+
+			long[] times = new long[(int) ((last - first) / HALF_HOUR)];
+			for (int i = 0; i < times.length; i++){
+				times[i] = first + i * HALF_HOUR;
+			}
+
+			for (PeriodType type : PeriodType.values()){
+				long[] starts = arrays.getStartOf(type, times);
+				long[] ends = arrays.getEndOf(type, times);
+				for (int i = 0; i < times.length; i++){
+					Date date = new Date(times[i]);
+					String context = zone + " " + type + " " + date;
+					compare("start", context, startOf(type, date), starts[i]);
+					compare("end", context, endOf(type, date), ends[i]);
+				}
+				checkCounts(zone, type, times);
+			}
+		}
+	}
+
+	/**
+	 * Checks that each timestamp is counted in the same period on its own as it is after
+	 * the timestamp before it.
+	 */
+	private void checkCounts(String zone, PeriodType type, long[] times){
+		PeriodRange range = new PeriodRange(type, new Date(times[0]), new Date(times[times.length - 1]));
+		for (int i = 1; i < times.length; i++){
+			TimestampColumn pair = new TimestampColumn();
+			pair.add(times[i - 1]);
+			pair.add(times[i]);
+			TimestampColumn single = new TimestampColumn();
+			single.add(times[i - 1]);
+			long[] expected = single.countByPeriod(range);
+			single = new TimestampColumn();
+			single.add(times[i]);
+			long[] second = single.countByPeriod(range);
+			for (int j = 0; j < expected.length; j++){
+				expected[j] += second[j];
+			}
+			long[] actual = pair.countByPeriod(range);
+			checks++;
+			if (!Arrays.equals(expected, actual))
+				failures.add("count " + zone + " " + type + " " + new Date(times[i - 1]) + ", " + new Date(times[i]) + ": counted in a different period after the one before");
+		}
+	}
+
+	private void compare(String method, String context, long expected, long actual){
+		checks++;
+		if (expected != actual)
+			failures.add(method + " " + context + ": expected " + new Date(expected) + ", got " + new Date(actual));
+	}
+
+	private static long startOf(PeriodType type, Date date){
+		switch (type){
+		case DAY: return DateUtil.getStartOfDay(date).getTime();
+		case WEEK: return DateUtil.getStartOfWeek(date).getTime();
+		case MONTH: return DateUtil.getStartOfMonth(date).getTime();
+		case QUARTER: return DateUtil.getStartOfQuarter(date).getTime();
+		default: return DateUtil.getStartOfYear(date).getTime();
+		}
+	}
+
+	private static long endOf(PeriodType type, Date date){
+		switch (type){
+		case DAY: return DateUtil.getEndOfDay(date).getTime();
+		case WEEK: return DateUtil.getEndOfWeek(date).getTime();
+		case MONTH: return DateUtil.getEndOfMonth(date).getTime();
+		case QUARTER: return DateUtil.getEndOfQuarter(date).getTime();
+		default: return DateUtil.getEndOfYear(date).getTime();
+		}
+	}
+}